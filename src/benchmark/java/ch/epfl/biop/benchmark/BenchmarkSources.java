@@ -0,0 +1,57 @@
+package ch.epfl.biop.benchmark;
+
+import bdv.util.EmptyMultiresolutionSource;
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.sourceandconverter.importer.WeightedVoronoiSourceGetter;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
+
+/**
+ * Procedural inputs of the benchmarks : nothing is read from disk, so that
+ * benchmarks can run offline and give comparable results from release to release
+ */
+public class BenchmarkSources {
+
+    /**
+     * @param pixelType "uint8", "uint16" or "float32"
+     * @param size size of the source in pixels (x, y, z)
+     * @return a voronoi source of the requested pixel type, fully computed in memory
+     */
+    public static SourceAndConverter<?> voronoi(String pixelType, long[] size) {
+        RandomAccessibleInterval<FloatType> voronoi = WeightedVoronoiSourceGetter.getVoronoiTestLabelImage(size, 1000, true);
+        Source<?> source;
+        switch (pixelType) {
+            case "uint8":
+                source = new RandomAccessibleIntervalSource<>(
+                        Converters.convert(voronoi, (i, o) -> o.set((int) i.get() % 256), new UnsignedByteType()),
+                        new UnsignedByteType(), new AffineTransform3D(), "Voronoi_uint8");
+                break;
+            case "uint16":
+                source = new RandomAccessibleIntervalSource<>(
+                        Converters.convert(voronoi, (i, o) -> o.set((int) i.get()), new UnsignedShortType()),
+                        new UnsignedShortType(), new AffineTransform3D(), "Voronoi_uint16");
+                break;
+            case "float32":
+                source = new RandomAccessibleIntervalSource<>(voronoi, new FloatType(), new AffineTransform3D(), "Voronoi_float32");
+                break;
+            default: throw new UnsupportedOperationException("Unrecognized pixel type "+pixelType);
+        }
+        return SourceAndConverterHelper.createSourceAndConverter(source);
+    }
+
+    /**
+     * @param size size of the model in pixels (x, y, z)
+     * @return an empty multiresolution source, used as a resampling model
+     */
+    public static EmptyMultiresolutionSource model(long[] size) {
+        return new EmptyMultiresolutionSource(size[0], size[1], size[2], new AffineTransform3D(), "Model", 2, 2, 1, 1);
+    }
+
+}
@@ -0,0 +1,123 @@
+package ch.epfl.biop.benchmark;
+
+import bdv.util.BoundedRealTransform;
+import bdv.util.CachedDisplacementFieldTransform;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BoundedRealTransform#apply(net.imglib2.RealLocalizable, net.imglib2.RealPositionable)}
+ * on points inside and outside of its bounds, wrapping an affine transform (cheap) and a
+ * thin plate spline (expensive), and of the same thin plate spline cached as a
+ * displacement field ({@link CachedDisplacementFieldTransform}), forward and inverse
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BoundedRealTransformBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(BoundedRealTransformBenchmark.class);
+
+    BoundedRealTransform boundedAffine;
+    BoundedRealTransform boundedSpline;
+    CachedDisplacementFieldTransform cachedSpline;
+
+    final RealPoint inside = new RealPoint(50.0, 50.0, 50.0);
+    final RealPoint outside = new RealPoint(500.0, 500.0, 500.0);
+    final RealPoint target = new RealPoint(3);
+
+    @Setup
+    public void setup() {
+        FinalRealInterval bounds = new FinalRealInterval(new double[]{0, 0, 0}, new double[]{100, 100, 100});
+
+        AffineTransform3D affine = new AffineTransform3D();
+        affine.rotate(2, 0.3);
+        affine.translate(10, 20, 30);
+        boundedAffine = new BoundedRealTransform(affine, bounds);
+
+        // Thin plate spline with 20 random landmarks in XY
+        Random random = new Random(0);
+        int nLandmarks = 20;
+        double[][] src = new double[2][nLandmarks];
+        double[][] tgt = new double[2][nLandmarks];
+        for (int i = 0; i < nLandmarks; i++) {
+            for (int d = 0; d < 2; d++) {
+                src[d][i] = random.nextDouble() * 100;
+                tgt[d][i] = src[d][i] + random.nextGaussian() * 5;
+            }
+        }
+        boundedSpline = new BoundedRealTransform(
+                new WrappedIterativeInvertibleRealTransform<>(new Wrapped2DTransformAs3D(new ThinplateSplineTransform(src, tgt))),
+                bounds);
+        // Single plane along z : the spline is 2D
+        cachedSpline = new CachedDisplacementFieldTransform(boundedSpline,
+                new FinalRealInterval(new double[]{0, 0, 50}, new double[]{100, 100, 50}), 1);
+        logger.info("Cached spline max error : forward = " + cachedSpline.getMaxForwardError()
+                + ", inverse = " + cachedSpline.getMaxInverseError());
+    }
+
+    @Benchmark
+    public RealPoint affineInside() {
+        boundedAffine.apply(inside, target);
+        return target;
+    }
+
+    @Benchmark
+    public RealPoint affineOutside() {
+        boundedAffine.apply(outside, target);
+        return target;
+    }
+
+    @Benchmark
+    public RealPoint splineInside() {
+        boundedSpline.apply(inside, target);
+        return target;
+    }
+
+    @Benchmark
+    public RealPoint splineOutside() {
+        boundedSpline.apply(outside, target);
+        return target;
+    }
+
+    @Benchmark
+    public RealPoint splineInverseInside() {
+        boundedSpline.applyInverse(target, inside);
+        return target;
+    }
+
+    @Benchmark
+    public RealPoint cachedSplineInside() {
+        cachedSpline.apply(inside, target);
+        return target;
+    }
+
+    @Benchmark
+    public RealPoint cachedSplineInverseInside() {
+        cachedSpline.applyInverse(target, inside);
+        return target;
+    }
+
+}
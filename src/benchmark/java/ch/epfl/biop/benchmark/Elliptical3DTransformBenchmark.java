@@ -0,0 +1,86 @@
+package ch.epfl.biop.benchmark;
+
+import bdv.util.Elliptical3DTransform;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.RealTransformSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point mapping of an {@link Elliptical3DTransform}, called once per screen pixel
+ * when an elliptic warped source is displayed
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Elliptical3DTransformBenchmark {
+
+    Elliptical3DTransform transform;
+
+    RealTransformSequence sequence, inverseSequence;
+
+    final double[] spherical = new double[]{1.2, 0.7, 0.3};
+    final double[] cartesian = new double[3];
+    final double[] result = new double[3];
+
+    final RealPoint sphericalPoint = new RealPoint(1.2, 0.7, 0.3);
+    final RealPoint cartesianPoint = new RealPoint(3);
+
+    @Setup
+    public void setup() {
+        transform = new Elliptical3DTransform();
+        transform.setParameters(
+                "r1", 120.0, "r2", 80.0, "r3", 50.0,
+                "rx", 0.3, "ry", -0.2, "rz", 0.7,
+                "tx", 250.0, "ty", 200.0, "tz", 100.0);
+        transform.apply(spherical, cartesian);
+        sequence = transform.getTransformSequence();
+        inverseSequence = transform.getInverseTransformSequence();
+    }
+
+    @Benchmark
+    public double[] apply() {
+        transform.apply(spherical, result);
+        return result;
+    }
+
+    @Benchmark
+    public RealPoint applyRealPoint() {
+        transform.apply(sphericalPoint, cartesianPoint);
+        return cartesianPoint;
+    }
+
+    @Benchmark
+    public double[] applyInverse() {
+        transform.applyInverse(result, cartesian);
+        return result;
+    }
+
+    // Reference : the four stages transform sequence, which is not used to map points anymore
+
+    @Benchmark
+    public double[] applySequence() {
+        sequence.apply(spherical, result);
+        return result;
+    }
+
+    @Benchmark
+    public double[] applyInverseSequence() {
+        inverseSequence.apply(cartesian, result);
+        return result;
+    }
+
+}
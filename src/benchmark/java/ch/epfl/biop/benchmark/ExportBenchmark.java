@@ -0,0 +1,53 @@
+package ch.epfl.biop.benchmark;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
+import ch.epfl.biop.sourceandconverter.exporter.ImagePlusGetter;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non virtual export of a source with {@link ImagePlusGetter#getImagePlus(String, List, int, CZTRange, boolean)}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportBenchmark {
+
+    @Param({"uint8", "uint16", "float32"})
+    public String pixelType;
+
+    List<SourceAndConverter> sources;
+
+    CZTRange range;
+
+    @Setup
+    public void setup() throws Exception {
+        sources = new ArrayList<>();
+        sources.add(BenchmarkSources.voronoi(pixelType, new long[]{512, 512, 32}));
+        range = ImagePlusGetter.fromSources(sources, 0, 0);
+    }
+
+    @Benchmark
+    public ImagePlus getImagePlus() {
+        return ImagePlusGetter.getImagePlus("Export", sources, 0, range, false);
+    }
+
+}
@@ -0,0 +1,103 @@
+package ch.epfl.biop.benchmark;
+
+import ch.epfl.biop.sourceandconverter.exporter.PlaneSampler;
+import ch.epfl.biop.sourceandconverter.exporter.PlaneSamplers;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a plane into an ImageJ pixel array, with the generic cursor loop formerly used by
+ * {@link ch.epfl.biop.sourceandconverter.exporter.SourceAndConverterVirtualStack} and with the
+ * type specialized {@link PlaneSamplers}.
+ *
+ * The sampled images are views (not cell images), which is the case of resampled sources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PlaneSamplerBenchmark {
+
+    @Param({"uint8", "uint16", "float32"})
+    String pixelType;
+
+    static final int SIZE = 2048;
+
+    RandomAccessibleInterval<?> slice;
+    Object pixels;
+    PlaneSampler sampler;
+
+    @Setup
+    public void setup() {
+        switch (pixelType) {
+            case "uint8":
+                slice = view(ArrayImgs.unsignedBytes(SIZE, SIZE));
+                pixels = new byte[SIZE * SIZE];
+                break;
+            case "uint16":
+                slice = view(ArrayImgs.unsignedShorts(SIZE, SIZE));
+                pixels = new short[SIZE * SIZE];
+                break;
+            case "float32":
+                slice = view(ArrayImgs.floats(SIZE, SIZE));
+                pixels = new float[SIZE * SIZE];
+                break;
+            default: throw new UnsupportedOperationException("Unrecognized pixel type "+pixelType);
+        }
+        sampler = PlaneSamplers.forType(Util.getTypeFromInterval(slice));
+    }
+
+    @Benchmark
+    public Object cursor() {
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            Cursor<UnsignedByteType> s = Views.flatIterable((RandomAccessibleInterval<UnsignedByteType>) slice).cursor();
+            for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) s.next().get();
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            Cursor<UnsignedShortType> s = Views.flatIterable((RandomAccessibleInterval<UnsignedShortType>) slice).cursor();
+            for (int i = 0; i < shorts.length; i++) shorts[i] = (short) s.next().get();
+        } else {
+            float[] floats = (float[]) pixels;
+            Cursor<FloatType> s = Views.flatIterable((RandomAccessibleInterval<FloatType>) slice).cursor();
+            for (int i = 0; i < floats.length; i++) floats[i] = s.next().get();
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public Object specialized() {
+        sampler.fill(slice, pixels, SIZE, 0, 0, SIZE - 1, SIZE - 1);
+        return pixels;
+    }
+
+    static <T extends RealType<T>> RandomAccessibleInterval<T> view(RandomAccessibleInterval<T> img) {
+        Random random = new Random(0);
+        Views.flatIterable(img).forEach(p -> p.setReal(random.nextInt(255)));
+        return Views.interval(Views.extendZero(img), img);
+    }
+
+}
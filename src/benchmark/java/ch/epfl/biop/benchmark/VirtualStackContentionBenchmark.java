@@ -0,0 +1,69 @@
+package ch.epfl.biop.benchmark;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
+import ch.epfl.biop.sourceandconverter.exporter.ImagePlusGetter;
+import ch.epfl.biop.sourceandconverter.exporter.PlaneCache;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planes requested concurrently from a virtual stack by several threads, in a random order
+ * (orthogonal views, parallel duplicator...). The stack is created again for each iteration,
+ * so that a cached stack is measured while it fills.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(4)
+@Fork(1)
+public class VirtualStackContentionBenchmark {
+
+    @Param({"true", "false"})
+    public boolean cache;
+
+    List<SourceAndConverter> sources;
+
+    CZTRange range;
+
+    ImageStack stack;
+
+    @Setup
+    public void setup() throws Exception {
+        sources = new ArrayList<>();
+        sources.add(BenchmarkSources.voronoi("float32", new long[]{512, 512, 64}));
+        range = ImagePlusGetter.fromSources(sources, 0, 0);
+    }
+
+    @Setup(Level.Iteration)
+    public void createStack() {
+        stack = ImagePlusGetter.getVirtualImagePlus("Contention", sources, 0, range,
+                cache ? PlaneCache.unbounded() : null, false).getStack();
+    }
+
+    @Benchmark
+    public ImageProcessor getProcessor() {
+        return stack.getProcessor(1 + ThreadLocalRandom.current().nextInt(stack.getSize()));
+    }
+
+}
@@ -0,0 +1,53 @@
+package ch.epfl.biop.benchmark;
+
+import bdv.util.ZSlicedSource;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the mosaic of a {@link ZSlicedSource} and samples its first plane
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZSlicedSourceBenchmark {
+
+    ZSlicedSource<FloatType> zSlicedSource;
+
+    @Setup
+    public void setup() {
+        SourceAndConverter<?> voronoi = BenchmarkSources.voronoi("float32", new long[]{256, 256, 16});
+        zSlicedSource = new ZSlicedSource<>(voronoi.getSpimSource(), BenchmarkSources.model(new long[]{256, 256, 16}),
+                "ZSliced", false, false, false);
+    }
+
+    @Benchmark
+    public double buildAndSample() {
+        RandomAccessibleInterval<FloatType> rai = zSlicedSource.buildSource(0, 0);
+        Cursor<FloatType> cursor = Views.flatIterable(Views.hyperSlice(rai, 2, 0)).cursor();
+        double sum = 0;
+        while (cursor.hasNext()) {
+            sum += cursor.next().get();
+        }
+        return sum;
+    }
+
+}
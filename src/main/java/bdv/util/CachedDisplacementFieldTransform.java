@@ -0,0 +1,374 @@
+package bdv.util;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * This RealTransform class wraps an {@link InvertibleRealTransform}, typically a thin plate
+ * spline wrapped in an iterative inversion, and replaces it, inside a {@link RealInterval}, by
+ * displacement fields sampled on a regular grid and linearly interpolated. The forward and the
+ * inverse transforms are both sampled, so that the cost per pixel is constant, whatever the
+ * number of landmarks and the iterative inversion.
+ *
+ * The forward displacements are sampled in the interval. The inverse displacements are looked up
+ * with target positions, they are thus sampled in the bounding box of the interval mapped by the
+ * forward transform, see {@link CachedDisplacementFieldTransform#getInverseInterval()}.
+ *
+ * Outside of these regions, the wrapped transform is used. A dimension of the interval which has
+ * a null extent (for instance z for a 2D transform wrapped as 3D) is sampled on a single plane,
+ * and the displacement is considered constant along this dimension.
+ *
+ * The maximal error of the interpolation compared to the wrapped transform is measured at the
+ * centers of the grid cells, where the linear interpolation is the least accurate, see
+ * {@link CachedDisplacementFieldTransform#getMaxForwardError()} and
+ * {@link CachedDisplacementFieldTransform#getMaxInverseError()}.
+ *
+ * Displacement fields are shared between copies.
+ */
+public class CachedDisplacementFieldTransform implements InvertibleRealTransform {
+
+    private static Logger logger = LoggerFactory.getLogger(CachedDisplacementFieldTransform.class);
+
+    /**
+     * Max number of cell centers used to measure the error of the interpolation
+     */
+    public static int maxErrorSamples = 10000;
+
+    final InvertibleRealTransform origin;
+    final RealInterval interval;
+    final double spacing;
+    final int nDim;
+
+    final DisplacementGrid forward, inverse;
+
+    final double[] tmpSource, tmpTarget, tmpWeights;
+
+    /**
+     * Samples the forward and inverse displacements of a transform. This can take a while
+     * for large intervals or for small spacings.
+     *
+     * @param origin wrapped transform, with the same number of source and target dimensions
+     * @param interval region where the forward displacement field is sampled, the inverse displacement field is
+     *                 sampled in the bounding box of its image
+     * @param spacing distance between grid nodes, in physical units
+     */
+    public CachedDisplacementFieldTransform(InvertibleRealTransform origin, RealInterval interval, double spacing) {
+        if (origin.numSourceDimensions() != origin.numTargetDimensions()) {
+            throw new IllegalArgumentException("Source and target dimensions of the transform should be equal");
+        }
+        if (spacing <= 0) {
+            throw new IllegalArgumentException("Invalid displacement field spacing " + spacing);
+        }
+        this.origin = origin;
+        this.interval = interval;
+        this.spacing = spacing;
+        this.nDim = origin.numSourceDimensions();
+        this.forward = new DisplacementGrid(origin, interval, spacing, false);
+        this.inverse = new DisplacementGrid(origin, forward.mappedBounds(), spacing, true);
+        this.tmpSource = new double[nDim];
+        this.tmpTarget = new double[nDim];
+        this.tmpWeights = new double[nDim];
+        logger.debug("Displacement fields of " + forward.nNodes + " nodes, max forward error = "
+                + forward.maxError + ", max inverse error = " + inverse.maxError);
+    }
+
+    /**
+     * Caches a transform around a set of points, for instance the landmarks of a registration
+     *
+     * @param origin wrapped transform
+     * @param points points which should be inside the cached region
+     * @param margin margin added around the bounding box of the points, along the dimensions where the points have an extent
+     * @param spacing distance between grid nodes, in physical units
+     * @return the cached transform
+     */
+    public static CachedDisplacementFieldTransform around(InvertibleRealTransform origin, List<? extends RealLocalizable> points, double margin, double spacing) {
+        int nDim = origin.numSourceDimensions();
+        double[] min = new double[nDim];
+        double[] max = new double[nDim];
+        Arrays.fill(min, Double.MAX_VALUE);
+        Arrays.fill(max, -Double.MAX_VALUE);
+        for (RealLocalizable point : points) {
+            for (int d = 0; d < nDim; d++) {
+                min[d] = Math.min(min[d], point.getDoublePosition(d));
+                max[d] = Math.max(max[d], point.getDoublePosition(d));
+            }
+        }
+        for (int d = 0; d < nDim; d++) {
+            if (max[d] > min[d]) {
+                min[d] -= margin;
+                max[d] += margin;
+            }
+        }
+        return new CachedDisplacementFieldTransform(origin, new FinalRealInterval(min, max), spacing);
+    }
+
+    private CachedDisplacementFieldTransform(CachedDisplacementFieldTransform model) {
+        this.origin = model.origin.copy();
+        this.interval = model.interval;
+        this.spacing = model.spacing;
+        this.nDim = model.nDim;
+        this.forward = model.forward;
+        this.inverse = model.inverse;
+        this.tmpSource = new double[nDim];
+        this.tmpTarget = new double[nDim];
+        this.tmpWeights = new double[nDim];
+    }
+
+    @Override
+    public int numSourceDimensions() {
+        return nDim;
+    }
+
+    @Override
+    public int numTargetDimensions() {
+        return nDim;
+    }
+
+    @Override
+    public void apply(double[] source, double[] target) {
+        if (!forward.interpolate(source, target, tmpWeights)) {
+            origin.apply(source, target);
+        }
+    }
+
+    @Override
+    public void apply(RealLocalizable source, RealPositionable target) {
+        source.localize(tmpSource);
+        apply(tmpSource, tmpTarget);
+        target.setPosition(tmpTarget);
+    }
+
+    @Override
+    public void applyInverse(double[] source, double[] target) {
+        if (!inverse.interpolate(target, source, tmpWeights)) {
+            origin.applyInverse(source, target);
+        }
+    }
+
+    @Override
+    public void applyInverse(RealPositionable source, RealLocalizable target) {
+        target.localize(tmpTarget);
+        applyInverse(tmpSource, tmpTarget);
+        source.setPosition(tmpSource);
+    }
+
+    @Override
+    public InvertibleRealTransform inverse() {
+        return new InverseRealTransform(this);
+    }
+
+    @Override
+    public CachedDisplacementFieldTransform copy() {
+        return new CachedDisplacementFieldTransform(this);
+    }
+
+    public RealInterval getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return region where the inverse displacement field is sampled, in the target space
+     */
+    public RealInterval getInverseInterval() {
+        return new FinalRealInterval(inverse.min, inverse.max);
+    }
+
+    public double getSpacing() {
+        return spacing;
+    }
+
+    public InvertibleRealTransform getTransform() {
+        return origin;
+    }
+
+    /**
+     * @return max distance between the interpolated and the exact forward transform, measured at cell centers
+     */
+    public double getMaxForwardError() {
+        return forward.maxError;
+    }
+
+    /**
+     * @return max distance between the interpolated and the exact inverse transform, measured at cell centers
+     */
+    public double getMaxInverseError() {
+        return inverse.maxError;
+    }
+
+    /**
+     * Displacements sampled on a regular grid, read only once computed
+     */
+    static class DisplacementGrid {
+
+        final int nDim;
+        final double[] min;
+        final double[] max;
+        final double[] step;
+        final int[] dims;
+        final int nNodes;
+        final float[] displacements;
+        final double maxError;
+
+        DisplacementGrid(InvertibleRealTransform origin, RealInterval interval, double spacing, boolean inverse) {
+            nDim = origin.numSourceDimensions();
+            min = new double[nDim];
+            max = new double[nDim];
+            step = new double[nDim];
+            dims = new int[nDim];
+            long n = 1;
+            for (int d = 0; d < nDim; d++) {
+                min[d] = interval.realMin(d);
+                max[d] = interval.realMax(d);
+                double extent = max[d] - min[d];
+                if (extent <= 0) {
+                    dims[d] = 1;
+                    step[d] = 0;
+                } else {
+                    dims[d] = (int) Math.ceil(extent / spacing) + 1;
+                    step[d] = extent / (dims[d] - 1);
+                }
+                n *= dims[d];
+            }
+            if (n * nDim > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many displacement field nodes (" + n + "), increase the spacing");
+            }
+            nNodes = (int) n;
+            displacements = new float[nNodes * nDim];
+
+            // One task per line of nodes along the first dimension
+            final ThreadLocal<InvertibleRealTransform> transforms = ThreadLocal.withInitial(origin::copy);
+            IntStream.range(0, nNodes / dims[0]).parallel().forEach(iLine -> {
+                final InvertibleRealTransform t = transforms.get();
+                final double[] node = new double[nDim];
+                final double[] mapped = new double[nDim];
+                int index = iLine * dims[0];
+                for (int i = 0; i < dims[0]; i++) {
+                    nodePosition(index, node);
+                    if (inverse) {
+                        t.applyInverse(mapped, node);
+                    } else {
+                        t.apply(node, mapped);
+                    }
+                    for (int d = 0; d < nDim; d++) {
+                        displacements[index * nDim + d] = (float) (mapped[d] - node[d]);
+                    }
+                    index++;
+                }
+            });
+
+            maxError = measureMaxError(origin, inverse);
+        }
+
+        /**
+         * @return bounding box of the mapped positions of the nodes
+         */
+        RealInterval mappedBounds() {
+            double[] mappedMin = new double[nDim];
+            double[] mappedMax = new double[nDim];
+            Arrays.fill(mappedMin, Double.MAX_VALUE);
+            Arrays.fill(mappedMax, -Double.MAX_VALUE);
+            double[] node = new double[nDim];
+            for (int index = 0; index < nNodes; index++) {
+                nodePosition(index, node);
+                for (int d = 0; d < nDim; d++) {
+                    double mapped = node[d] + displacements[index * nDim + d];
+                    mappedMin[d] = Math.min(mappedMin[d], mapped);
+                    mappedMax[d] = Math.max(mappedMax[d], mapped);
+                }
+            }
+            return new FinalRealInterval(mappedMin, mappedMax);
+        }
+
+        void nodePosition(int index, double[] position) {
+            for (int d = 0; d < nDim; d++) {
+                position[d] = min[d] + (index % dims[d]) * step[d];
+                index /= dims[d];
+            }
+        }
+
+        /**
+         * @param position position in the grid space
+         * @param mapped position plus the interpolated displacement
+         * @param w buffer for the interpolation weights
+         * @return false if the position is outside of the grid, mapped is then not modified
+         */
+        boolean interpolate(double[] position, double[] mapped, double[] w) {
+            int baseIndex = 0;
+            int stride = 1;
+            for (int d = 0; d < nDim; d++) {
+                if (dims[d] == 1) {
+                    w[d] = 0; // Constant along this dimension
+                } else {
+                    double p = position[d];
+                    if ((p < min[d]) || (p > max[d])) return false;
+                    double g = (p - min[d]) / step[d];
+                    int i = Math.min((int) g, dims[d] - 2);
+                    w[d] = g - i;
+                    baseIndex += i * stride;
+                }
+                stride *= dims[d];
+            }
+            // Sum over the 2^n corners of the cell, corners outside a single plane dimension have a null weight
+            for (int d = 0; d < nDim; d++) mapped[d] = position[d];
+            for (int corner = 0; corner < (1 << nDim); corner++) {
+                double weight = 1;
+                int index = baseIndex;
+                stride = 1;
+                for (int d = 0; d < nDim; d++) {
+                    if (((corner >> d) & 1) == 1) {
+                        weight *= w[d];
+                        index += stride;
+                    } else {
+                        weight *= 1 - w[d];
+                    }
+                    stride *= dims[d];
+                }
+                if (weight == 0) continue;
+                for (int d = 0; d < nDim; d++) {
+                    mapped[d] += weight * displacements[index * nDim + d];
+                }
+            }
+            return true;
+        }
+
+        double measureMaxError(InvertibleRealTransform origin, boolean inverse) {
+            int nCells = 1;
+            for (int d = 0; d < nDim; d++) nCells *= Math.max(1, dims[d] - 1);
+            final int stride = Math.max(1, nCells / maxErrorSamples);
+            final int[] cellDims = new int[nDim];
+            for (int d = 0; d < nDim; d++) cellDims[d] = Math.max(1, dims[d] - 1);
+            final ThreadLocal<InvertibleRealTransform> transforms = ThreadLocal.withInitial(origin::copy);
+            return IntStream.range(0, (nCells + stride - 1) / stride).parallel().mapToDouble(iSample -> {
+                final InvertibleRealTransform t = transforms.get();
+                final double[] center = new double[nDim];
+                final double[] exact = new double[nDim];
+                final double[] interpolated = new double[nDim];
+                final double[] w = new double[nDim];
+                int cell = iSample * stride;
+                for (int d = 0; d < nDim; d++) {
+                    center[d] = min[d] + ((cell % cellDims[d]) + (dims[d] == 1 ? 0 : 0.5)) * step[d];
+                    cell /= cellDims[d];
+                }
+                if (inverse) {
+                    t.applyInverse(exact, center);
+                } else {
+                    t.apply(center, exact);
+                }
+                interpolate(center, interpolated, w);
+                double error = 0;
+                for (int d = 0; d < nDim; d++) error += (exact[d] - interpolated[d]) * (exact[d] - interpolated[d]);
+                return Math.sqrt(error);
+            }).max().orElse(0);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package bdv.util;
+
+import com.google.gson.*;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import org.scijava.plugin.Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.persist.IClassRuntimeAdapter;
+
+import java.lang.reflect.Type;
+
+/**
+ * Runtime adapter of {@link CachedDisplacementFieldTransform} class
+ *
+ * Only the wrapped transform, the interval and the spacing are serialized, the
+ * displacement fields are sampled again on deserialization.
+ */
+
+@Plugin(type = IClassRuntimeAdapter.class)
+public class CachedDisplacementFieldTransformAdapter implements IClassRuntimeAdapter<RealTransform, CachedDisplacementFieldTransform> {
+
+    private static Logger logger = LoggerFactory.getLogger(CachedDisplacementFieldTransformAdapter.class);
+
+    @Override
+    public Class<? extends RealTransform> getBaseClass() {
+        return RealTransform.class;
+    }
+
+    @Override
+    public Class<? extends CachedDisplacementFieldTransform> getRunTimeClass() {
+        return CachedDisplacementFieldTransform.class;
+    }
+
+    @Override
+    public boolean useCustomAdapter() {
+        return true;
+    }
+
+    @Override
+    public CachedDisplacementFieldTransform deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
+        JsonObject obj = jsonElement.getAsJsonObject();
+
+        RealTransform rt = jsonDeserializationContext.deserialize(obj.get("realTransform"), RealTransform.class);
+
+        if (!(rt instanceof InvertibleRealTransform)) {
+            logger.error("Error during deserialization of CachedDisplacementFieldTransform : The serialized transform is not invertible");
+            return null;
+        }
+
+        double[] min = jsonDeserializationContext.deserialize(obj.get("interval_min"), double[].class);
+
+        double[] max = jsonDeserializationContext.deserialize(obj.get("interval_max"), double[].class);
+
+        double spacing = obj.get("spacing").getAsDouble();
+
+        return new CachedDisplacementFieldTransform((InvertibleRealTransform) rt, new FinalRealInterval(min, max), spacing);
+    }
+
+    @Override
+    public JsonElement serialize(CachedDisplacementFieldTransform cdft, Type type, JsonSerializationContext jsonSerializationContext) {
+
+        JsonObject obj = new JsonObject();
+
+        FinalRealInterval fri = new FinalRealInterval(cdft.getInterval());
+
+        obj.add("realTransform", jsonSerializationContext.serialize(cdft.getTransform(), RealTransform.class));
+
+        obj.add("interval_min", jsonSerializationContext.serialize(fri.minAsDoubleArray()));
+
+        obj.add("interval_max", jsonSerializationContext.serialize(fri.maxAsDoubleArray()));
+
+        obj.addProperty("spacing", cdft.getSpacing());
+
+        return obj;
+    }
+}
@@ -7,7 +7,9 @@ import net.imglib2.util.LinAlgHelpers;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A transform sequence which transform a 3D ellipse into a flat projection map.
@@ -29,6 +31,20 @@ import java.util.Map;
  * - tz : translation of the center of the ellipse along the Z axis
  *
  * This transformation is invertible, but only in a certain fraction of the space
+ *
+ * The scale, rotation and translation are fused into a single 3x4 matrix (and its inverse)
+ * each time the parameters are updated : mapping a point is a spherical to cartesian
+ * conversion followed by one matrix multiplication, without allocation. The equivalent
+ * sequences of the four transforms are given by {@link Elliptical3DTransform#getTransformSequence()}
+ * and {@link Elliptical3DTransform#getInverseTransformSequence()}, they are not used to map points.
+ *
+ * Parameters are stored in immutable {@link Parameters} snapshots. Changing parameters
+ * publishes a new snapshot atomically, and each point mapping reads a single snapshot,
+ * so a point is never mapped with half updated parameters. {@link Elliptical3DTransform#copy()}
+ * returns an independent transform. An instance and its shared copies (see
+ * {@link Elliptical3DTransform#sharedCopy()}) share the same published snapshot : shared copies
+ * used by rendering threads follow parameter changes without any lock. Each copy has its
+ * own buffers, so a single instance should not be used by several threads at the same time.
  */
 public class Elliptical3DTransform implements InvertibleRealTransform {
 
@@ -36,36 +52,20 @@ public class Elliptical3DTransform implements InvertibleRealTransform {
 
     public SphericalToCartesianTransform3D s2c = SphericalToCartesianTransform3D.getInstance();
 
-    // Transform 2 : scale elliptical axes
-
-    public Scale3D s3d = new Scale3D(1f, 1f, 1f);
-
-    // Transform 3 : rotate axes
-
-    public AffineTransform3D rot3D = new AffineTransform3D();
-
-    // Transform 4 : translate center
+    // Current parameters, shared with the shared copies of this transform
+    final AtomicReference<Parameters> parameters;
 
-    public Translation3D tr3D = new Translation3D();
-
-    public RealTransformSequence rts = new RealTransformSequence();
-
-    public RealTransformSequence rtsi = new RealTransformSequence();
+    // Buffers for the spherical part of the transform, an instance is used by a single thread at a time
+    final double[] tmpSource = new double[3];
+    final double[] tmpTarget = new double[3];
 
     public Elliptical3DTransform() {
+        this(new AtomicReference<>(new Parameters(1, 1, 1, 0, 0, 0, 0, 0, 0)));
+    }
 
-        rts.add(s2c);
-        rts.add(s3d);
-        rts.add(rot3D);
-        rts.add(tr3D);
-
-        rtsi.add(tr3D.inverse());
-        rtsi.add(rot3D.inverse());
-        rtsi.add(s3d.inverse());
-        rtsi.add(s2c.inverse());
-
+    private Elliptical3DTransform(AtomicReference<Parameters> parameters) {
+        this.parameters = parameters;
         updateNotifiers = new ArrayList<>();
-        this.updateTransformsFromParameters();
 
         inverse = new InverseRealTransform(this);
     }
@@ -85,26 +85,38 @@ public class Elliptical3DTransform implements InvertibleRealTransform {
     }
 
     public Map<String, Double> getParameters() {
+        return parameters.get().toMap();
+    }
 
-        Map<String, Double> map = new LinkedHashMap<>();
-        map.put("r1", r1);
-        map.put("r2", r2);
-        map.put("r3", r3);
-
-        map.put("rx", rx);
-        map.put("ry", ry);
-        map.put("rz", rz);
-
-        map.put("tx", tx);
-        map.put("ty", ty);
-        map.put("tz", tz);
-        return map;
+    /**
+     * @return the current parameters snapshot
+     */
+    public Parameters getParametersSnapshot() {
+        return parameters.get();
+    }
+
+    /**
+     * @return the sequence of the four transforms (spherical to cartesian, scale, rotation, translation)
+     * with the current parameters, which does not follow later parameter changes
+     */
+    public RealTransformSequence getTransformSequence() {
+        return parameters.get().toTransformSequence();
+    }
+
+    /**
+     * @return the inverse of {@link Elliptical3DTransform#getTransformSequence()}, with the current parameters
+     */
+    public RealTransformSequence getInverseTransformSequence() {
+        return parameters.get().toInverseTransformSequence();
     }
 
     public void setParameters(Map<String, Double> parameters) {
-        parameters.entrySet().forEach(entry -> {
-            setParameters(entry.getKey(), entry.getValue());
+        List<Object> kv = new ArrayList<>();
+        parameters.forEach((k, v) -> {
+            kv.add(k);
+            kv.add(v);
         });
+        setParameters(kv.toArray());
     }
 
     public void setParameters(Object... kv) {
@@ -112,188 +124,310 @@ public class Elliptical3DTransform implements InvertibleRealTransform {
         for (int i = 0; i < kv.length; i += 2)
             map.put((String) kv[i],
                     (Double) kv[i + 1]);
-        map.keySet().forEach(k -> {
-            switch (k) {
-                case "r1":
-                    r1 = map.get(k);
-                    break;
-                case "r2":
-                    r2 = map.get(k);
-                    break;
-                case "r3":
-                    r3 = map.get(k);
-                    break;
-                case "rx":
-                    rx = map.get(k);
-                    break;
-                case "ry":
-                    ry = map.get(k);
-                    break;
-                case "rz":
-                    rz = map.get(k);
-                    break;
-                case "tx":
-                    tx = map.get(k);
-                    break;
-                case "ty":
-                    ty = map.get(k);
-                    break;
-                case "tz":
-                    tz = map.get(k);
-                    break;
-            }
-        });
 
-        this.updateTransformsFromParameters();
+        // All changes are published at once
+        parameters.updateAndGet(current -> current.with(map));
+
+        updateNotifiers.forEach(Runnable::run);
 
     }
 
     public ArrayList<Runnable> updateNotifiers;
 
-    double r1 = 1, r2 = 1, r3 = 1, //radius of axes 1 2 3 of ellipse
-            rx = 0, ry = 0, rz = 0, // 3D rotation euler angles maybe not the best parametrization
-            tx = 0, ty = 0, tz = 0; // ellipse center
+    @Override
+    public void applyInverse(double[] source, double[] target) {
+        final double x = target[0], y = target[1], z = target[2];
+        final double[] mi = parameters.get().fusedInverse;
+        tmpSource[0] = mi[0] * x + mi[1] * y + mi[2] * z + mi[3];
+        tmpSource[1] = mi[4] * x + mi[5] * y + mi[6] * z + mi[7];
+        tmpSource[2] = mi[8] * x + mi[9] * y + mi[10] * z + mi[11];
+        s2c.applyInverse(source, tmpSource);
+    }
 
+    @Override
+    public void applyInverse(RealPositionable source, RealLocalizable target) {
+        tmpTarget[0] = target.getDoublePosition(0);
+        tmpTarget[1] = target.getDoublePosition(1);
+        tmpTarget[2] = target.getDoublePosition(2);
+        applyInverse(tmpTarget, tmpTarget);
+        source.setPosition(tmpTarget);
+    }
 
-    void updateTransformsFromParameters() {
-        // Easy
-        s3d.set(r1, r2, r3);
-        tr3D.set(tx, ty, tz);
+    private final InverseRealTransform inverse;
 
-        // Pfou
+    @Override
+    public InvertibleRealTransform inverse() {
+        return inverse;
+    }
 
-        /*Vector3d en = new Vector3d(0,0,0);
-        Vector3d eu = new Vector3d(0,0,0);
-        Vector3d ev = new Vector3d(0,0,0);
+    @Override
+    public int numSourceDimensions() {
+        return 3;
+    }
 
-        en.x = Math.sin(theta)*Math.cos(phi);
-        en.y = Math.sin(theta)*Math.sin(phi);
-        en.z = Math.cos(theta);
+    @Override
+    public int numTargetDimensions() {
+        return 3;
+    }
 
-        Vector3d a,b;
-        if ((en.x==0)&&(en.y==0)) {
-            a = new Vector3d(1, 0, 0); // TODO : is this good ?
-        } else {
-            a = new Vector3d(en.y, -en.x, 0);
-        }
+    @Override
+    public void apply(double[] source, double[] target) {
+        final double[] m = parameters.get().fused;
+        s2c.apply(source, tmpTarget);
+        final double x = tmpTarget[0], y = tmpTarget[1], z = tmpTarget[2];
+        target[0] = m[0] * x + m[1] * y + m[2] * z + m[3];
+        target[1] = m[4] * x + m[5] * y + m[6] * z + m[7];
+        target[2] = m[8] * x + m[9] * y + m[10] * z + m[11];
+    }
+
+    @Override
+    public void apply(RealLocalizable source, RealPositionable target) {
+        tmpSource[0] = source.getDoublePosition(0);
+        tmpSource[1] = source.getDoublePosition(1);
+        tmpSource[2] = source.getDoublePosition(2);
+        apply(tmpSource, tmpSource);
+        target.setPosition(tmpSource);
+    }
 
-        b = new Vector3d(0, 0, 0);
+    /**
+     * @return an independent copy of this transform, with the current parameters, which does not follow
+     * later parameter changes of this transform
+     */
+    @Override
+    public Elliptical3DTransform copy() {
+        return new Elliptical3DTransform(new AtomicReference<>(parameters.get()));
+    }
 
-        a.normalize();
+    /**
+     * @return a copy of this transform which shares its parameters : changing the parameters of
+     * this transform or of any of its shared copies changes all of them, for instance for the copies
+     * used by rendering threads. The update notifiers are not shared : they only run for the instance
+     * whose parameters are set.
+     */
+    public Elliptical3DTransform sharedCopy() {
+        return new Elliptical3DTransform(parameters);
+    }
 
-        b.cross(en,a);
+    /**
+     * @return an independent copy of this transform, same as {@link Elliptical3DTransform#copy()}
+     */
+    public Elliptical3DTransform detachedCopy() {
+        return copy();
+    }
 
-        double sz = Math.sin(angle_en);
-        double cz = Math.cos(angle_en);
+    /**
+     * Immutable parameters of the transform, with the fused matrices computed from them
+     */
+    public static class Parameters {
 
-        eu.x = cz * a.x + sz * b.x;
-        eu.y = cz * a.y + sz * b.y;
-        eu.z = cz * a.z + sz * b.z;
+        public final double r1, r2, r3, //radius of axes 1 2 3 of ellipse
+                rx, ry, rz, // 3D rotation euler angles maybe not the best parametrization
+                tx, ty, tz; // ellipse center
 
-        ev.x = cz * b.x - sz * a.x;
-        ev.y = cz * b.y - sz * a.y;
-        ev.z = cz * b.z - sz * a.z;
+        // Rotation matrix
+        final double[][] rotation = new double[3][3];
 
-        rot3D.set(
-                  en.x, eu.x, ev.x, 0,
-                  en.y, eu.y, ev.y, 0,
-                  en.z, eu.z, ev.z, 0,
-                     0,    0,    0, 1
-                );*/
+        // Fused scale, rotation and translation, row packed 3x4 matrices
+        final double[] fused = new double[12];
+        final double[] fusedInverse = new double[12];
 
-        double rxRad = rx;// Math.PI * rx/360.0; // factor 2 because quaternions
-        double ryRad = ry;// Math.PI * ry/360.0; // factor 2 because quaternions
-        double rzRad = rz;// Math.PI * rz/360.0; // factor 2 because quaternions
+        public Parameters(double r1, double r2, double r3,
+                          double rx, double ry, double rz,
+                          double tx, double ty, double tz) {
+            this.r1 = r1;
+            this.r2 = r2;
+            this.r3 = r3;
+            this.rx = rx;
+            this.ry = ry;
+            this.rz = rz;
+            this.tx = tx;
+            this.ty = ty;
+            this.tz = tz;
 
-        double[] qx = new double[4];
+            double rxRad = rx;// Math.PI * rx/360.0; // factor 2 because quaternions
+            double ryRad = ry;// Math.PI * ry/360.0; // factor 2 because quaternions
+            double rzRad = rz;// Math.PI * rz/360.0; // factor 2 because quaternions
 
-        qx[0] = Math.cos(rxRad);
-        qx[1] = Math.sin(rxRad);
-        qx[2] = 0;
-        qx[3] = 0;
+            double[] qx = new double[4];
 
-        double[] qy = new double[4];
+            qx[0] = Math.cos(rxRad);
+            qx[1] = Math.sin(rxRad);
+            qx[2] = 0;
+            qx[3] = 0;
 
-        qy[0] = Math.cos(ryRad);
-        qy[1] = 0;
-        qy[2] = Math.sin(ryRad);
-        qy[3] = 0;
+            double[] qy = new double[4];
 
-        double[] qz = new double[4];
+            qy[0] = Math.cos(ryRad);
+            qy[1] = 0;
+            qy[2] = Math.sin(ryRad);
+            qy[3] = 0;
 
-        qz[0] = Math.cos(rzRad);
-        qz[1] = 0;
-        qz[2] = 0;
-        qz[3] = Math.sin(rzRad);
+            double[] qz = new double[4];
 
-        double[] qXY = new double[4];
+            qz[0] = Math.cos(rzRad);
+            qz[1] = 0;
+            qz[2] = 0;
+            qz[3] = Math.sin(rzRad);
 
-        LinAlgHelpers.quaternionMultiply(qy, qx, qXY);
+            double[] qXY = new double[4];
 
-        double[] qRes = new double[4];
+            LinAlgHelpers.quaternionMultiply(qy, qx, qXY);
 
-        LinAlgHelpers.quaternionMultiply(qz, qXY, qRes);
+            double[] qRes = new double[4];
 
-        double[][] m = new double[3][3];
+            LinAlgHelpers.quaternionMultiply(qz, qXY, qRes);
 
-        AffineTransform3D rotMatrix = new AffineTransform3D();
+            LinAlgHelpers.quaternionToR(qRes, rotation);
 
-        LinAlgHelpers.quaternionToR(qRes, m);
+            double[][] m = rotation;
 
-        rot3D.set(m[0][0], m[0][1], m[0][2], 0,
-                m[1][0], m[1][1], m[1][2], 0,
-                m[2][0], m[2][1], m[2][2], 0);
+            // Fused forward matrix : translation * rotation * scale
+            double[] radii = new double[]{r1, r2, r3};
+            double[] translation = new double[]{tx, ty, tz};
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    fused[4 * i + j] = m[i][j] * radii[j];
+                }
+                fused[4 * i + 3] = translation[i];
+            }
 
+            // Fused inverse matrix : the rotation is orthonormal, so its inverse is its transpose
+            for (int i = 0; i < 3; i++) {
+                double t = 0;
+                for (int j = 0; j < 3; j++) {
+                    fusedInverse[4 * i + j] = m[j][i] / radii[i];
+                    t -= fusedInverse[4 * i + j] * translation[j];
+                }
+                fusedInverse[4 * i + 3] = t;
+            }
+        }
 
-        updateNotifiers.forEach(c -> {
-            c.run();
-        });
+        /**
+         * @return a copy of the rotation matrix
+         */
+        public double[][] getRotation() {
+            double[][] copy = new double[3][];
+            for (int i = 0; i < 3; i++) copy[i] = rotation[i].clone();
+            return copy;
+        }
 
-    }
+        /**
+         * Analytic derivatives of the rotation matrix with respect to rx, ry and rz, used
+         * by gradient based optimizers
+         *
+         * @return dR / drx, dR / dry and dR / drz
+         */
+        public double[][][] getRotationDerivatives() {
+            double[] qx = new double[]{Math.cos(rx), Math.sin(rx), 0, 0};
+            double[] qy = new double[]{Math.cos(ry), 0, Math.sin(ry), 0};
+            double[] qz = new double[]{Math.cos(rz), 0, 0, Math.sin(rz)};
+
+            double[] dqx = new double[]{-Math.sin(rx), Math.cos(rx), 0, 0};
+            double[] dqy = new double[]{-Math.sin(ry), 0, Math.cos(ry), 0};
+            double[] dqz = new double[]{-Math.sin(rz), 0, 0, Math.cos(rz)};
+
+            double[] q = new double[4];
+            double[] tmp = new double[4];
+            double[][][] dR = new double[3][3][3];
+
+            // q = qz * qy * qx, derivative of each factor in turn
+            LinAlgHelpers.quaternionMultiply(qy, qx, tmp);
+            LinAlgHelpers.quaternionMultiply(qz, tmp, q);
+
+            double[] dq = new double[4];
+            LinAlgHelpers.quaternionMultiply(qy, dqx, tmp);
+            LinAlgHelpers.quaternionMultiply(qz, tmp, dq);
+            quaternionToRDerivative(q, dq, dR[0]);
+
+            dq = new double[4];
+            LinAlgHelpers.quaternionMultiply(dqy, qx, tmp);
+            LinAlgHelpers.quaternionMultiply(qz, tmp, dq);
+            quaternionToRDerivative(q, dq, dR[1]);
+
+            dq = new double[4];
+            LinAlgHelpers.quaternionMultiply(qy, qx, tmp);
+            LinAlgHelpers.quaternionMultiply(dqz, tmp, dq);
+            quaternionToRDerivative(q, dq, dR[2]);
+
+            return dR;
+        }
 
-    @Override
-    public void applyInverse(double[] source, double[] target) {
-        rtsi.apply(source, target);
-    }
+        /**
+         * Derivative of {@link LinAlgHelpers#quaternionToR(double[], double[][])} along dq
+         */
+        static void quaternionToRDerivative(double[] q, double[] dq, double[][] dR) {
+            final double w = q[0], x = q[1], y = q[2], z = q[3];
+            final double dw = dq[0], dx = dq[1], dy = dq[2], dz = dq[3];
 
-    @Override
-    public void applyInverse(RealPositionable source, RealLocalizable target) {
-        rtsi.apply(target, source);
-    }
+            dR[0][0] = 2 * (w * dw + x * dx - y * dy - z * dz);
+            dR[0][1] = 2 * (x * dy + dx * y - w * dz - dw * z);
+            dR[0][2] = 2 * (x * dz + dx * z + w * dy + dw * y);
 
-    private final InverseRealTransform inverse;
+            dR[1][0] = 2 * (y * dx + dy * x + w * dz + dw * z);
+            dR[1][1] = 2 * (w * dw - x * dx + y * dy - z * dz);
+            dR[1][2] = 2 * (y * dz + dy * z - w * dx - dw * x);
 
-    @Override
-    public InvertibleRealTransform inverse() {
-        return inverse;
-    }
+            dR[2][0] = 2 * (z * dx + dz * x - w * dy - dw * y);
+            dR[2][1] = 2 * (z * dy + dz * y + w * dx + dw * x);
+            dR[2][2] = 2 * (w * dw - x * dx - y * dy + z * dz);
+        }
 
-    @Override
-    public int numSourceDimensions() {
-        return 3;
-    }
+        /**
+         * @param changes parameters to change, by name, see {@link Elliptical3DTransform#getParamsName()}
+         * @return new parameters, equal to these parameters except for the changed values
+         */
+        public Parameters with(Map<String, Double> changes) {
+            Map<String, Double> map = toMap();
+            changes.forEach((k, v) -> {
+                if (map.containsKey(k)) map.put(k, v);
+            });
+            return new Parameters(map.get("r1"), map.get("r2"), map.get("r3"),
+                    map.get("rx"), map.get("ry"), map.get("rz"),
+                    map.get("tx"), map.get("ty"), map.get("tz"));
+        }
 
-    @Override
-    public int numTargetDimensions() {
-        return 3;
-    }
+        RealTransformSequence toTransformSequence() {
+            RealTransformSequence sequence = new RealTransformSequence();
+            sequence.add(SphericalToCartesianTransform3D.getInstance());
+            sequence.add(new Scale3D(r1, r2, r3));
+            sequence.add(rotationTransform());
+            sequence.add(new Translation3D(tx, ty, tz));
+            return sequence;
+        }
 
-    @Override
-    public void apply(double[] source, double[] target) {
-        rts.apply(source, target);
-    }
+        RealTransformSequence toInverseTransformSequence() {
+            RealTransformSequence sequence = new RealTransformSequence();
+            sequence.add(new Translation3D(tx, ty, tz).inverse());
+            sequence.add(rotationTransform().inverse());
+            sequence.add(new Scale3D(r1, r2, r3).inverse());
+            sequence.add(SphericalToCartesianTransform3D.getInstance().inverse());
+            return sequence;
+        }
 
-    @Override
-    public void apply(RealLocalizable source, RealPositionable target) {
-        rts.apply(source, target);
-    }
+        AffineTransform3D rotationTransform() {
+            AffineTransform3D rot = new AffineTransform3D();
+            double[][] m = rotation;
+            rot.set(m[0][0], m[0][1], m[0][2], 0,
+                    m[1][0], m[1][1], m[1][2], 0,
+                    m[2][0], m[2][1], m[2][2], 0);
+            return rot;
+        }
 
-    @Override
-    public Elliptical3DTransform copy() {
-        final Elliptical3DTransform copy = new Elliptical3DTransform();
-        copy.rts = rts.copy();
-        copy.rtsi = rtsi.copy();
-        return copy;
+        public Map<String, Double> toMap() {
+            Map<String, Double> map = new LinkedHashMap<>();
+            map.put("r1", r1);
+            map.put("r2", r2);
+            map.put("r3", r3);
+
+            map.put("rx", rx);
+            map.put("ry", ry);
+            map.put("rz", rz);
+
+            map.put("tx", tx);
+            map.put("ty", ty);
+            map.put("tz", tz);
+            return map;
+        }
     }
 
 }
@@ -0,0 +1,99 @@
+package bdv.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Parameters of an {@link Elliptical3DTransform} which vary over time.
+ *
+ * The track is made of keyframes : the parameters of a keyframe timepoint are the ones
+ * which were set, the parameters of other timepoints are linearly interpolated between the
+ * surrounding keyframes, or equal to the first (or last) keyframe before (or after) all keyframes.
+ * Without any keyframe, the parameters of the default transform are used.
+ *
+ * Keyframes can be set while the track is being read, for instance while a time-lapse
+ * is fitted frame by frame and displayed.
+ */
+public class Elliptical3DTransformTrack {
+
+    final NavigableMap<Integer, Elliptical3DTransform.Parameters> keyframes = new ConcurrentSkipListMap<>();
+
+    final Elliptical3DTransform.Parameters defaultParameters = new Elliptical3DTransform().getParametersSnapshot();
+
+    // Notified from the thread which sets the keyframes, while displays add and remove their notifiers
+    final List<Runnable> updateNotifiers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param notifier runnable called each time a keyframe is set or removed
+     */
+    public void addUpdateNotifier(Runnable notifier) {
+        updateNotifiers.add(notifier);
+    }
+
+    /**
+     * @param notifier notifier to remove, it can be removed while the notifiers are being called
+     */
+    public void removeUpdateNotifier(Runnable notifier) {
+        updateNotifiers.remove(notifier);
+    }
+
+    /**
+     * Sets the parameters of a keyframe, parameters which are not set are taken from
+     * the current parameters at this timepoint
+     *
+     * @param timepoint keyframe timepoint
+     * @param parameters parameters by name, see {@link Elliptical3DTransform#getParamsName()}
+     */
+    public void setKeyframe(int timepoint, Map<String, Double> parameters) {
+        keyframes.put(timepoint, getParameters(timepoint).with(parameters));
+        updateNotifiers.forEach(Runnable::run);
+    }
+
+    public void removeKeyframe(int timepoint) {
+        keyframes.remove(timepoint);
+        updateNotifiers.forEach(Runnable::run);
+    }
+
+    /**
+     * @return the keyframe timepoints, in increasing order
+     */
+    public ArrayList<Integer> getKeyframes() {
+        return new ArrayList<>(keyframes.keySet());
+    }
+
+    /**
+     * @param timepoint timepoint
+     * @return the parameters at this timepoint, interpolated between keyframes if needed
+     */
+    public Elliptical3DTransform.Parameters getParameters(int timepoint) {
+        Map.Entry<Integer, Elliptical3DTransform.Parameters> before = keyframes.floorEntry(timepoint);
+        Map.Entry<Integer, Elliptical3DTransform.Parameters> after = keyframes.ceilingEntry(timepoint);
+        if ((before == null) && (after == null)) return defaultParameters;
+        if (before == null) return after.getValue();
+        if ((after == null) || (before.getKey().equals(after.getKey()))) return before.getValue();
+        double f = (double) (timepoint - before.getKey()) / (double) (after.getKey() - before.getKey());
+        return interpolate(before.getValue(), after.getValue(), f);
+    }
+
+    /**
+     * @param timepoint timepoint
+     * @return a new transform with the parameters at this timepoint, which does not follow later changes of the track
+     */
+    public Elliptical3DTransform getTransform(int timepoint) {
+        Elliptical3DTransform transform = new Elliptical3DTransform();
+        transform.setParameters(getParameters(timepoint).toMap());
+        return transform;
+    }
+
+    static Elliptical3DTransform.Parameters interpolate(Elliptical3DTransform.Parameters a, Elliptical3DTransform.Parameters b, double f) {
+        return new Elliptical3DTransform.Parameters(
+                a.r1 + f * (b.r1 - a.r1), a.r2 + f * (b.r2 - a.r2), a.r3 + f * (b.r3 - a.r3),
+                a.rx + f * (b.rx - a.rx), a.ry + f * (b.ry - a.ry), a.rz + f * (b.rz - a.rz),
+                a.tx + f * (b.tx - a.tx), a.ty + f * (b.ty - a.ty), a.tz + f * (b.tz - a.tz));
+    }
+
+}
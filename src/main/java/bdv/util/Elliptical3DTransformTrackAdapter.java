@@ -0,0 +1,53 @@
+package bdv.util;
+
+import com.google.gson.*;
+import org.scijava.plugin.Plugin;
+import sc.fiji.persist.IClassAdapter;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * Adapter of {@link Elliptical3DTransformTrack} class
+ *
+ * Only the keyframes are serialized, with their parameters by name, see {@link Elliptical3DTransform#getParamsName()}.
+ * Interpolated timepoints are computed again from the keyframes on deserialization.
+ */
+@Plugin(type = IClassAdapter.class)
+public class Elliptical3DTransformTrackAdapter implements IClassAdapter<Elliptical3DTransformTrack> {
+
+    @Override
+    public Class<? extends Elliptical3DTransformTrack> getAdapterClass() {
+        return Elliptical3DTransformTrack.class;
+    }
+
+    @Override
+    public Elliptical3DTransformTrack deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
+        JsonObject obj = jsonElement.getAsJsonObject();
+
+        Elliptical3DTransformTrack track = new Elliptical3DTransformTrack();
+
+        if (!obj.has("keyframes")) return track; // Default parameters only
+
+        JsonObject keyframes = obj.getAsJsonObject("keyframes");
+        for (Map.Entry<String, JsonElement> keyframe : keyframes.entrySet()) {
+            Map<String, Double> params = jsonDeserializationContext.deserialize(keyframe.getValue(), Map.class);
+            track.setKeyframe(Integer.parseInt(keyframe.getKey()), params);
+        }
+
+        return track;
+    }
+
+    @Override
+    public JsonElement serialize(Elliptical3DTransformTrack track, Type type, JsonSerializationContext jsonSerializationContext) {
+        JsonObject obj = new JsonObject();
+
+        JsonObject keyframes = new JsonObject();
+        for (int timepoint : track.getKeyframes()) {
+            keyframes.add(Integer.toString(timepoint), jsonSerializationContext.serialize(track.getParameters(timepoint).toMap()));
+        }
+        obj.add("keyframes", keyframes);
+
+        return obj;
+    }
+}
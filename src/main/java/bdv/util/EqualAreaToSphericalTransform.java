@@ -0,0 +1,68 @@
+package bdv.util;
+
+import ch.epfl.biop.sourceandconverter.transform.SphericalLattice;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+/**
+ * Maps (r, cos(theta), phi) to the spherical coordinates (r, theta, phi) used by
+ * {@link Elliptical3DTransform}.
+ *
+ * Sampling the second coordinate regularly gives a Lambert cylindrical equal-area
+ * projection : all pixels of an exported map cover the same area of the sphere, instead
+ * of oversampling the poles as with a regular theta sampling. The rows are spaced as in
+ * {@link SphericalLattice#equalArea(double, double, double, double, double)}.
+ */
+public class EqualAreaToSphericalTransform implements InvertibleRealTransform {
+
+    @Override
+    public int numSourceDimensions() {
+        return 3;
+    }
+
+    @Override
+    public int numTargetDimensions() {
+        return 3;
+    }
+
+    @Override
+    public void apply(double[] source, double[] target) {
+        target[0] = source[0];
+        target[1] = SphericalLattice.getEqualAreaTheta(source[1]);
+        target[2] = source[2];
+    }
+
+    @Override
+    public void apply(RealLocalizable source, RealPositionable target) {
+        target.setPosition(source.getDoublePosition(0), 0);
+        target.setPosition(SphericalLattice.getEqualAreaTheta(source.getDoublePosition(1)), 1);
+        target.setPosition(source.getDoublePosition(2), 2);
+    }
+
+    @Override
+    public void applyInverse(double[] source, double[] target) {
+        source[0] = target[0];
+        source[1] = Math.cos(target[1]);
+        source[2] = target[2];
+    }
+
+    @Override
+    public void applyInverse(RealPositionable source, RealLocalizable target) {
+        source.setPosition(target.getDoublePosition(0), 0);
+        source.setPosition(Math.cos(target.getDoublePosition(1)), 1);
+        source.setPosition(target.getDoublePosition(2), 2);
+    }
+
+    @Override
+    public InvertibleRealTransform inverse() {
+        return new InverseRealTransform(this);
+    }
+
+    @Override
+    public EqualAreaToSphericalTransform copy() {
+        return this; // Stateless
+    }
+
+}
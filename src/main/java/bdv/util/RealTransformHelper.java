@@ -20,6 +20,10 @@ public class RealTransformHelper {
             //System.out.println(file.getAbsolutePath());
             file.deleteOnExit();
 
+            if (rt instanceof CachedDisplacementFieldTransform) {
+                rt = ((CachedDisplacementFieldTransform)rt).getTransform();
+            }
+
             if (rt instanceof Wrapped2DTransformAs3D) {
                 rt = ((Wrapped2DTransformAs3D)rt).transform;
             }
@@ -136,6 +136,24 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
     }
 
     private SourceAndConverter<?> createModelSource() {
+        return createModelSource(bdv_h, capturename, xsize, ysize, zsize, samplingxyinphysicalunit, samplingzinphysicalunit);
+    }
+
+    /**
+     * Creates an empty source which is centered on a bdv window and oriented like it
+     * @param bdv_h bdv window
+     * @param name name of the model source
+     * @param xsize total size in x (physical unit)
+     * @param ysize total size in y (physical unit)
+     * @param zsize half thickness in z (physical unit)
+     * @param samplingxyinphysicalunit xy pixel size (physical unit)
+     * @param samplingzinphysicalunit z pixel size (physical unit)
+     * @return a model source which can be used to resample other sources
+     */
+    public static SourceAndConverter<?> createModelSource(BdvHandle bdv_h, String name,
+                                                          double xsize, double ysize, double zsize,
+                                                          double samplingxyinphysicalunit,
+                                                          double samplingzinphysicalunit) {
         // Origin is in fact the point 0,0,0 of the image
         // Get current big dataviewer transformation : source transform and viewer transform
         AffineTransform3D at3D = new AffineTransform3D(); // Empty Transform
@@ -167,7 +185,7 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
         if (nPx == 0) nPx = 1;
         if (nPy == 0) nPy = 1;
 
-        return new EmptySourceAndConverterCreator(capturename, at3D.inverse(), nPx, nPy, nPz).get();
+        return new EmptySourceAndConverterCreator(name, at3D.inverse(), nPx, nPy, nPz).get();
     }
 
     /**
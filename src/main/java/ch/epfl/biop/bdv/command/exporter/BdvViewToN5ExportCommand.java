@@ -0,0 +1,144 @@
+package ch.epfl.biop.bdv.command.exporter;
+
+import bdv.util.BdvHandle;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
+import ch.epfl.biop.sourceandconverter.exporter.N5Exporter;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.scijava.ItemVisibility;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
+import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Export sources resampled according to the orientation of a bdv window
+ * into a multiresolution N5 container, see {@link N5Exporter}
+ *
+ * Contrary to {@link BdvViewToImagePlusExportCommand}, the size of the export
+ * is not limited by ImageJ1 (2^31 pixels per plane) nor by the RAM.
+ *
+ * Running the command again with the same parameters resumes an interrupted export. The export
+ * is refused if the container holds an export of other sources, transforms or range.
+ */
+
+@Plugin(type = BdvPlaygroundActionCommand.class,
+        menuPath = ScijavaBdvDefaults.RootMenu+"Sources>Export>Current BDV View To N5")
+public class BdvViewToN5ExportCommand implements BdvPlaygroundActionCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(BdvViewToN5ExportCommand.class);
+
+    @Parameter(label = "BigDataViewer Frame")
+    public BdvHandle bdv_h;
+
+    @Parameter(label = "Capture Name")
+    String capturename = "Capture_00";
+
+    @Parameter(required = false)
+    SourceAndConverter[] sacs;
+
+    @Parameter(label = "Output N5 folder", style = "directory")
+    File n5folder;
+
+    @Parameter(label = "Total Size X (physical unit)")
+    public double xsize = 100;
+
+    @Parameter(label = "Total Size Y (physical unit)")
+    public double ysize = 100;
+
+    @Parameter(label = "Half Thickness Z (above and below, physical unit, 0 for a single slice)")
+    public double zsize = 100;
+
+    @Parameter( label = "Select Range", visibility = ItemVisibility.MESSAGE, persist = false, required = false)
+    String range = "You can use commas or colons to separate ranges. eg. '1:10' or '1,3,5,8' ";
+
+    @Parameter( label = "Selected Timepoints. Leave blank for all", required = false )
+    private String selected_timepoints_str = "";
+
+    @Parameter(label = "XY Pixel size sampling (physical unit)")
+    public double samplingxyinphysicalunit = 1;
+
+    @Parameter(label = "Z Pixel size sampling (physical unit)")
+    public double samplingzinphysicalunit = 1;
+
+    @Parameter(label = "Interpolate")
+    public boolean interpolate = true;
+
+    @Parameter(label = "Block size XY (pixels)")
+    public int blocksizexy = 256;
+
+    @Parameter(label = "Block size Z (pixels)")
+    public int blocksizez = 16;
+
+    @Parameter(label = "Number of resolution levels")
+    public int numberoflevels = 4;
+
+    @Parameter(label = "Compression", choices = {"Gzip", "Raw"})
+    public String compression = "Gzip";
+
+    @Parameter(label = "Number of threads")
+    public int nthreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter( label = "Monitor exported data")
+    private Boolean monitor = true;
+
+    @Override
+    public void run() {
+
+        // At least one source
+        if ((sacs==null)||(sacs.length==0)) {
+            logger.info("No selected source. Abort command.");
+            return;
+        }
+
+        SourceAndConverter<?> model = BdvViewToImagePlusExportCommand.createModelSource(bdv_h, capturename,
+                xsize, ysize, zsize, samplingxyinphysicalunit, samplingzinphysicalunit);
+
+        Compression n5Compression;
+        switch (compression) {
+            case "Gzip":
+                n5Compression = new GzipCompression();
+                break;
+            case "Raw":
+                n5Compression = new RawCompression();
+                break;
+            default: throw new UnsupportedOperationException("Unrecognized compression "+compression);
+        }
+
+        try {
+            int maxTimeFrames = SourceAndConverterHelper.getMaxTimepoint(sacs);
+            int maxZSlices = (int) model.getSpimSource().getSource(0,0).dimension(2);
+
+            CZTRange range = new CZTRange.Builder()
+                    .setT(selected_timepoints_str)
+                    .get(sacs.length, maxZSlices, maxTimeFrames);
+
+            N5Exporter.exportResampled(capturename,
+                    Arrays.asList(sacs),
+                    model,
+                    interpolate,
+                    range,
+                    n5folder.getAbsolutePath(),
+                    new int[]{blocksizexy, blocksizexy, blocksizez},
+                    numberoflevels,
+                    n5Compression,
+                    nthreads,
+                    monitor);
+
+        } catch (UnsupportedOperationException e) {
+            logger.error(e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+}
@@ -3,6 +3,7 @@ package ch.epfl.biop.bdv.command.exporter;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
 import ch.epfl.biop.sourceandconverter.exporter.ImagePlusGetter;
+import ch.epfl.biop.sourceandconverter.exporter.PlaneCache;
 import ij.ImagePlus;
 import org.scijava.ItemIO;
 import org.scijava.ItemVisibility;
@@ -43,6 +44,9 @@ public class ExportToImagePlusCommand implements BdvPlaygroundActionCommand {
     @Parameter( label = "Export mode", choices = {"Normal", "Virtual", "Virtual no-cache"}, required = false )
     String export_mode = "Non virtual";
 
+    @Parameter( label = "Virtual cache size (% of max memory)", min = "1", max = "90", required = false )
+    int cache_size_percent = 25;
+
     @Parameter( label = "Monitor loaded data")
     Boolean monitor = false;
 
@@ -79,7 +83,8 @@ public class ExportToImagePlusCommand implements BdvPlaygroundActionCommand {
                 imp_out = ImagePlusGetter.getImagePlus(name, sources, level, range, monitor);
                 break;
             case "Virtual":
-                imp_out = ImagePlusGetter.getVirtualImagePlus(name, sources, level, range, true, monitor);
+                imp_out = ImagePlusGetter.getVirtualImagePlus(name, sources, level, range,
+                        PlaneCache.fractionOfMaxMemory(cache_size_percent / 100.0), monitor);
                 break;
             case "Virtual no-cache":
                 imp_out = ImagePlusGetter.getVirtualImagePlus(name, sources, level, range, false, false);
@@ -7,6 +7,8 @@ import ch.epfl.biop.bdv.command.OverviewerCommand;
 import ch.epfl.biop.operetta.utils.HyperRange;
 import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
 import ch.epfl.biop.sourceandconverter.exporter.ImagePlusGetter;
+import ch.epfl.biop.sourceandconverter.exporter.PlaneCache;
+import ch.epfl.biop.sourceandconverter.exporter.PlaneDeduplicator;
 import ij.ImagePlus;
 import mpicbg.spim.data.generic.base.Entity;
 import mpicbg.spim.data.sequence.Angle;
@@ -166,6 +168,9 @@ public class ExportToMultipleImagePlusCommand implements BdvPlaygroundActionComm
 
         int timepointbegin = 0;
 
+        // Planes shared between exported images are computed only once
+        PlaneDeduplicator deduplicator = new PlaneDeduplicator();
+
         sortedSacs.forEach(sacKey -> { // .parallel()
 
             AffineTransform3D at3d = new AffineTransform3D();
@@ -195,10 +200,12 @@ public class ExportToMultipleImagePlusCommand implements BdvPlaygroundActionComm
 
                 switch (export_mode) {
                     case "Normal":
-                        imp_out = ImagePlusGetter.getImagePlus(name, sources, level, range, monitor);
+                        imp_out = ImagePlusGetter.getImagePlus(name, sources, level, range, monitor, deduplicator);
                         break;
                     case "Virtual":
-                        imp_out = ImagePlusGetter.getVirtualImagePlus(name, sources, level, range, true, monitor);
+                        // The memory available for caching is split between all exported images
+                        imp_out = ImagePlusGetter.getVirtualImagePlus(name, sources, level, range,
+                                PlaneCache.fractionOfMaxMemory(PlaneCache.DEFAULT_MAX_MEMORY_FRACTION / sortedSacs.size()), monitor);
                         break;
                     case "Virtual no-cache":
                         imp_out = ImagePlusGetter.getVirtualImagePlus(name, sources, level, range, false, false);
@@ -0,0 +1,84 @@
+package ch.epfl.biop.bdv.command.exporter;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
+import ch.epfl.biop.sourceandconverter.exporter.TiffStreamExporter;
+import org.scijava.ItemVisibility;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
+import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+@Plugin(type = BdvPlaygroundActionCommand.class, menuPath = ScijavaBdvDefaults.RootMenu+"Sources>Export>Export Sources To TIFF File (ignore location)")
+public class ExportToTiffCommand implements BdvPlaygroundActionCommand {
+
+    @Parameter(label = "Sources to export")
+    public SourceAndConverter[] sacs;
+
+    @Parameter(label = "Exported Image Name")
+    public String name = "Image_00";
+
+    @Parameter(label = "Output file (.tif or .ome.tif)", style = "save")
+    public File file;
+
+    @Parameter(label = "Resolution level (0 = highest)")
+    public int level;
+
+    @Parameter( label = "Select Range", visibility = ItemVisibility.MESSAGE, persist = false, required = false)
+    String range = "You can use commas or colons to separate ranges. eg. '1:10' or '1,3,5,8' ";
+
+    @Parameter( label = "Selected Channels. Leave blank for all", required = false )
+    String range_channels = "";
+
+    @Parameter( label = "Selected Slices. Leave blank for all", required = false )
+    String range_slices = "";
+
+    @Parameter( label = "Selected Timepoints. Leave blank for all", required = false )
+    String range_frames = "";
+
+    @Parameter( label = "Save as BigTIFF (forced above 4Gb)")
+    Boolean bigtiff = false;
+
+    @Parameter( label = "Monitor exported data")
+    Boolean monitor = false;
+
+    @Override
+    public void run() {
+
+        List<SourceAndConverter> sources = sorter.apply(Arrays.asList(sacs));
+
+        int maxTimeFrames = SourceAndConverterHelper.getMaxTimepoint(sacs);
+
+        int maxZSlices = (int) sacs[0].getSpimSource().getSource(0,level).dimension(2);
+
+        CZTRange range;
+
+        try {
+            range = new CZTRange.Builder()
+                    .setC(range_channels)
+                    .setZ(range_slices)
+                    .setT(range_frames)
+                    .get(sacs.length, maxZSlices,maxTimeFrames);
+        } catch (Exception e) {
+            System.err.println("Invalid range "+e.getMessage());
+            return;
+        }
+
+        try {
+            TiffStreamExporter.export(name, sources, level, range, file, bigtiff, monitor);
+        } catch (Exception e) {
+            System.err.println("Could not export "+name+" to "+file.getAbsolutePath()+" : "+e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public Function<Collection<SourceAndConverter>,List<SourceAndConverter>> sorter = sacslist -> SourceAndConverterHelper.sortDefaultNoGeneric(sacslist);
+
+}
@@ -1,6 +1,7 @@
 package ch.epfl.biop.bdv.command.register;
 
 import ch.epfl.biop.sourceandconverter.register.Elastix2DAffineRegister;
+import ch.epfl.biop.sourceandconverter.register.RegistrationPlanner;
 import ch.epfl.biop.wrappers.elastix.RegParamAffine_Fast;
 import ch.epfl.biop.wrappers.elastix.RegisterHelper;
 import ch.epfl.biop.wrappers.elastix.RegistrationParameters;
@@ -46,19 +47,7 @@ public class Elastix2DAffineRegisterCommand extends AbstractElastix2DRegistratio
 
         double maxSize = Math.min(sx/pxSizeInCurrentUnit,sy/pxSizeInCurrentUnit);
 
-        int nScales = 0;
-
-        while (Math.pow(2,nScales)<maxSize) {
-            nScales++;
-        }
-
-        int nScalesSkipped = 0;
-
-        while (Math.pow(2,nScalesSkipped)<minPixSize) {
-            nScalesSkipped++;
-        }
-
-        rp.NumberOfResolutions = Math.max(1,nScales-nScalesSkipped); // Starts with 2^nScalesSkipped pixels
+        rp.NumberOfResolutions = RegistrationPlanner.getNumberOfResolutions(maxSize, minPixSize); // Starts with about minPixSize pixels
 
         rp.BSplineInterpolationOrder = 1;
         rp.MaximumNumberOfIterations = maxIterationNumberPerScale;
@@ -1,5 +1,8 @@
 package ch.epfl.biop.bdv.command.register;
 
+import bdv.util.CachedDisplacementFieldTransform;
+import ch.epfl.biop.scijava.CommandHelper;
+import ch.epfl.biop.sourceandconverter.register.PatchRegistrationScheduler;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
@@ -8,6 +11,7 @@ import net.imglib2.realtransform.Wrapped2DTransformAs3D;
 import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
 import org.scijava.ItemIO;
 import org.scijava.command.CommandService;
+import org.scijava.module.Module;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.slf4j.Logger;
@@ -16,10 +20,8 @@ import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
 import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
 
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.List;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
 
 @Plugin(type = BdvPlaygroundActionCommand.class,
         menuPath = ScijavaBdvDefaults.RootMenu+"Sources>Register>AutoWarp Sources with Elastix and BigWarp (2D)",
@@ -51,9 +53,21 @@ public class Elastix2DSparsePointsRegisterCommand extends SelectSourcesForRegist
     @Parameter(type = ItemIO.OUTPUT)
     RealTransform tst;
 
+    @Parameter(label = "Cache the warp as a displacement field, grid spacing in physical units (0 = no cache)", required = false)
+    double displacementFieldSpacing = 0;
+
     @Parameter(label = "Parallel registration of points of interests")
     boolean parallel;
 
+    @Parameter(label = "Number of parallel registrations (0 = number of processors)", required = false)
+    int nParallelRegistrations = 0;
+
+    @Parameter(label = "Max number of attempts per point of interest", required = false)
+    int maxAttemptsPerPoint = 2;
+
+    @Parameter(label = "Timeout of each point of interest registration in seconds (0 = no timeout)", required = false)
+    double timeoutPerPointInS = 0;
+
     @Parameter(label = "Show point of interests registration in ImageJ1 (disables parallelisation)")
     boolean showPoints;
 
@@ -89,69 +103,52 @@ public class Elastix2DSparsePointsRegisterCommand extends SelectSourcesForRegist
             pts_Fixed.add(new RealPoint(Double.valueOf(coordsXY[i]),Double.valueOf(coordsXY[i+1]),zLocation));
         }
 
-        Stream<RealPoint> streamOfPts;
+        int nWorkers = parallel ? nParallelRegistrations : 1;
+        if (nWorkers <= 0) nWorkers = Runtime.getRuntime().availableProcessors();
+
+        PatchRegistrationScheduler<RealPoint, RealPoint> scheduler =
+                new PatchRegistrationScheduler<>(nWorkers, maxAttemptsPerPoint, (long) (timeoutPerPointInS * 1000), log);
 
-        if (parallel) {
-            streamOfPts = pts_Fixed.parallelStream();
-        } else {
-            streamOfPts = pts_Fixed.stream();
+        List<RealPoint> pts_Moving;
+        try {
+            pts_Moving = scheduler.run(pts_Fixed, this::registerPoint);
+        } catch (InterruptedException e) {
+            logger.error("Registration of points of interests interrupted");
+            Thread.currentThread().interrupt();
+            return;
         }
 
-        ConcurrentHashMap<RealPoint, RealPoint> correspondingPts = new ConcurrentHashMap<>();
-
-        streamOfPts.forEach(pt -> {
-            try {
-                AffineTransform3D at = (AffineTransform3D) cs.run(Elastix2DAffineRegisterCommand.class,true,
-                        "sac_fixed", sac_fixed,
-                        "tpFixed", tpFixed,
-                        "levelFixedSource", levelFixedSource,
-                        "sac_moving", sac_moving,
-                        "tpMoving", tpMoving,
-                        "levelMovingSource", levelMovingSource,
-                        "px", pt.getDoublePosition(0)-sx/2.0,
-                        "py", pt.getDoublePosition(1)-sy/2.0,
-                        "pz", pt.getDoublePosition(2),
-                        "sx",sx,
-                        "sy",sy,
-                        "pxSizeInCurrentUnit", pxSizeInCurrentUnit,
-                        "interpolate", interpolate,
-                        "showImagePlusRegistrationResult", showPoints,
-                        "automaticTransformInitialization", false,
-                        "maxIterationNumberPerScale", maxIterationNumberPerScale,
-                        "background_offset_value_moving", background_offset_value_moving,
-                        "background_offset_value_fixed", background_offset_value_fixed,
-                        "minPixSize", 32,
-                        "verbose", verbose
-                ).get().getOutput("at3D");
-
-                RealPoint ptCorr = new RealPoint(3);
-                at.apply(pt, ptCorr);
-                correspondingPts.put(pt,ptCorr);
-
-                String str = "xi ="+pt.getDoublePosition(0)+"\t xf ="+ptCorr.getDoublePosition(0)+"\n";
-                str+="yi ="+pt.getDoublePosition(1)+"\t yf ="+ptCorr.getDoublePosition(1);
-                log.accept("Registration point : "+str);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (ExecutionException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                logger.error("Error during registration");
-                e.printStackTrace();
+        List<Integer> failedPoints = scheduler.getFailedPatches();
+        if (!failedPoints.isEmpty()) {
+            logger.warn("Registration failed for "+failedPoints.size()+" point(s) of interest, they are ignored : ");
+            failedPoints.forEach(i -> logger.warn("\t"+pts_Fixed.get(i).getDoublePosition(0)+", "+pts_Fixed.get(i).getDoublePosition(1)));
+        }
+
+        ArrayList<RealPoint> registeredFixed = new ArrayList<>();
+        ArrayList<RealPoint> registeredMoving = new ArrayList<>();
+        for (int i = 0;i<pts_Fixed.size();i++) {
+            if (pts_Moving.get(i)!=null) {
+                registeredFixed.add(pts_Fixed.get(i));
+                registeredMoving.add(pts_Moving.get(i));
             }
-        });
+        }
+
+        if (registeredFixed.isEmpty()) {
+            logger.error("No point of interest could be registered");
+            return;
+        }
 
         // Returns the Thin Plate Spline transform
 
-        double[][] ptI = new double[2][pts_Fixed.size()];
-        double[][] ptF = new double[2][pts_Fixed.size()];
+        double[][] ptI = new double[2][registeredFixed.size()];
+        double[][] ptF = new double[2][registeredFixed.size()];
 
-        for (int i = 0;i<pts_Fixed.size();i++) {
-            ptF[0][i] = pts_Fixed.get(i).getDoublePosition(0);
-            ptF[1][i] = pts_Fixed.get(i).getDoublePosition(1);
+        for (int i = 0;i<registeredFixed.size();i++) {
+            ptF[0][i] = registeredFixed.get(i).getDoublePosition(0);
+            ptF[1][i] = registeredFixed.get(i).getDoublePosition(1);
 
-            ptI[0][i] = correspondingPts.get(pts_Fixed.get(i)).getDoublePosition(0);
-            ptI[1][i] = correspondingPts.get(pts_Fixed.get(i)).getDoublePosition(1);
+            ptI[0][i] = registeredMoving.get(i).getDoublePosition(0);
+            ptI[1][i] = registeredMoving.get(i).getDoublePosition(1);
         }
 
         tst = new Wrapped2DTransformAs3D(
@@ -160,6 +157,57 @@ public class Elastix2DSparsePointsRegisterCommand extends SelectSourcesForRegist
                 )
         );
 
+        if (displacementFieldSpacing > 0) {
+            CachedDisplacementFieldTransform cached = CachedDisplacementFieldTransform.around(
+                    (Wrapped2DTransformAs3D) tst, registeredFixed, Math.max(sx, sy), displacementFieldSpacing);
+            logger.info("Warp cached as a displacement field, max error : forward = "+cached.getMaxForwardError()+", inverse = "+cached.getMaxInverseError());
+            tst = cached;
+        }
+
+    }
+
+    /**
+     * Registers the patch around a point of interest with elastix, in the calling thread
+     *
+     * @param pt point of interest in the fixed source
+     * @return the corresponding point in the moving source
+     */
+    RealPoint registerPoint(RealPoint pt) throws InterruptedException {
+        Module module = CommandHelper.runInCurrentThread(cs.getContext(), Elastix2DAffineRegisterCommand.class,
+                "sac_fixed", sac_fixed,
+                "tpFixed", tpFixed,
+                "levelFixedSource", levelFixedSource,
+                "sac_moving", sac_moving,
+                "tpMoving", tpMoving,
+                "levelMovingSource", levelMovingSource,
+                "px", pt.getDoublePosition(0)-sx/2.0,
+                "py", pt.getDoublePosition(1)-sy/2.0,
+                "pz", pt.getDoublePosition(2),
+                "sx",sx,
+                "sy",sy,
+                "pxSizeInCurrentUnit", pxSizeInCurrentUnit,
+                "interpolate", interpolate,
+                "showImagePlusRegistrationResult", showPoints,
+                "automaticTransformInitialization", false,
+                "maxIterationNumberPerScale", maxIterationNumberPerScale,
+                "background_offset_value_moving", background_offset_value_moving,
+                "background_offset_value_fixed", background_offset_value_fixed,
+                "minPixSize", 32,
+                "verbose", verbose
+        );
+
+        AffineTransform3D at = (AffineTransform3D) module.getOutput("at3D");
+        if (at == null) {
+            throw new IllegalStateException("No transform returned by the registration");
+        }
+
+        RealPoint ptCorr = new RealPoint(3);
+        at.apply(pt, ptCorr);
+
+        String str = "xi ="+pt.getDoublePosition(0)+"\t xf ="+ptCorr.getDoublePosition(0)+"\n";
+        str+="yi ="+pt.getDoublePosition(1)+"\t yf ="+ptCorr.getDoublePosition(1);
+        log.accept("Registration point : "+str);
+        return ptCorr;
     }
 
 }
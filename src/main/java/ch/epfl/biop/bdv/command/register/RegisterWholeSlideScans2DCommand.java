@@ -1,15 +1,18 @@
 package ch.epfl.biop.bdv.command.register;
 
 import bdv.util.BigWarpHelper;
+import bdv.util.CachedDisplacementFieldTransform;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.bdv.bioformats.command.BasicOpenFilesWithBigdataviewerBioformatsBridgeCommand;
+import ch.epfl.biop.scijava.CommandHelper;
+import ch.epfl.biop.sourceandconverter.register.RegistrationPlanner;
 import net.imagej.ImageJ;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.*;
 import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
 import org.scijava.ItemIO;
-import org.scijava.command.CommandModule;
 import org.scijava.command.CommandService;
+import org.scijava.module.Module;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.slf4j.Logger;
@@ -17,11 +20,9 @@ import org.slf4j.LoggerFactory;
 import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
 import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
 import sc.fiji.bdvpg.scijava.command.bdv.BdvSourcesShowCommand;
-import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceAffineTransformer;
 
 import java.util.ArrayList;
-import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
 @Plugin(type = BdvPlaygroundActionCommand.class,
@@ -75,12 +76,38 @@ public class RegisterWholeSlideScans2DCommand implements BdvPlaygroundActionComm
     @Parameter(type = ItemIO.OUTPUT)
     RealTransform tst;
 
+    @Parameter(label = "Cache the warp as a displacement field, grid spacing in physical units (0 = no cache)", required = false)
+    double displacementFieldSpacing = 0;
+
     @Parameter
     boolean verbose;
 
+    @Parameter(label = "Number of parallel registrations of locations of interest (0 = number of processors)", required = false)
+    int nParallelRegistrations = 0;
+
+    @Parameter(label = "Timeout of each location of interest registration in seconds (0 = no timeout)", required = false)
+    double timeoutPerPointInS = 0;
+
+    @Parameter(label = "Max number of pixels of the coarse affine registration (0 = fixed pixel size of 10 microns, for mm units)", required = false)
+    long pixelBudgetAffine = 0;
+
+    @Parameter(label = "Max number of pixels of each location of interest registration (0 = fixed pixel size of 1 micron, for mm units)", required = false)
+    long pixelBudgetPerPatch = 250000;
+
+    @Parameter(label = "Max predicted duration of each registration in seconds (0 = no time budget)", required = false)
+    double timeBudgetPerPatchInS = 0;
+
+    @Parameter(label = "Size of the region registered around each location of interest, in physical units", required = false)
+    double landmarkPatchSize = 0.5;
+
     @Override
     public void run() {
 
+        // Pixel sizes, resolution levels and number of elastix resolutions of each registration
+        // A single planner, so that the durations measured by the first stage correct the predictions of the second one
+        RegistrationPlanner planner = new RegistrationPlanner(pixelBudgetPerPatch > 0 ? pixelBudgetPerPatch : Long.MAX_VALUE,
+                timeBudgetPerPatchInS, maxIterationNumberPerScale, 32);
+
         // Approximate rigid registration
         try {
             AffineTransform3D at1 = new AffineTransform3D();
@@ -89,19 +116,26 @@ public class RegisterWholeSlideScans2DCommand implements BdvPlaygroundActionComm
             if (performFirstCoarseAffineRegistration) {
                 logger.info("----------- First registration - Coarse Affine");
 
-                CommandModule cm = cs.run(Elastix2DAffineRegisterCommand.class, true,
+                double sx = bottomRightX - topLeftX;
+                double sy = bottomRightY - topLeftY;
+                RegistrationPlanner.Plan plan = pixelBudgetAffine > 0 ?
+                        planner.planWithPixelBudget("Coarse affine registration", globalRefSource, currentRefSource, sx, sy, pixelBudgetAffine) :
+                        planner.plan("Coarse affine registration", globalRefSource, currentRefSource, sx, sy, 0.01); // in mm
+
+                long start = System.nanoTime();
+                Module cm = CommandHelper.runInCurrentThread(cs.getContext(), Elastix2DAffineRegisterCommand.class,
                         "sac_fixed", globalRefSource,
                         "tpFixed", 0,
-                        "levelFixedSource", SourceAndConverterHelper.bestLevel(globalRefSource, 0, 0.01),
+                        "levelFixedSource", plan.levelFixed,
                         "sac_moving", currentRefSource,
                         "tpMoving", 0,
-                        "levelMovingSource", SourceAndConverterHelper.bestLevel(currentRefSource, 0, 0.01),
+                        "levelMovingSource", plan.levelMoving,
                         "px", topLeftX,
                         "py", topLeftY,
                         "pz", 0,
-                        "sx", bottomRightX - topLeftX,
-                        "sy", bottomRightY - topLeftY,
-                        "pxSizeInCurrentUnit", 0.01, // in mm
+                        "sx", sx,
+                        "sy", sy,
+                        "pxSizeInCurrentUnit", plan.pixelSize,
                         "interpolate", true,
                         "showImagePlusRegistrationResult", showDetails,
                         "automaticTransformInitialization", false,
@@ -110,7 +144,8 @@ public class RegisterWholeSlideScans2DCommand implements BdvPlaygroundActionComm
                         "background_offset_value_moving", background_offset_value_moving,
                         "background_offset_value_fixed", background_offset_value_fixed,
                         "verbose", verbose
-                ).get();
+                );
+                planner.logActualCost(plan, 1, (System.nanoTime() - start) / 1e9);
                 at1 = (AffineTransform3D) cm.getOutput("at3D");
                 //firstRegSrc = (SourceAndConverter) cm.getOutput("registeredSource");
                 firstRegSrc = new SourceAffineTransformer(at1).apply(currentRefSource);
@@ -119,29 +154,40 @@ public class RegisterWholeSlideScans2DCommand implements BdvPlaygroundActionComm
             logger.info("----------- Precise Warping based on particular locations");
             RealTransform tst_temp = new AffineTransform3D(); // Identity transform applied if no warping
             if (performSecondSplineRegistration) {
+                RegistrationPlanner.Plan plan = pixelBudgetPerPatch > 0 ?
+                        planner.plan("Landmarks registration", globalRefSource, firstRegSrc, landmarkPatchSize, landmarkPatchSize) :
+                        planner.plan("Landmarks registration", globalRefSource, firstRegSrc, landmarkPatchSize, landmarkPatchSize, 0.001); //1 micron per pixel
+
+                int nPoints = ptListCoordinates.split(",").length / 2;
+                int nWorkers = showDetails ? 1 : (nParallelRegistrations > 0 ? nParallelRegistrations : Runtime.getRuntime().availableProcessors());
+
+                long start = System.nanoTime();
                 tst_temp =
-                        (RealTransform) cs.run(Elastix2DSparsePointsRegisterCommand.class, true,
+                        (RealTransform) CommandHelper.runInCurrentThread(cs.getContext(), Elastix2DSparsePointsRegisterCommand.class,
                                 "sac_fixed", globalRefSource,
                                 "sac_moving", firstRegSrc,
                                 "tpFixed", 0,
-                                "levelFixedSource", SourceAndConverterHelper.bestLevel(globalRefSource, 0, 0.001),
+                                "levelFixedSource", plan.levelFixed,
                                 "tpMoving", 0,
-                                "levelMovingSource", SourceAndConverterHelper.bestLevel(firstRegSrc, 0, 0.001),
+                                "levelMovingSource", plan.levelMoving,
                                 "ptListCoordinates", ptListCoordinates,
                                 "zLocation", 0,
-                                "sx", 0.5, // 500 microns
-                                "sy", 0.5, // 500 microns
-                                "pxSizeInCurrentUnit", 0.001, //1 micron per pixel
+                                "sx", landmarkPatchSize,
+                                "sy", landmarkPatchSize,
+                                "pxSizeInCurrentUnit", plan.pixelSize,
                                 "interpolate", true,
                                 "showPoints", showDetails,//true,
                                 "parallel", !showDetails,//false,
+                                "nParallelRegistrations", nParallelRegistrations,
+                                "timeoutPerPointInS", timeoutPerPointInS,
                                 "verbose", verbose,
                                 "maxIterationNumberPerScale", maxIterationNumberPerScale,
                                 "minPixSize", 32,
                                 "background_offset_value_moving", background_offset_value_moving,
                                 "background_offset_value_fixed", background_offset_value_fixed,
                                 "verbose", verbose
-                        ).get().getOutput("tst");
+                        ).getOutput("tst");
+                planner.logActualCost(plan, (nPoints + nWorkers - 1) / nWorkers, (System.nanoTime() - start) / 1e9);
             } else {
                 // Let's put landmarks on each corner in case the user wants to edit the registration later
                 ptListCoordinates  = topLeftX+","+topLeftY+",";
@@ -176,10 +222,17 @@ public class RegisterWholeSlideScans2DCommand implements BdvPlaygroundActionComm
                     )
             );
 
+            if (displacementFieldSpacing > 0) {
+                CachedDisplacementFieldTransform cached = CachedDisplacementFieldTransform.around(
+                        (Wrapped2DTransformAs3D) tst, pts_Fixed, landmarkPatchSize, displacementFieldSpacing);
+                logger.info("Warp cached as a displacement field, max error : forward = "+cached.getMaxForwardError()+", inverse = "+cached.getMaxInverseError());
+                tst = cached;
+            }
+
         } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+            // Lets the caller know that the registration did not end
+            logger.warn("Registration interrupted");
+            Thread.currentThread().interrupt();
         }
 
     }
@@ -1,6 +1,7 @@
 package ch.epfl.biop.bdv.command.transform;
 
 import bdv.util.Elliptical3DTransform;
+import bdv.util.Elliptical3DTransformTrack;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.sourceandconverter.transform.Elliptic3DTransformer;
 import org.scijava.plugin.Parameter;
@@ -14,16 +15,23 @@ import java.util.stream.Collectors;
 @Plugin(type = BdvPlaygroundActionCommand.class, menuPath = ScijavaBdvDefaults.RootMenu+"Sources>Transform>Elliptic 3D Transform Sources")
 public class Elliptic3DTransformerCommand implements BdvPlaygroundActionCommand {
 
-    @Parameter
+    @Parameter(required = false)
     Elliptical3DTransform e3Dt;
 
+    @Parameter(label = "Transform track (time varying parameters, used instead of the transform if set)", required = false)
+    Elliptical3DTransformTrack track;
+
     @Parameter
     SourceAndConverter[] sacs_in;
 
     @Override
     public void run() {
 
-        Elliptic3DTransformer et = new Elliptic3DTransformer(null, e3Dt);
+        if ((track == null) && (e3Dt == null)) {
+            throw new IllegalArgumentException("Either an elliptic transform or a transform track is required");
+        }
+
+        Elliptic3DTransformer et = track != null ? new Elliptic3DTransformer(null, track) : new Elliptic3DTransformer(null, e3Dt);
         Arrays.asList(sacs_in).stream().map(et::apply).collect(Collectors.toList());
 
     }
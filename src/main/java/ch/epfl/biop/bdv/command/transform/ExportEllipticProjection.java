@@ -2,14 +2,17 @@ package ch.epfl.biop.bdv.command.transform;
 
 import bdv.img.WarpedSource;
 import bdv.util.Elliptical3DTransform;
+import bdv.util.EqualAreaToSphericalTransform;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
 import ch.epfl.biop.sourceandconverter.exporter.ImagePlusSampler;
+import ch.epfl.biop.sourceandconverter.transform.PrecomputedGridTransform;
 import ij.IJ;
 import ij.ImagePlus;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.RealTransformSequence;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
@@ -30,6 +33,7 @@ import sc.fiji.persist.ScijavaGsonHelper;
 import spimdata.imageplus.ImagePlusHelper;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -84,6 +88,14 @@ public class ExportEllipticProjection implements Command {
     @Parameter(callback = "validateMessage")
     double angleStep = 0.01;
 
+    /**
+     * Equirectangular : rows regularly spaced in theta, the poles are oversampled.
+     * Equal area : rows regularly spaced in cos(theta), see {@link EqualAreaToSphericalTransform},
+     * all pixels cover the same area of the ellipsoid (up to its anisotropy).
+     */
+    @Parameter(label = "Projection", choices = {"Equirectangular", "Equal area"}, required = false, callback = "validateMessage")
+    String projection = "Equirectangular";
+
     @Parameter(label = "", visibility = ItemVisibility.MESSAGE, required = false, persist = false)
     String exportedImagePlusMessage = "<html><h2>Exported Image Parameters</h2></html>";
 
@@ -164,6 +176,10 @@ public class ExportEllipticProjection implements Command {
         }
         DecimalFormat df = new DecimalFormat("#.00");
         String suffixName = "_R["+df.format(rMin)+"; "+df.format(rMax)+"]_Theta["+df.format(thetaMin)+"; "+df.format(thetaMax)+"]_Phi["+df.format(phiMin)+"; "+df.format(phiMax)+"]";
+        if (isEqualArea()) {
+            suffixName += "_EqualArea";
+        }
+        sources = prepareSources(sources, model);
         try {
             imp_out = ImagePlusSampler.Builder()
                     .cache(cacheImage)
@@ -281,7 +297,7 @@ public class ExportEllipticProjection implements Command {
 
         int imageWidth = (int) ((phiMax-phiMin) / angleStep);
 
-        int imageHeight = (int) ((thetaMax-thetaMin) / angleStep);
+        int imageHeight = (int) getImageHeight();
 
 
         try {
@@ -323,6 +339,80 @@ public class ExportEllipticProjection implements Command {
         }
     }
 
+    boolean isEqualArea() {
+        return "Equal area".equals(projection);
+    }
+
+    /**
+     * @return number of pixels along theta, or along cos(theta) for the equal area projection
+     */
+    long getImageHeight() {
+        if (isEqualArea()) {
+            double uRange = Math.cos(thetaMin*Math.PI/180.0) - Math.cos(thetaMax*Math.PI/180.0);
+            return (long) (uRange / (angleStep*Math.PI/180.0));
+        }
+        return (long) ((thetaMax-thetaMin) / angleStep);
+    }
+
+    /**
+     * If all sources share the same elliptic transform, and if the model grid is small enough,
+     * the (r, theta, phi) to xyz mapping is computed once for all voxels of the model, see
+     * {@link PrecomputedGridTransform}, and all sources, channels and timepoints are sampled
+     * with this map. The parameters of the transform at the time of the export are used.
+     *
+     * Otherwise, the elliptic transformed sources are sampled directly, through an
+     * {@link EqualAreaToSphericalTransform} for the equal area projection.
+     *
+     * @param sources elliptic transformed sources
+     * @param model model source of the export
+     * @return sources to export
+     */
+    List<SourceAndConverter> prepareSources(List<SourceAndConverter> sources, SourceAndConverter<?> model) {
+        long[] dimensions = new long[3];
+        model.getSpimSource().getSource(0, 0).dimensions(dimensions);
+
+        boolean sharedTransform = (transform != null) && sources.stream().allMatch(sac ->
+                (sac.getSpimSource() instanceof WarpedSource)
+                        && (((WarpedSource) sac.getSpimSource()).getTransform() == transform));
+
+        if (sharedTransform && PrecomputedGridTransform.fits(dimensions)) {
+            AffineTransform3D modelTransform = new AffineTransform3D();
+            model.getSpimSource().getSourceTransform(0, 0, modelTransform);
+
+            RealTransform mapping;
+            if (isEqualArea()) {
+                RealTransformSequence sequence = new RealTransformSequence();
+                sequence.add(new EqualAreaToSphericalTransform());
+                sequence.add(transform.detachedCopy());
+                mapping = sequence;
+            } else {
+                mapping = transform.detachedCopy();
+            }
+            PrecomputedGridTransform precomputed = new PrecomputedGridTransform(mapping, modelTransform, dimensions);
+
+            List<SourceAndConverter> mappedSources = new ArrayList<>();
+            for (SourceAndConverter sac : sources) {
+                Source wrappedSource = ((WarpedSource) sac.getSpimSource()).getWrappedSource();
+                WarpedSource ws = new WarpedSource(wrappedSource, sac.getSpimSource().getName());
+                ws.updateTransform(precomputed);
+                ws.setIsTransformed(true);
+                mappedSources.add(new SourceAndConverter(ws, sac.getConverter()));
+            }
+            return mappedSources;
+        }
+
+        if (!isEqualArea()) return sources;
+
+        List<SourceAndConverter> equalAreaSources = new ArrayList<>();
+        for (SourceAndConverter sac : sources) {
+            WarpedSource ws = new WarpedSource(sac.getSpimSource(), sac.getSpimSource().getName()+"_EqualArea");
+            ws.updateTransform(new EqualAreaToSphericalTransform());
+            ws.setIsTransformed(true);
+            equalAreaSources.add(new SourceAndConverter(ws, sac.getConverter()));
+        }
+        return equalAreaSources;
+    }
+
     public Function<Collection<SourceAndConverter>, List<SourceAndConverter>> sorter = sacslist -> SourceAndConverterHelper.sortDefaultNoGeneric(sacslist);
 
     private SourceAndConverter<?> createModelSource() {
@@ -336,12 +426,19 @@ public class ExportEllipticProjection implements Command {
         at3D.set( samplingxyinphysicalunit,0,0);
         at3D.set( samplingxyinphysicalunit,1,1);
         at3D.set( samplingzinphysicalunit,2,2);
+        if (isEqualArea()) {
+            // y = cos(theta), decreasing from cos(thetaMin), with the equatorial sampling
+            at3D.set( -samplingxyinphysicalunit,1,1);
+        }
         at3D.rotate(1,-Math.PI/2.0);
-        at3D.translate(rMax-radiusStep, ((thetaMin)*Math.PI/180.0), ((phiMin)*Math.PI/180.0));
-
+        if (isEqualArea()) {
+            at3D.translate(rMax-radiusStep, Math.cos(thetaMin*Math.PI/180.0), ((phiMin)*Math.PI/180.0));
+        } else {
+            at3D.translate(rMax-radiusStep, ((thetaMin)*Math.PI/180.0), ((phiMin)*Math.PI/180.0));
+        }
 
         long nPx = (int) ((phiMax-phiMin) / angleStep);
-        long nPy = (int) ((thetaMax-thetaMin) / angleStep);
+        long nPy = getImageHeight();
         long nPz;
         if (rMin==rMax) {
             nPz = 1;
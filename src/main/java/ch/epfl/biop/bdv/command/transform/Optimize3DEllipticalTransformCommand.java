@@ -2,18 +2,27 @@ package ch.epfl.biop.bdv.command.transform;
 
 import bdv.img.WarpedSource;
 import bdv.util.Elliptical3DTransform;
+import bdv.util.Elliptical3DTransformTrack;
 import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
+import ch.epfl.biop.sourceandconverter.transform.EllipticalProjectionObjective;
+import ch.epfl.biop.sourceandconverter.transform.SphericalLattice;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.analysis.MultivariateVectorFunction;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
 import org.apache.commons.math3.optim.InitialGuess;
 import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.SimpleValueChecker;
 import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
 import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunctionGradient;
+import org.apache.commons.math3.optim.nonlinear.scalar.gradient.NonLinearConjugateGradientOptimizer;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
 import org.scijava.plugin.Parameter;
@@ -22,8 +31,12 @@ import org.scijava.command.Command;
 import org.scijava.plugin.Plugin;
 import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
 import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
@@ -94,6 +107,41 @@ public class Optimize3DEllipticalTransformCommand implements BdvPlaygroundAction
     @Parameter
     int timeout_seconds;
 
+    /**
+     * Simplex : derivative free, samples the warped source.
+     * Conjugate Gradient : uses the analytic gradient of the integrated intensity, see
+     * {@link EllipticalProjectionObjective}, computed in parallel. Steps are used to
+     * scale the parameters, so that a unit change is equally significant for all of them.
+     */
+    @Parameter( label = "Optimizer", choices = {"Simplex", "Conjugate Gradient"}, required = false )
+    String optimizer = "Simplex";
+
+    /**
+     * If true, the fit starts at the coarsest mipmap level of the wrapped source, with an angular
+     * grid coarsened by 2 per level, and is refined level by level down to sourceMipMapLevel.
+     * The optimum of each level is the initial guess of the next one.
+     */
+    @Parameter( label = "Coarse to fine", required = false )
+    boolean coarseToFine = false;
+
+    /**
+     * Regular : (theta, phi) grid, samples weighted by sin(theta).
+     * Equal area : samples of equal solid angle, spaced by min(dTheta, dPhi), see {@link SphericalLattice}.
+     */
+    @Parameter( label = "Sampling", choices = {"Regular", "Equal area"}, required = false )
+    String sampling = "Regular";
+
+    /**
+     * Timepoints fitted one after the other, each fit starting from the optimum of the previous
+     * timepoint. The data of the next timepoint is loaded in the background during each fit.
+     * The optima are stored as keyframes of the output track. Blank : only sourceTimePoint is fitted.
+     */
+    @Parameter( label = "Timepoints to fit, blank for sourceTimePoint only", required = false )
+    String range_frames = "";
+
+    @Parameter(type = ItemIO.OUTPUT)
+    Elliptical3DTransformTrack track;
+
     public void run() {
         // Is this a warped source ?
         WarpedSource<?> ws = (WarpedSource<?>) sac.getSpimSource();
@@ -126,48 +174,60 @@ public class Optimize3DEllipticalTransformCommand implements BdvPlaygroundAction
         if (ty) nOptimizedParams++;
         if (tz) nOptimizedParams++;
 
-        if (ws.getType() instanceof RealType) {
-            //RealRandomAccess rra = ws.getInterpolatedSource(sourceTimePoint,sourceMipMapLevel, Interpolation.NEARESTNEIGHBOR).realRandomAccess();
-
-            MultivariateFunction mf = doubles -> {
-                this.setParams(doubles);
-                double ans = computeIntegratedIntensity((RealRandomAccess) ws.getInterpolatedSource(sourceTimePoint,sourceMipMapLevel, Interpolation.NEARESTNEIGHBOR).realRandomAccess());
-                Map<String, Double> params = e3dT.getParameters();
-                return  ans*params.get("r1")*params.get("r2")*params.get("r3"); // Avoid strongly curved on a single bright pixel -> correct jacobian ?
-            };
-
-            SimplexOptimizer optimizer = new SimplexOptimizer(1e-10, 1e-30);
+        final List<Integer> timepoints;
+        if ((range_frames == null)||(range_frames.trim().isEmpty())) {
+            timepoints = null;
+        } else {
             try {
+                timepoints = new CZTRange.Builder()
+                        .setT(range_frames)
+                        .get(1, 1, SourceAndConverterHelper.getMaxTimepoint(new SourceAndConverter[]{sac}))
+                        .getRangeT();
+            } catch (Exception e) {
+                System.err.println("Invalid timepoints range "+range_frames+": "+e.getMessage());
+                return;
+            }
+            if (timepoints.isEmpty()) {
+                System.err.println("No timepoint to fit in range "+range_frames);
+                return;
+            }
+            track = new Elliptical3DTransformTrack();
+        }
 
+        if (ws.getType() instanceof RealType) {
+            try {
 
-
+                // The timeout applies to each timepoint
                 final Duration timeout = Duration.ofSeconds(timeout_seconds);
                 ExecutorService executor = Executors.newSingleThreadExecutor();
 
-                final Future<double[]> handler = executor.submit(new Callable() {
-
-                    @Override
-                    public double[] call() throws Exception {
-                        final PointValuePair optimum =
-                                optimizer.optimize(
-                                        new MaxEval(maxOptimisationStep),
-                                        new ObjectiveFunction(mf),
-                                        GoalType.MAXIMIZE,
-                                        new InitialGuess(getCurrentOptimizedParamsAsDoubles()),
-                                        new NelderMeadSimplex(getStepOptimizedParamsAsDoubles())
-                                );// Steps for optimization
-                        return optimum.getPoint();
+                if (timepoints == null) {
+                    double[] optimum = optimizeWithTimeout(executor, ws, timeout);
+                    if (optimum != null) this.setParams(optimum);
+                } else {
+                    final List<Integer> fittedTimepoints = new ArrayList<>();
+                    final int initialTimePoint = sourceTimePoint;
+                    try {
+                        for (int i = 0; i < timepoints.size(); i++) {
+                            CompletableFuture<Void> prefetch = null;
+                            if (i + 1 < timepoints.size()) {
+                                final int nextTimePoint = timepoints.get(i + 1);
+                                prefetch = CompletableFuture.runAsync(() -> prefetch(ws, nextTimePoint));
+                            }
+                            sourceTimePoint = timepoints.get(i);
+                            double[] optimum = optimizeWithTimeout(executor, ws, timeout);
+                            if (optimum == null) {
+                                System.err.println("Fit stopped at timepoint "+sourceTimePoint+", fitted timepoints: "+fittedTimepoints);
+                                break;
+                            }
+                            setParams(optimum); // Seeds the next timepoint
+                            track.setKeyframe(sourceTimePoint, e3dT.getParameters());
+                            fittedTimepoints.add(sourceTimePoint);
+                            if (prefetch != null) prefetch.join();
+                        }
+                    } finally {
+                        sourceTimePoint = initialTimePoint;
                     }
-                });
-
-                try {
-                    this.setParams(handler.get(timeout.toMillis(), TimeUnit.MILLISECONDS));//optimum.getPoint());
-                } catch (TimeoutException e) {
-                    handler.cancel(true);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
                 }
 
                 executor.shutdownNow();
@@ -185,6 +245,115 @@ public class Optimize3DEllipticalTransformCommand implements BdvPlaygroundAction
         }
     }
 
+    /**
+     * Optimizes sourceTimePoint on the executor, and cancels the optimization if it lasts more than timeout
+     *
+     * @param executor executor on which the optimization runs
+     * @param ws warped source
+     * @param timeout maximal duration of the optimization
+     * @return optimized parameters, or null if the optimization failed or timed out
+     */
+    double[] optimizeWithTimeout(ExecutorService executor, WarpedSource<?> ws, Duration timeout) {
+        final Future<double[]> handler = executor.submit(() -> optimizeTimepoint(ws));
+        try {
+            return handler.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            handler.cancel(true);
+            System.err.println("Optimization of timepoint "+sourceTimePoint+" timed out after "+timeout.getSeconds()+" s");
+        } catch (InterruptedException e) {
+            handler.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TooManyEvaluationsException) {
+                System.err.println("Optimization did not converge in "+maxOptimisationStep+" iterations");
+            } else {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Optimizes the transform parameters at sourceTimePoint, starting from the current parameters,
+     * with a coarse to fine schedule if coarseToFine is true
+     *
+     * @param ws warped source
+     * @return optimized parameters
+     */
+    double[] optimizeTimepoint(WarpedSource<?> ws) {
+        if (!coarseToFine) {
+            return optimize(ws, sourceMipMapLevel, dTheta, dPhi);
+        }
+        int coarsestLevel = Math.max(sourceMipMapLevel, ws.getNumMipmapLevels()-1);
+        double[] optimum = null;
+        for (int level = coarsestLevel; level>=sourceMipMapLevel; level--) {
+            // Coarser angular grid for coarser levels, but at least 8 samples along each angle
+            double factor = Math.pow(2, level - sourceMipMapLevel);
+            double levelDTheta = Math.max(dTheta, Math.min(dTheta * factor, (thetaMax - thetaMin) / 8.0));
+            double levelDPhi = Math.max(dPhi, Math.min(dPhi * factor, (phiMax - phiMin) / 8.0));
+            optimum = optimize(ws, level, levelDTheta, levelDPhi);
+            setParams(optimum); // Seeds the next level
+        }
+        return optimum;
+    }
+
+    /**
+     * Samples a timepoint once with the current parameters, so that its data is loaded
+     * before it is fitted
+     *
+     * @param ws warped source
+     * @param timepoint timepoint to load
+     */
+    void prefetch(WarpedSource<?> ws, int timepoint) {
+        new EllipticalProjectionObjective((Source) ws.getWrappedSource(), timepoint, sourceMipMapLevel,
+                getLattice(dTheta, dPhi), thresholdIntensity).value(e3dT.getParametersSnapshot());
+    }
+
+    /**
+     * Optimizes the transform parameters at a single resolution, starting from the current parameters
+     *
+     * @param ws warped source
+     * @param level mipmap level of the source
+     * @param dTheta angular step of the sampling grid along theta
+     * @param dPhi angular step of the sampling grid along phi
+     * @return optimized parameters
+     */
+    double[] optimize(WarpedSource<?> ws, int level, double dTheta, double dPhi) {
+        SphericalLattice lattice = getLattice(dTheta, dPhi);
+        if (optimizer.equals("Conjugate Gradient")) {
+            return optimizeWithGradient((Source) ws.getWrappedSource(), level, lattice);
+        }
+
+        // The warped source copies of e3dT share its parameters, so a single random access
+        // follows the parameter changes of the optimization
+        final RealRandomAccess rra = ws.getInterpolatedSource(sourceTimePoint, level, Interpolation.NEARESTNEIGHBOR).realRandomAccess();
+
+        MultivariateFunction mf = doubles -> {
+            this.setParams(doubles);
+            double ans = computeIntegratedIntensity(rra, lattice);
+            Map<String, Double> params = e3dT.getParameters();
+            return  ans*params.get("r1")*params.get("r2")*params.get("r3"); // Avoid strongly curved on a single bright pixel -> correct jacobian ?
+        };
+
+        SimplexOptimizer simplexOptimizer = new SimplexOptimizer(1e-10, 1e-30);
+        final PointValuePair optimum =
+                simplexOptimizer.optimize(
+                        new MaxEval(maxOptimisationStep),
+                        new ObjectiveFunction(mf),
+                        GoalType.MAXIMIZE,
+                        new InitialGuess(getCurrentOptimizedParamsAsDoubles()),
+                        new NelderMeadSimplex(getStepOptimizedParamsAsDoubles())
+                );// Steps for optimization
+        return optimum.getPoint();
+    }
+
+    SphericalLattice getLattice(double dTheta, double dPhi) {
+        if (sampling.equals("Equal area")) {
+            return SphericalLattice.equalArea(thetaMin, thetaMax, phiMin, phiMax, Math.min(dTheta, dPhi));
+        }
+        return SphericalLattice.regular(thetaMin, thetaMax, dTheta, phiMin, phiMax, dPhi);
+    }
+
     public double[] getCurrentOptimizedParamsAsDoubles() {
         double[] ans = new double[nOptimizedParams];
         int cIndex=0;
@@ -218,37 +387,110 @@ public class Optimize3DEllipticalTransformCommand implements BdvPlaygroundAction
     }
 
     public void setParams(double[] params) {
-        Object[] args = new Object[params.length*2];
-        //System.out.println("r1="+params[0]);
+        e3dT.setParameters(getOptimizedParamsAsMap(params));
+    }
+
+    public Map<String, Double> getOptimizedParamsAsMap(double[] params) {
+        Map<String, Double> map = new LinkedHashMap<>();
         int cIndex=0;
-        if (r1) {args[2*cIndex]="r1";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (r2) {args[2*cIndex]="r2";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (r3) {args[2*cIndex]="r3";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (rx) {args[2*cIndex]="rx";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (ry) {args[2*cIndex]="ry";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (rz) {args[2*cIndex]="rz";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (tx) {args[2*cIndex]="tx";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (ty) {args[2*cIndex]="ty";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        if (tz) {args[2*cIndex]="tz";args[2*cIndex+1]=params[cIndex];cIndex++;}
-        e3dT.setParameters(args);
+        if (r1) {map.put("r1", params[cIndex]);cIndex++;}
+        if (r2) {map.put("r2", params[cIndex]);cIndex++;}
+        if (r3) {map.put("r3", params[cIndex]);cIndex++;}
+        if (rx) {map.put("rx", params[cIndex]);cIndex++;}
+        if (ry) {map.put("ry", params[cIndex]);cIndex++;}
+        if (rz) {map.put("rz", params[cIndex]);cIndex++;}
+        if (tx) {map.put("tx", params[cIndex]);cIndex++;}
+        if (ty) {map.put("ty", params[cIndex]);cIndex++;}
+        if (tz) {map.put("tz", params[cIndex]);cIndex++;}
+        return map;
+    }
+
+    /**
+     * Maximizes the integrated intensity with a conjugate gradient optimizer. The optimized
+     * parameters are divided by their steps. The transform is only updated with the optimum,
+     * intermediate parameters are evaluated on immutable snapshots.
+     *
+     * @param source source which is warped by e3dT
+     * @param level mipmap level of the source
+     * @param lattice nodes on which the intensity is integrated
+     * @return the optimized parameters
+     */
+    double[] optimizeWithGradient(Source<? extends RealType<?>> source, int level, SphericalLattice lattice) {
+        EllipticalProjectionObjective objective = new EllipticalProjectionObjective(source, sourceTimePoint, level,
+                lattice, thresholdIntensity);
+
+        final Elliptical3DTransform.Parameters initial = e3dT.getParametersSnapshot();
+        final double[] steps = getStepOptimizedParamsAsDoubles();
+        final boolean[] optimized = new boolean[]{r1, r2, r3, rx, ry, rz, tx, ty, tz};
+
+        MultivariateFunction value = scaled ->
+                objective.value(initial.with(getOptimizedParamsAsMap(unscale(scaled, steps))));
+
+        MultivariateVectorFunction gradient = scaled -> {
+            double[] fullGradient = new double[9];
+            objective.value(initial.with(getOptimizedParamsAsMap(unscale(scaled, steps))), fullGradient);
+            double[] ans = new double[nOptimizedParams];
+            int cIndex=0;
+            for (int i = 0; i < 9; i++) {
+                if (optimized[i]) {
+                    ans[cIndex] = fullGradient[i]*steps[cIndex];
+                    cIndex++;
+                }
+            }
+            return ans;
+        };
+
+        double[] start = getCurrentOptimizedParamsAsDoubles();
+        for (int i = 0; i < start.length; i++) start[i] /= steps[i];
+
+        NonLinearConjugateGradientOptimizer gradientOptimizer = new NonLinearConjugateGradientOptimizer(
+                NonLinearConjugateGradientOptimizer.Formula.POLAK_RIBIERE,
+                new SimpleValueChecker(1e-8, 1e-12),
+                1e-4, 1e-4, 1); // line search tolerances, initial bracketing of one step
+
+        final PointValuePair optimum =
+                gradientOptimizer.optimize(
+                        new MaxEval(maxOptimisationStep),
+                        new ObjectiveFunction(value),
+                        new ObjectiveFunctionGradient(gradient),
+                        GoalType.MAXIMIZE,
+                        new InitialGuess(start)
+                );
+        return unscale(optimum.getPoint(), steps);
     }
 
-    int counter = 0;
+    static double[] unscale(double[] scaled, double[] steps) {
+        double[] ans = new double[scaled.length];
+        for (int i = 0; i < scaled.length; i++) ans[i] = scaled[i]*steps[i];
+        return ans;
+    }
 
-    public < T extends RealType< T > & NativeType< T >> double computeIntegratedIntensity(RealRandomAccess<T> rra) {
-        // TODO : ponderate with Jacobian
+    /**
+     * Integrates the intensity above thresholdIntensity over the unit sphere of the warped source.
+     * Each sample is weighted by the solid angle of its lattice node (sin(theta).dTheta.dPhi for
+     * the regular grid, equal for the equal area lattice), which is the Jacobian of the (theta, phi)
+     * parametrization : the integral does not depend on the sampling.
+     *
+     * @param rra random access on the warped source, in (r, theta, phi) coordinates
+     * @param lattice nodes on which the intensity is integrated
+     * @return integrated intensity
+     */
+    public < T extends RealType< T > & NativeType< T >> double computeIntegratedIntensity(RealRandomAccess<T> rra, SphericalLattice lattice) {
         double somme =0;
-        for (double pTheta=thetaMin;pTheta<=thetaMax;pTheta+=dTheta) {
-            for (double pPhi=phiMin;pPhi<=phiMax;pPhi+=dPhi) {
-                rra.setPosition(new double[]{1,pTheta,pPhi});
+        final double[] position = new double[]{1, 0, 0};
+        for (int iRow = 0; iRow<lattice.numRows(); iRow++) {
+            final double weight = lattice.getWeight(iRow);
+            final double[] phis = lattice.getPhis(iRow);
+            position[1] = lattice.getTheta(iRow);
+            for (double pPhi : phis) {
+                position[2] = pPhi;
+                rra.setPosition(position);
                 double v = rra.get().getRealDouble();
                 if (v>thresholdIntensity) {
-                    somme+=v*Math.abs(Math.sin(pTheta));
+                    somme+=v*weight;
                 }
             }
         }
-        counter++;
-        System.out.println(counter+"\t v="+somme);
         return somme;
     }
 
@@ -0,0 +1,275 @@
+package ch.epfl.biop.bdv.qupath;
+
+import bdv.util.QuPathBdvHelper;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.bdv.command.register.RegisterWholeSlideScans2DCommand;
+import ch.epfl.biop.scijava.CommandHelper;
+import ch.epfl.biop.sourceandconverter.register.PatchRegistrationScheduler;
+import ch.epfl.biop.spimdata.qupath.QuPathEntryEntity;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransform;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.command.CommandService;
+import org.scijava.module.Module;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
+import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Headless version of {@link RegisterQuPathImagesCommand} for a whole QuPath project :
+ * all entries are registered, either on a single reference entry or each on its previous
+ * entry (serial sections), with automated affine and spline registrations only.
+ *
+ * The region used for the affine registration is the whole fixed image, and the landmarks
+ * of the spline registration are on a regular grid over it.
+ *
+ * Pairs are registered in parallel on a bounded pool, each with a timeout. The number of elastix
+ * registrations running at the same time is bounded for the whole batch : it is split between
+ * the pairs registered in parallel, and a pair is only retried once its previous attempt has
+ * ended. Each transformation file is written as soon as its pair is registered, and pairs which
+ * already have a transformation file can be skipped, so that an interrupted batch can be resumed.
+ */
+@Plugin(type = BdvPlaygroundActionCommand.class, menuPath = ScijavaBdvDefaults.RootMenu+"Sources>Register>Batch Align Slides For QuPath")
+public class RegisterQuPathImagesBatchCommand implements Command {
+
+    private static Logger logger = LoggerFactory.getLogger(RegisterQuPathImagesBatchCommand.class);
+
+    final static String TO_REFERENCE = "Each entry to the reference";
+    final static String TO_PREVIOUS = "Each entry to the previous entry";
+
+    @Parameter(label = "Sources from a QuPath generated dataset, one per entry (for instance the same channel of all entries)")
+    SourceAndConverter[] sources;
+
+    @Parameter(label = "Pairing", choices = {TO_REFERENCE, TO_PREVIOUS})
+    String pairing = TO_REFERENCE;
+
+    @Parameter(label = "Reference source (default: first entry)", required = false)
+    SourceAndConverter reference_source;
+
+    @Parameter(label = "Background offset value for moving images")
+    double background_offset_value_moving = 0;
+
+    @Parameter(label = "Background offset value for fixed images")
+    double background_offset_value_fixed = 0;
+
+    @Parameter(label = "Auto affine registration")
+    boolean automatedAffineRegistration = true;
+
+    @Parameter(label = "Auto spline registration")
+    boolean automatedSplineRegistration = true;
+
+    @Parameter(label = "Number of landmarks along x and y for the spline registration")
+    int landmarksGridSize = 4;
+
+    @Parameter(label = "Number of iterations for each scale (default 100)")
+    int maxIterationNumberPerScale = 100;
+
+    @Parameter(label = "Number of pairs registered in parallel")
+    int nParallelPairs = 2;
+
+    @Parameter(label = "Max number of elastix registrations running at the same time, for all pairs (0 = number of processors)", required = false)
+    int nElastixProcesses = 0;
+
+    @Parameter(label = "Timeout of each pair registration in seconds (0 = no timeout)", required = false)
+    double timeoutPerPairInS = 0;
+
+    @Parameter(label = "Max number of attempts per pair", required = false)
+    int maxAttemptsPerPair = 1;
+
+    @Parameter(label = "Skip pairs already registered (resumes an interrupted batch)")
+    boolean resume = true;
+
+    @Parameter
+    CommandService cs;
+
+    @Parameter
+    Context scijavaCtx;
+
+    @Parameter
+    boolean verbose = false;
+
+    int nRegistrationsPerPair = 1;
+
+    @Override
+    public void run() {
+        try {
+
+            // Checks : all sources from different entries of the same qupath project
+            List<SourceAndConverter> entries = new ArrayList<>(Arrays.asList(sources));
+            if ((reference_source != null) && (!entries.contains(reference_source))) {
+                entries.add(reference_source);
+            }
+
+            String qupathProject = null;
+            List<Integer> ids = new ArrayList<>();
+            for (SourceAndConverter source : entries) {
+                if (!QuPathBdvHelper.isSourceDirectlyLinkedToQuPath(source)) {
+                    logger.error("Error : the source "+source.getSpimSource().getName()+" is not associated to a QuPath project");
+                    return;
+                }
+                String project = QuPathBdvHelper.getQuPathProjectFile(source).getAbsolutePath();
+                if (qupathProject == null) {
+                    qupathProject = project;
+                } else if (!qupathProject.equals(project)) {
+                    logger.error("Error : the sources are not from the same qupath project");
+                    return;
+                }
+                int id = QuPathBdvHelper.getQuPathEntityFromSource(source).getId();
+                if (ids.contains(id)) {
+                    logger.error("Error : several sources are from the same entry ( do not select several channels of the same image)");
+                    return;
+                }
+                ids.add(id);
+            }
+
+            entries.sort(Comparator.comparingInt(source -> QuPathBdvHelper.getQuPathEntityFromSource(source).getId()));
+
+            if (entries.size() < 2) {
+                logger.error("Error : at least two entries are required");
+                return;
+            }
+
+            // Pairs : {fixed, moving}
+            List<SourceAndConverter[]> pairs = new ArrayList<>();
+            if (pairing.equals(TO_PREVIOUS)) {
+                for (int i = 1; i < entries.size(); i++) {
+                    pairs.add(new SourceAndConverter[]{entries.get(i - 1), entries.get(i)});
+                }
+            } else {
+                SourceAndConverter reference = reference_source == null ? entries.get(0) : reference_source;
+                for (SourceAndConverter source : entries) {
+                    if (source != reference) pairs.add(new SourceAndConverter[]{reference, source});
+                }
+            }
+
+            if (resume) {
+                List<SourceAndConverter[]> todo = new ArrayList<>();
+                for (SourceAndConverter[] pair : pairs) {
+                    File transformationFile = RegisterQuPathImagesCommand.getTransformationFile(pair[0], pair[1]);
+                    if (transformationFile.exists()) {
+                        logger.info("Skipping "+getName(pair)+", already registered ("+transformationFile.getName()+")");
+                    } else {
+                        todo.add(pair);
+                    }
+                }
+                pairs = todo;
+            }
+
+            logger.info(pairs.size()+" pair(s) to register in "+qupathProject);
+
+            // A single budget of elastix processes, shared between the pairs registered in parallel
+            int nProcesses = nElastixProcesses > 0 ? nElastixProcesses : Runtime.getRuntime().availableProcessors();
+            int nPairsInParallel = Math.max(1, Math.min(nParallelPairs, nProcesses));
+            nRegistrationsPerPair = Math.max(1, nProcesses / nPairsInParallel);
+            logger.info(nPairsInParallel+" pair(s) in parallel, each with "+nRegistrationsPerPair+" parallel registration(s)");
+
+            PatchRegistrationScheduler<SourceAndConverter[], File> scheduler =
+                    new PatchRegistrationScheduler<>(nPairsInParallel, maxAttemptsPerPair, (long) (timeoutPerPairInS * 1000), logger::info);
+
+            List<File> files = scheduler.run(pairs, this::registerPair);
+
+            for (int i : scheduler.getFailedPatches()) {
+                logger.error("Registration failed for "+getName(pairs.get(i)));
+            }
+            logger.info((files.size()-scheduler.getFailedPatches().size())+"/"+files.size()+" pair(s) registered");
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers a pair, in the calling thread, and writes its transformation file into the QuPath project
+     *
+     * @param pair fixed and moving sources
+     * @return the written transformation file
+     */
+    File registerPair(SourceAndConverter[] pair) throws Exception {
+        SourceAndConverter fixed = pair[0];
+        SourceAndConverter moving = pair[1];
+
+        double[] bounds = getXYBounds(fixed);
+        double topLeftX = bounds[0], topLeftY = bounds[1], bottomRightX = bounds[2], bottomRightY = bounds[3];
+
+        String ptCoords = "";
+        if (automatedSplineRegistration) {
+            for (int i = 0; i < landmarksGridSize; i++) {
+                for (int j = 0; j < landmarksGridSize; j++) {
+                    double x = topLeftX + (i + 0.5) * (bottomRightX - topLeftX) / landmarksGridSize;
+                    double y = topLeftY + (j + 0.5) * (bottomRightY - topLeftY) / landmarksGridSize;
+                    ptCoords += x + "," + y + ",";
+                }
+            }
+        }
+
+        Module module = CommandHelper.runInCurrentThread(scijavaCtx, RegisterWholeSlideScans2DCommand.class,
+                "globalRefSource", fixed,
+                "currentRefSource", moving,
+                "ptListCoordinates", ptCoords,
+                "topLeftX", topLeftX,
+                "topLeftY", topLeftY,
+                "bottomRightX", bottomRightX,
+                "bottomRightY", bottomRightY,
+                "showDetails", false,
+                "verbose", verbose,
+                "performFirstCoarseAffineRegistration", automatedAffineRegistration,
+                "performSecondSplineRegistration", automatedSplineRegistration,
+                "maxIterationNumberPerScale", maxIterationNumberPerScale,
+                "background_offset_value_moving", background_offset_value_moving,
+                "background_offset_value_fixed", background_offset_value_fixed,
+                "nParallelRegistrations", nRegistrationsPerPair
+        );
+
+        RealTransform rt = (RealTransform) module.getOutput("tst");
+        if (rt == null) {
+            throw new IllegalStateException("No transformation returned for "+getName(pair));
+        }
+
+        File transformationFile = RegisterQuPathImagesCommand.writeTransformation(scijavaCtx, fixed, moving, rt);
+        logger.info(getName(pair)+" registered, written to "+transformationFile.getAbsolutePath());
+        return transformationFile;
+    }
+
+    /**
+     * @param sac source
+     * @return min x, min y, max x, max y of the highest resolution level of the source at timepoint 0, in physical units
+     */
+    static double[] getXYBounds(SourceAndConverter sac) {
+        Source source = sac.getSpimSource();
+        AffineTransform3D at3D = new AffineTransform3D();
+        source.getSourceTransform(0, 0, at3D);
+        RandomAccessibleInterval rai = source.getSource(0, 0);
+        double[] bounds = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] corner = new double[3];
+        for (int cx = 0; cx < 2; cx++) {
+            for (int cy = 0; cy < 2; cy++) {
+                double[] voxel = new double[]{cx * rai.dimension(0), cy * rai.dimension(1), 0};
+                at3D.apply(voxel, corner);
+                bounds[0] = Math.min(bounds[0], corner[0]);
+                bounds[1] = Math.min(bounds[1], corner[1]);
+                bounds[2] = Math.max(bounds[2], corner[0]);
+                bounds[3] = Math.max(bounds[3], corner[1]);
+            }
+        }
+        return bounds;
+    }
+
+    static String getName(SourceAndConverter[] pair) {
+        QuPathEntryEntity fixedEntity = QuPathBdvHelper.getQuPathEntityFromSource(pair[0]);
+        QuPathEntryEntity movingEntity = QuPathBdvHelper.getQuPathEntityFromSource(pair[1]);
+        return "entry "+movingEntity.getId()+" ("+movingEntity.getName()+") to entry "+fixedEntity.getId()+" ("+fixedEntity.getName()+")";
+    }
+
+}
@@ -22,6 +22,9 @@ import sc.fiji.persist.ScijavaGsonHelper;
 
 import java.io.File;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 @Plugin(type = BdvPlaygroundActionCommand.class, menuPath = ScijavaBdvDefaults.RootMenu+"Sources>Register>Wizard Align Slides For QuPath")
 public class RegisterQuPathImagesCommand implements Command {
@@ -86,55 +89,93 @@ public class RegisterQuPathImagesCommand implements Command {
                     "sourcesToTransform", new SourceAndConverter[]{moving_source}
                     ).get().getOutput("transformation");
 
-            RealTransform transformSequence;
+            writeTransformation(scijavaCtx, fixed_source, moving_source, rt);
 
-            // Because QuPath works in pixel coordinates and bdv playground in real space coordinates
-            // We need to account for this
+            new WaitForUserDialog("Registration finished", "Transformation file successfully written to QuPath project.").show();
 
-            AffineTransform3D movingToPixel = new AffineTransform3D();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-            moving_source.getSpimSource().getSourceTransform(0,0,movingToPixel);
+    }
 
-            AffineTransform3D fixedToPixel = new AffineTransform3D();
+    /**
+     * @param fixed_source fixed source, directly linked to a QuPath entry
+     * @param moving_source moving source, directly linked to a QuPath entry
+     * @return the file where the transformation from the moving entry to the fixed entry is stored in the QuPath project
+     * @throws Exception if the entry folder of the moving source does not exist
+     */
+    static File getTransformationFile(SourceAndConverter fixed_source, SourceAndConverter moving_source) throws Exception {
+        File moving_entry_folder = QuPathBdvHelper.getDataEntryFolder(moving_source);
 
-            fixed_source.getSpimSource().getSourceTransform(0,0,fixedToPixel);
+        QuPathEntryEntity movingEntity = QuPathBdvHelper.getQuPathEntityFromSource(moving_source);
+        QuPathEntryEntity fixedEntity = QuPathBdvHelper.getQuPathEntityFromSource(fixed_source);
 
-            if (rt instanceof InvertibleRealTransform) {
-                InvertibleRealTransformSequence irts = new InvertibleRealTransformSequence();
+        int moving_series_index = movingEntity.getId();
+        int fixed_series_index = fixedEntity.getId();
 
-                irts.add(fixedToPixel);
-                irts.add((InvertibleRealTransform) rt);
-                irts.add(movingToPixel.inverse());
+        String movingToFixedLandmarkName = "transform_"+moving_series_index+"_"+fixed_series_index+".json";
 
-                transformSequence = irts;
+        return new File(moving_entry_folder.getAbsolutePath(), movingToFixedLandmarkName);
+    }
 
-            } else {
-                RealTransformSequence rts = new RealTransformSequence();
+    /**
+     * Writes a registration result into the QuPath project, in the moving entry folder.
+     * The file is first written under a temporary name then renamed, so that an interrupted
+     * write never leaves a partial transformation file.
+     *
+     * @param scijavaCtx context, used for the serialization
+     * @param fixed_source fixed source, directly linked to a QuPath entry
+     * @param moving_source moving source, directly linked to a QuPath entry
+     * @param rt transformation from the fixed source to the moving source, in real space coordinates
+     * @return the written file
+     * @throws Exception if the file could not be written
+     */
+    static File writeTransformation(Context scijavaCtx, SourceAndConverter fixed_source, SourceAndConverter moving_source, RealTransform rt) throws Exception {
+        RealTransform transformSequence;
 
-                rts.add(fixedToPixel);
-                rts.add(rt);
-                rts.add(movingToPixel.inverse());
+        // Because QuPath works in pixel coordinates and bdv playground in real space coordinates
+        // We need to account for this
 
-                transformSequence = rts;
-            }
+        AffineTransform3D movingToPixel = new AffineTransform3D();
 
-            String jsonMovingToFixed = ScijavaGsonHelper.getGson(scijavaCtx).toJson(transformSequence, RealTransform.class);
+        moving_source.getSpimSource().getSourceTransform(0,0,movingToPixel);
 
-            QuPathEntryEntity movingEntity = QuPathBdvHelper.getQuPathEntityFromSource(moving_source);
-            QuPathEntryEntity fixedEntity = QuPathBdvHelper.getQuPathEntityFromSource(fixed_source);
+        AffineTransform3D fixedToPixel = new AffineTransform3D();
 
-            int moving_series_index = movingEntity.getId();
-            int fixed_series_index = fixedEntity.getId();
+        fixed_source.getSpimSource().getSourceTransform(0,0,fixedToPixel);
 
-            String movingToFixedLandmarkName = "transform_"+moving_series_index+"_"+fixed_series_index+".json";
+        if (rt instanceof InvertibleRealTransform) {
+            InvertibleRealTransformSequence irts = new InvertibleRealTransformSequence();
 
-            FileUtils.writeStringToFile(new File(moving_entry_folder.getAbsolutePath(), movingToFixedLandmarkName), jsonMovingToFixed, Charset.defaultCharset());
+            irts.add(fixedToPixel);
+            irts.add((InvertibleRealTransform) rt);
+            irts.add(movingToPixel.inverse());
 
-            new WaitForUserDialog("Registration finished", "Transformation file successfully written to QuPath project.").show();
+            transformSequence = irts;
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        } else {
+            RealTransformSequence rts = new RealTransformSequence();
+
+            rts.add(fixedToPixel);
+            rts.add(rt);
+            rts.add(movingToPixel.inverse());
+
+            transformSequence = rts;
+        }
+
+        String jsonMovingToFixed = ScijavaGsonHelper.getGson(scijavaCtx).toJson(transformSequence, RealTransform.class);
+
+        File transformationFile = getTransformationFile(fixed_source, moving_source);
+        File tmpFile = new File(transformationFile.getAbsolutePath()+".tmp");
+
+        FileUtils.writeStringToFile(tmpFile, jsonMovingToFixed, Charset.defaultCharset());
+        try {
+            Files.move(tmpFile.toPath(), transformationFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), transformationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
 
+        return transformationFile;
     }
 }
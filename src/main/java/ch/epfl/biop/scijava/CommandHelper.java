@@ -0,0 +1,67 @@
+package ch.epfl.biop.scijava;
+
+import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.command.CommandService;
+import org.scijava.module.Module;
+import org.scijava.module.ModuleRunner;
+import org.scijava.module.ModuleService;
+import org.scijava.module.process.PostprocessorPlugin;
+import org.scijava.module.process.PreprocessorPlugin;
+import org.scijava.plugin.PluginService;
+
+import java.util.List;
+
+/**
+ * Runs commands in the calling thread instead of a thread of the scijava thread service.
+ *
+ * {@link CommandService#run(Class, boolean, Object...)} returns a future : cancelling it
+ * interrupts the command, but the command may keep running after the future is cancelled, and
+ * there is no way to know when it is really done. When a command is run in the calling thread,
+ * it is done when the call returns, and interrupting the calling thread interrupts the command.
+ * This is used to bound the number of elastix registrations running at the same time.
+ */
+public class CommandHelper {
+
+    /**
+     * Runs a command with pre- and postprocessing, as {@link CommandService#run(Class, boolean, Object...)}
+     * does, but in the calling thread
+     *
+     * @param context scijava context
+     * @param commandClass command to run
+     * @param inputs pairs of input names and values
+     * @return the module of the command, once run
+     * @throws InterruptedException if the calling thread was interrupted while the command was running
+     * @throws IllegalStateException if the command was canceled
+     */
+    public static Module runInCurrentThread(Context context, Class<? extends Command> commandClass, Object... inputs) throws InterruptedException {
+        if (inputs.length % 2 != 0) {
+            throw new IllegalArgumentException("Inputs should be pairs of names and values");
+        }
+        CommandService cs = context.getService(CommandService.class);
+        ModuleService ms = context.getService(ModuleService.class);
+        PluginService ps = context.getService(PluginService.class);
+
+        Module module = ms.createModule(cs.getCommand(commandClass));
+        for (int i = 0; i < inputs.length; i += 2) {
+            String name = (String) inputs[i];
+            module.setInput(name, inputs[i + 1]);
+            module.resolveInput(name);
+        }
+
+        List<PreprocessorPlugin> pre = ps.createInstancesOfType(PreprocessorPlugin.class);
+        List<PostprocessorPlugin> post = ps.createInstancesOfType(PostprocessorPlugin.class);
+        new ModuleRunner(context, module, pre, post).run();
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Command " + commandClass.getSimpleName() + " interrupted");
+        }
+        if ((module instanceof Cancelable) && ((Cancelable) module).isCanceled()) {
+            throw new IllegalStateException("Command " + commandClass.getSimpleName() + " canceled : "
+                    + ((Cancelable) module).getCancelReason());
+        }
+        return module;
+    }
+
+}
@@ -0,0 +1,63 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs the tasks of an export (typically one task per c, z, t and tile of a plane,
+ * see {@link SourceAndConverterVirtualStack#getTiles(int, int)}) on a {@link ForkJoinPool}
+ * dedicated to exports.
+ *
+ * The work is split in many small tasks whatever the CZT shape of the export, and idle
+ * threads steal tasks from busy ones, so that all cores are used, even for a single
+ * plane. Because the pool is not the common pool, an export does not starve
+ * other users of the common pool (bdv rendering for instance).
+ *
+ * The pool parallelism is the number of available processors, capped
+ * by {@link ImagePlusGetter#limitParallelJobs}. When this limit changes, a new pool is used for
+ * the next exports. The previous pool is not shut down, since exports which already got it may
+ * still submit tasks to it : its daemon threads terminate once idle, and it is then garbage collected.
+ */
+public class CZTTileScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(CZTTileScheduler.class);
+
+    private static ForkJoinPool pool;
+
+    /**
+     * @return the pool used for exports, created again if {@link ImagePlusGetter#limitParallelJobs} changed
+     */
+    public static synchronized ForkJoinPool getPool() {
+        int parallelism = Math.max(1, Math.min(ImagePlusGetter.limitParallelJobs, Runtime.getRuntime().availableProcessors()));
+        if ((pool == null)||(pool.getParallelism()!=parallelism)) {
+            // The previous pool, if any, is left running for the exports still using it
+            logger.debug("Creating export pool with parallelism "+parallelism);
+            pool = new ForkJoinPool(parallelism, p -> {
+                java.util.concurrent.ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("Export-"+thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * Runs all tasks on the export pool and waits for their completion
+     * @param tasks tasks to run
+     */
+    public static void run(List<Runnable> tasks) {
+        ForkJoinPool exportPool = getPool();
+        if (ForkJoinTask.inForkJoinPool() && (ForkJoinTask.getPool() == exportPool)) {
+            // Already in the export pool : no need to submit, the tasks are split in the current pool
+            tasks.parallelStream().forEach(Runnable::run);
+        } else {
+            exportPool.submit(() -> tasks.parallelStream().forEach(Runnable::run)).join();
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Copies a XY plane of a cell backed image (typically a {@link net.imglib2.cache.img.CachedCellImg}
+ * coming from bio-formats or N5 loaders) directly into a primitive array, by copying
+ * whole cell rows with {@link System#arraycopy(Object, int, Object, int, int)}.
+ *
+ * This avoids iterating the plane pixel per pixel with a cursor, which is the main
+ * cost when exporting large planes. Lazily computed views (resampled sources, transformed
+ * views...) are not cell backed : in this case {@link CellImgPlaneCopier#copyPlane(RandomAccessibleInterval, int, Object)}
+ * returns false and the caller needs to use its own (slower) copy.
+ */
+public class CellImgPlaneCopier {
+
+    /**
+     * Copies the plane at position z of a 3D cell image into a primitive array
+     * (byte[], short[], float[] or int[], depending on the pixel type).
+     *
+     * @param rai 3D source image, should be an {@link AbstractCellImg} for the fast path to be used
+     * @param z slice index
+     * @param destination primitive array of size width * height, filled in a flat iteration order
+     * @return true if the plane has been copied, false if the image is not compatible with a bulk copy
+     */
+    public static boolean copyPlane(RandomAccessibleInterval<?> rai, int z, Object destination) {
+        if (!isCompatible(rai)) return false;
+        return copyRegion(rai, z, destination, 0, 0, (int) rai.max(0), (int) rai.max(1));
+    }
+
+    /**
+     * Copies a XY region of the plane at position z of a 3D cell image into a primitive array
+     * (byte[], short[], float[] or int[], depending on the pixel type). Only the pixels of the
+     * region are written in the destination array.
+     *
+     * @param rai 3D source image, should be an {@link AbstractCellImg} for the fast path to be used
+     * @param z slice index
+     * @param destination primitive array of size width * height of the full plane, filled in a flat iteration order
+     * @param minX min x of the region, included
+     * @param minY min y of the region, included
+     * @param maxX max x of the region, included
+     * @param maxY max y of the region, included
+     * @return true if the region has been copied, false if the image is not compatible with a bulk copy
+     */
+    public static boolean copyRegion(RandomAccessibleInterval<?> rai, int z, Object destination,
+                                     int minX, int minY, int maxX, int maxY) {
+        if (!isCompatible(rai)) return false;
+
+        AbstractCellImg<?, ?, ? extends Cell<?>, ?> img = (AbstractCellImg<?, ?, ? extends Cell<?>, ?>) rai;
+        CellGrid grid = img.getCellGrid();
+
+        final int width = (int) img.dimension(0);
+        final int[] cellDims = new int[3];
+        grid.cellDimensions(cellDims);
+
+        final long gridZ = z / cellDims[2];
+
+        RandomAccess<? extends Cell<?>> cellAccess = img.getCells().randomAccess();
+
+        for (long gridY = minY / cellDims[1]; gridY <= maxY / cellDims[1]; gridY++) {
+            for (long gridX = minX / cellDims[0]; gridX <= maxX / cellDims[0]; gridX++) {
+                cellAccess.setPosition(new long[]{gridX, gridY, gridZ});
+                Cell<?> cell = cellAccess.get();
+                Object data = cell.getData();
+                if (!(data instanceof ArrayDataAccess)) return false;
+                Object storage = ((ArrayDataAccess<?>) data).getCurrentStorageArray();
+                if (storage.getClass()!=destination.getClass()) return false;
+
+                final int cellMinX = (int) cell.min(0);
+                final int cellMinY = (int) cell.min(1);
+                final int cellSizeX = (int) cell.dimension(0);
+                final int cellSizeY = (int) cell.dimension(1);
+                final int cellOffsetZ = (int) (z - cell.min(2)) * cellSizeX * cellSizeY;
+
+                // Intersection of the cell with the region
+                final int x0 = Math.max(minX, cellMinX);
+                final int x1 = Math.min(maxX, cellMinX + cellSizeX - 1);
+                final int y0 = Math.max(minY, cellMinY);
+                final int y1 = Math.min(maxY, cellMinY + cellSizeY - 1);
+                final int length = x1 - x0 + 1;
+
+                for (int y = y0; y <= y1; y++) {
+                    System.arraycopy(storage, cellOffsetZ + (y - cellMinY) * cellSizeX + (x0 - cellMinX),
+                            destination, y * width + x0,
+                            length);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param rai image
+     * @return the dimensions of the cells of the image if it is compatible with a bulk copy, null otherwise
+     */
+    public static int[] getCellDimensions(RandomAccessibleInterval<?> rai) {
+        if (!isCompatible(rai)) return null;
+        int[] cellDims = new int[3];
+        ((AbstractCellImg<?, ?, ?, ?>) rai).getCellGrid().cellDimensions(cellDims);
+        return cellDims;
+    }
+
+    /**
+     * @param rai image to test
+     * @return true if the image is a 3D cell image starting at the origin, which
+     * is what is required for a bulk plane copy
+     */
+    public static boolean isCompatible(RandomAccessibleInterval<?> rai) {
+        if (!(rai instanceof AbstractCellImg)) return false;
+        if (rai.numDimensions()!=3) return false;
+        for (int d = 0; d<3; d++) {
+            if (rai.min(d)!=0) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,25 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+/**
+ * Receives the progress of exports, see {@link ExportMonitor}
+ *
+ * Listeners are called from the single reporter thread of the {@link ExportMonitor},
+ * they should return quickly.
+ */
+public interface ExportListener {
+
+    /**
+     * Called periodically while an export progresses
+     * @param snapshot current counters of the export
+     */
+    void progress(ExportMetrics.Snapshot snapshot);
+
+    /**
+     * Called once, when the export is completed
+     * @param snapshot final counters of the export
+     */
+    default void completed(ExportMetrics.Snapshot snapshot) {
+        progress(snapshot);
+    }
+
+}
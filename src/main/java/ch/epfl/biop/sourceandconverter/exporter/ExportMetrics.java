@@ -0,0 +1,251 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a single export : planes done, bytes done, throughput, plane latency
+ * percentiles and queue depth.
+ *
+ * A plane is the unit of work of the export : a XY plane for ImagePlus and TIFF exports,
+ * a block for N5 exports. Exporters update the counters from their worker threads, the
+ * counters are read through {@link ExportMetrics#snapshot()}, usually by the
+ * {@link ExportMonitor} which publishes them to {@link ExportListener}s.
+ *
+ * Latency percentiles are computed over the last {@link ExportMetrics#LATENCY_SAMPLES} planes.
+ */
+public class ExportMetrics implements ExportMetricsMXBean {
+
+    public static final int LATENCY_SAMPLES = 1024;
+
+    final String name;
+    final boolean virtual;
+    final long totalPlanes;
+    final long totalBytes;
+    final AtomicLong bytesCounter;
+    final AtomicLong planesDone = new AtomicLong();
+    final AtomicLong planesQueued = new AtomicLong();
+    final AtomicLong planesStarted = new AtomicLong();
+    final long startNanos = System.nanoTime();
+    final AtomicLong endNanos = new AtomicLong(-1);
+
+    // Ring buffer of the latest plane latencies, in ns
+    final long[] latencies = new long[LATENCY_SAMPLES];
+    long nLatencies = 0;
+
+    /**
+     * @param name name of the export
+     * @param totalPlanes number of planes (or blocks) of the export
+     * @param totalBytes number of bytes of the export
+     * @param virtual true if the planes are computed on demand (virtual stack) : the export
+     *                is then completed only when all planes have been read
+     */
+    public ExportMetrics(String name, long totalPlanes, long totalBytes, boolean virtual) {
+        this(name, totalPlanes, totalBytes, virtual, new AtomicLong());
+    }
+
+    /**
+     * @param name name of the export
+     * @param totalPlanes number of planes (or blocks) of the export
+     * @param totalBytes number of bytes of the export
+     * @param virtual true if the planes are computed on demand (virtual stack)
+     * @param bytesCounter counter of bytes done, incremented by the exporter
+     */
+    public ExportMetrics(String name, long totalPlanes, long totalBytes, boolean virtual, AtomicLong bytesCounter) {
+        this.name = name;
+        this.totalPlanes = totalPlanes;
+        this.totalBytes = totalBytes;
+        this.virtual = virtual;
+        this.bytesCounter = bytesCounter;
+    }
+
+    /**
+     * @return the counter of bytes done, which should be incremented by the exporter
+     */
+    public AtomicLong getBytesCounter() {
+        return bytesCounter;
+    }
+
+    /**
+     * Signals that planes are waiting to be computed
+     * @param n number of planes queued
+     */
+    public void planesQueued(long n) {
+        planesQueued.addAndGet(n);
+    }
+
+    /**
+     * Signals that a queued plane starts being computed
+     */
+    public void planeStarted() {
+        planesStarted.incrementAndGet();
+    }
+
+    /**
+     * Signals that a plane is done
+     * @param latencyNanos time spent computing the plane, in ns
+     */
+    public void planeDone(long latencyNanos) {
+        planesDone.incrementAndGet();
+        synchronized (latencies) {
+            latencies[(int) (nLatencies % LATENCY_SAMPLES)] = latencyNanos;
+            nLatencies++;
+        }
+    }
+
+    /**
+     * Signals that the export is over, successfully or not
+     */
+    public void done() {
+        endNanos.compareAndSet(-1, System.nanoTime());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public long getPlanesDone() {
+        return planesDone.get();
+    }
+
+    @Override
+    public long getTotalPlanes() {
+        return totalPlanes;
+    }
+
+    @Override
+    public long getBytesDone() {
+        return bytesCounter.get();
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public double getMegaBytesPerSecond() {
+        double elapsedS = getElapsedMs() / 1000.0;
+        if (elapsedS == 0) return 0;
+        return bytesCounter.get() / (1024.0 * 1024.0) / elapsedS;
+    }
+
+    @Override
+    public double getPlaneLatencyP50Ms() {
+        return percentileMs(0.5);
+    }
+
+    @Override
+    public double getPlaneLatencyP99Ms() {
+        return percentileMs(0.99);
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return Math.max(0, planesQueued.get() - planesStarted.get());
+    }
+
+    @Override
+    public boolean isCompleted() {
+        if (endNanos.get() != -1) return true;
+        if (bytesCounter.get() >= totalBytes) {
+            done(); // All bytes have been read at least once
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return time elapsed since the start of the export, or duration of the export if it is completed
+     */
+    public long getElapsedMs() {
+        long end = endNanos.get();
+        if (end == -1) end = System.nanoTime();
+        return (end - startNanos) / 1000000;
+    }
+
+    double percentileMs(double percentile) {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = Arrays.copyOf(latencies, (int) Math.min(nLatencies, LATENCY_SAMPLES));
+        }
+        if (sorted.length == 0) return 0;
+        Arrays.sort(sorted);
+        int index = (int) Math.min(sorted.length - 1, Math.floor(percentile * sorted.length));
+        return sorted[index] / 1e6;
+    }
+
+    /**
+     * @return the current values of all counters
+     */
+    public Snapshot snapshot() {
+        boolean completed = isCompleted();
+        return new Snapshot(name, virtual,
+                planesDone.get(), totalPlanes,
+                bytesCounter.get(), totalBytes,
+                getElapsedMs(), getMegaBytesPerSecond(),
+                getPlaneLatencyP50Ms(), getPlaneLatencyP99Ms(),
+                getQueueDepth(), completed);
+    }
+
+    /**
+     * Immutable values of the counters of an export at a given time
+     */
+    public static class Snapshot {
+        public final String name;
+        public final boolean virtual;
+        public final long planesDone, totalPlanes;
+        public final long bytesDone, totalBytes;
+        public final long elapsedMs;
+        public final double megaBytesPerSecond;
+        public final double planeLatencyP50Ms, planeLatencyP99Ms;
+        public final long queueDepth;
+        public final boolean completed;
+
+        public Snapshot(String name, boolean virtual,
+                        long planesDone, long totalPlanes,
+                        long bytesDone, long totalBytes,
+                        long elapsedMs, double megaBytesPerSecond,
+                        double planeLatencyP50Ms, double planeLatencyP99Ms,
+                        long queueDepth, boolean completed) {
+            this.name = name;
+            this.virtual = virtual;
+            this.planesDone = planesDone;
+            this.totalPlanes = totalPlanes;
+            this.bytesDone = bytesDone;
+            this.totalBytes = totalBytes;
+            this.elapsedMs = elapsedMs;
+            this.megaBytesPerSecond = megaBytesPerSecond;
+            this.planeLatencyP50Ms = planeLatencyP50Ms;
+            this.planeLatencyP99Ms = planeLatencyP99Ms;
+            this.queueDepth = queueDepth;
+            this.completed = completed;
+        }
+
+        /**
+         * @return the fraction of the export done, between 0 and 1
+         */
+        public double getRatio() {
+            if (totalBytes == 0) return 1;
+            return Math.min(1.0, (double) bytesDone / (double) totalBytes);
+        }
+
+        public String toString() {
+            DecimalFormat df = new DecimalFormat("#0.0");
+            return name+": "+(int) (getRatio()*100)+"% - "+planesDone+"/"+totalPlanes+" planes - "
+                    +df.format(bytesDone/(1024.0*1024.0))+"/"+df.format(totalBytes/(1024.0*1024.0))+" Mb - "
+                    +df.format(megaBytesPerSecond)+" Mb / s - latency p50 "+df.format(planeLatencyP50Ms)
+                    +" ms p99 "+df.format(planeLatencyP99Ms)+" ms - queued "+queueDepth
+                    +(completed ? " - completed in "+(elapsedMs/1000)+" s" : "");
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+/**
+ * Management interface of an export, registered in the platform MBean server
+ * when {@link ExportMonitor#registerMBeans} is true, see {@link ExportMetrics}
+ */
+public interface ExportMetricsMXBean {
+
+    String getName();
+
+    boolean isVirtual();
+
+    long getPlanesDone();
+
+    long getTotalPlanes();
+
+    long getBytesDone();
+
+    long getTotalBytes();
+
+    double getMegaBytesPerSecond();
+
+    double getPlaneLatencyP50Ms();
+
+    double getPlaneLatencyP99Ms();
+
+    long getQueueDepth();
+
+    boolean isCompleted();
+
+}
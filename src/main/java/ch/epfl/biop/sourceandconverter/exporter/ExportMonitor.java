@@ -0,0 +1,167 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the progress of all running exports, see {@link ExportMetrics}.
+ *
+ * A single scheduled thread reports every {@link ExportMonitor#periodMs} ms the
+ * exports which progressed to their own listeners and to the global listeners,
+ * which can be added by UIs as well as by headless scripts, see
+ * {@link ExportMonitor#addListener(ExportListener)}. An export stops being monitored
+ * once it is completed, or when {@link ExportMonitor#stopMonitoring(ExportMetrics)} is called :
+ * a virtual export is never completed if its image is closed before all planes are read.
+ *
+ * If {@link ExportMonitor#registerMBeans} is true, each monitored export is also
+ * registered in the platform MBean server as long as it is running.
+ */
+public class ExportMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportMonitor.class);
+
+    /**
+     * Period between two reports, in ms
+     */
+    public static int periodMs = 1000;
+
+    /**
+     * If true, each monitored export is registered as a {@link ExportMetricsMXBean}
+     */
+    public static boolean registerMBeans = false;
+
+    public static final String MBEAN_DOMAIN = "ch.epfl.biop.exporter";
+
+    static final List<ExportListener> globalListeners = new CopyOnWriteArrayList<>();
+
+    static final Map<ExportMetrics, MonitoredExport> exports = new ConcurrentHashMap<>();
+
+    static final AtomicLong exportIdCounter = new AtomicLong();
+
+    private static ScheduledExecutorService reporter;
+
+    /**
+     * Adds a listener which receives the progress of all exports
+     * @param listener listener to add
+     */
+    public static void addListener(ExportListener listener) {
+        globalListeners.add(listener);
+    }
+
+    /**
+     * @param listener listener to remove
+     */
+    public static void removeListener(ExportListener listener) {
+        globalListeners.remove(listener);
+    }
+
+    /**
+     * Starts monitoring an export
+     * @param metrics counters of the export
+     * @param listeners listeners which receive the progress of this export only, in addition to the global listeners
+     */
+    public static void monitor(ExportMetrics metrics, ExportListener... listeners) {
+        MonitoredExport export = new MonitoredExport(metrics, Arrays.asList(listeners));
+        if (registerMBeans) {
+            try {
+                export.objectName = new ObjectName(MBEAN_DOMAIN+":type=Export,id="+exportIdCounter.incrementAndGet()
+                        +",name="+ObjectName.quote(metrics.getName()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, export.objectName);
+            } catch (Exception e) {
+                logger.warn("Could not register export "+metrics.getName()+" as a MBean: "+e.getMessage());
+                export.objectName = null;
+            }
+        }
+        exports.put(metrics, export);
+        ensureReporterStarted();
+    }
+
+    /**
+     * Stops monitoring an export which will not progress anymore, and unregisters its MBean
+     * @param metrics counters of the export, nothing happens if the export is not monitored
+     */
+    public static void stopMonitoring(ExportMetrics metrics) {
+        MonitoredExport export = exports.remove(metrics);
+        if (export != null) unregisterMBean(export);
+    }
+
+    private static synchronized void ensureReporterStarted() {
+        if (reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Export-Monitor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(ExportMonitor::report, periodMs, Math.max(periodMs, 10), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void report() {
+        exports.values().forEach(export -> {
+            ExportMetrics.Snapshot snapshot = export.metrics.snapshot();
+            if (snapshot.completed) {
+                if (exports.remove(export.metrics) == null) return; // Monitoring stopped meanwhile
+                unregisterMBean(export);
+                export.publish(snapshot, true);
+            } else if ((snapshot.bytesDone != export.lastBytesDone)||(!snapshot.virtual)) {
+                // Virtual exports progress only when planes are read : nothing to say when nothing happens
+                export.lastBytesDone = snapshot.bytesDone;
+                export.publish(snapshot, false);
+            }
+        });
+    }
+
+    private static void unregisterMBean(MonitoredExport export) {
+        if (export.objectName == null) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(export.objectName)) server.unregisterMBean(export.objectName);
+        } catch (Exception e) {
+            logger.warn("Could not unregister MBean "+export.objectName+": "+e.getMessage());
+        }
+    }
+
+    static class MonitoredExport {
+        final ExportMetrics metrics;
+        final List<ExportListener> listeners;
+        long lastBytesDone = -1;
+        ObjectName objectName;
+
+        MonitoredExport(ExportMetrics metrics, List<ExportListener> listeners) {
+            this.metrics = metrics;
+            this.listeners = listeners;
+        }
+
+        void publish(ExportMetrics.Snapshot snapshot, boolean completed) {
+            listeners.forEach(listener -> notify(listener, snapshot, completed));
+            globalListeners.forEach(listener -> notify(listener, snapshot, completed));
+        }
+
+        // A failing listener should not stop the reporter thread
+        static void notify(ExportListener listener, ExportMetrics.Snapshot snapshot, boolean completed) {
+            try {
+                if (completed) {
+                    listener.completed(snapshot);
+                } else {
+                    listener.progress(snapshot);
+                }
+            } catch (Throwable t) {
+                logger.error("Error in export listener "+listener+": "+t.getMessage());
+            }
+        }
+    }
+
+}
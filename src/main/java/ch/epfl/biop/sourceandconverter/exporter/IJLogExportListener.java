@@ -0,0 +1,75 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import ij.IJ;
+
+import java.text.DecimalFormat;
+
+/**
+ * Displays the progress of an export on a single line of the ImageJ log window,
+ * with a progress bar, the throughput and the estimated remaining time.
+ *
+ * The line is reserved when the listener is created. All updates come from
+ * the {@link ExportMonitor} thread, only the line reservation needs to be
+ * synchronized with other exports.
+ */
+public class IJLogExportListener implements ExportListener {
+
+    final int nLine;
+    final DecimalFormat df = new DecimalFormat("#0.0");
+
+    /**
+     * @param startMessage message logged when the export starts, on the line which
+     *                     is then updated with the progress of the export
+     */
+    public IJLogExportListener(String startMessage) {
+        synchronized (ImagePlusGetter.IJLogLock) {
+            IJ.log(startMessage);
+            nLine = ImagePlusGetter.countLines(IJ.getLog()) - 1;
+        }
+    }
+
+    @Override
+    public void progress(ExportMetrics.Snapshot s) {
+        long totalTimeS = s.elapsedMs / 1000;
+        if ((s.bytesDone == 0)&&(totalTimeS>10)&&(!s.virtual)) {
+            log(s.name+": No progress in 10 seconds.");
+            return;
+        }
+        double ratio = s.getRatio();
+        double totalMb = s.totalBytes / (1024.0*1024);
+        int numberOfEquals = (int) (20*ratio);
+        StringBuilder bar = new StringBuilder();
+        for (int i=0;i<numberOfEquals;i++) {
+            bar.append("=");
+        }
+        for(int i=numberOfEquals;i<20;i++) {
+            bar.append("  ");
+        }
+        if (s.virtual) {
+            log(s.name+": ["+bar+"] "+(int) (ratio*100)+"% Loaded ( "+df.format(s.bytesDone/(1024.0*1024))+"/ "+df.format(totalMb)+" Mb)");
+        } else {
+            double estimatedJobTimeInS = ratio == 0 ? 0 : totalTimeS / ratio;
+            String timing = estimatedJobTimeInS > 10 ?
+                    totalTimeS+" s - Remaining = "+(int)(estimatedJobTimeInS - totalTimeS)+" s" : totalTimeS+" s";
+            log(s.name+": ["+bar+"] "+(int) (ratio*100)+"% Loaded ["+timing+"] ("+df.format(s.megaBytesPerSecond)+" Mb / s"
+                    +" - p50 "+df.format(s.planeLatencyP50Ms)+" ms / plane)");
+        }
+    }
+
+    @Override
+    public void completed(ExportMetrics.Snapshot s) {
+        double totalMb = s.totalBytes / (1024.0*1024);
+        if (s.virtual) {
+            log(s.name + ": [====================] (" + df.format(totalMb) + " Mb)");
+        } else {
+            log(s.name + ": [====================] Completed in ~ " + (s.elapsedMs / 1000) + " s] (" + df.format(totalMb) + " Mb)");
+        }
+    }
+
+    void log(String message) {
+        synchronized (ImagePlusGetter.IJLogLock) {
+            IJ.log("\\Update" + nLine + ":" + message);
+        }
+    }
+
+}
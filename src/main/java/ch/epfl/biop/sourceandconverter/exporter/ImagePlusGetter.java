@@ -2,7 +2,6 @@ package ch.epfl.biop.sourceandconverter.exporter;
 
 import bdv.viewer.SourceAndConverter;
 import ij.CompositeImage;
-import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.plugin.HyperStackConverter;
@@ -18,14 +17,19 @@ import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 import spimdata.imageplus.ImagePlusHelper;
 
 import java.awt.*;
+import java.awt.image.ColorModel;
 import java.text.DecimalFormat;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Stream;
 
 public class ImagePlusGetter {
 
@@ -33,7 +37,8 @@ public class ImagePlusGetter {
 
     /**
      * Value used in {@link ImagePlusGetter#getImagePlus(String, List, int, CZTRange, boolean)}
-     * in order to limit the amount of parallelization when acquiring an image
+     * in order to limit the amount of parallelization when acquiring an image : this is the
+     * maximal parallelism of the export pool, see {@link CZTTileScheduler}
      */
     public static int limitParallelJobs = 16;
 
@@ -69,9 +74,11 @@ public class ImagePlusGetter {
      * @param sources sources to export as ImagePlus
      * @param resolutionLevel resolution Level of the sources
      * @param range czt range which can be used to define a subset of the output image
-     * @param cache if set to true, each time a plane is computed, it is stored in memory. Ultimately,
-     *              this leads to filling the RAM as in a non-virtual image, if all planes are visited
-     * @param verbose if set to true, a {@link BytesMonitor} is created to follow the progression of the creation of this ImagePlus
+     * @param cache if set to true, each time a plane is computed, it is stored in memory. The cache
+     *              is bounded to {@link PlaneCache#DEFAULT_MAX_MEMORY_FRACTION} of the max memory, least
+     *              recently used planes are evicted first
+     * @param verbose if set to true, the progression of the creation of this ImagePlus is displayed in the IJ log,
+     *                see {@link ExportMonitor} and {@link ExportMetrics}
      * @return a virtual {@link ImagePlus} out of a list of {@link SourceAndConverter},
      * taken at a certain resolution level, and which czt range is specified via a {@link CZTRange} object
      */
@@ -81,10 +88,35 @@ public class ImagePlusGetter {
                                          CZTRange range,
                                          boolean cache,
                                          boolean verbose) {
+        return getVirtualImagePlus(name, sources, resolutionLevel, range,
+                cache ? PlaneCache.fractionOfMaxMemory(PlaneCache.DEFAULT_MAX_MEMORY_FRACTION) : null,
+                verbose);
+    }
+
+    /**
+     * Same as {@link ImagePlusGetter#getVirtualImagePlus(String, List, int, CZTRange, boolean, boolean)}
+     * but with a specified cache policy, see {@link PlaneCache}
+     *
+     * @param name Name of the output ImagePlus
+     * @param sources sources to export as ImagePlus
+     * @param resolutionLevel resolution Level of the sources
+     * @param range czt range which can be used to define a subset of the output image
+     * @param planeCache cache which stores computed planes, null for no caching
+     * @param verbose if set to true, the progression of the creation of this ImagePlus is displayed in the IJ log,
+     *                see {@link ExportMonitor}
+     * @return a virtual {@link ImagePlus} out of a list of {@link SourceAndConverter},
+     * taken at a certain resolution level, and which czt range is specified via a {@link CZTRange} object
+     */
+    public static ImagePlus getVirtualImagePlus(String name,
+                                         List<SourceAndConverter> sources,
+                                         int resolutionLevel,
+                                         CZTRange range,
+                                         PlaneCache planeCache,
+                                         boolean verbose) {
         final AtomicLong bytesCounter = new AtomicLong();
-        if (!cache) verbose = false;
+        if (planeCache == null) verbose = false;
 
-        SourceAndConverterVirtualStack vStack = new SourceAndConverterVirtualStack(sources, resolutionLevel, range, bytesCounter, cache);
+        SourceAndConverterVirtualStack vStack = new SourceAndConverterVirtualStack(sources, resolutionLevel, range, bytesCounter, planeCache);
         vStack.getProcessor(1); // Avoid annoying race condition annoying with hyperstack converter
         ImagePlus out = new ImagePlus(name, vStack);
         int[] czt = range.getCZTDimensions( );
@@ -96,18 +128,11 @@ public class ImagePlusGetter {
 
         long totalBytes = (long) range.getRangeC().size() * (long) range.getRangeZ().size() * (long) range.getRangeT().size()*(long) (vStack.getBitDepth()/8)*(long) vStack.getHeight()*(long) vStack.getWidth();
 
-        if (verbose) {
-            synchronized (IJLogLock) {
-                IJ.log("Starting Getting " + name + "...");
-                String log = IJ.getLog();
-                int nLines = countLines(log) - 1;
-                new BytesMonitor(name, (m) -> {
-                    synchronized (IJLogLock) {
-                        IJ.log("\\Update" + nLines + ":" + m);
-                    }
-                }, bytesCounter::get, () -> bytesCounter.get() == totalBytes, totalBytes, 1000, true);
-            }
-        }
+        // Completed once all bytes are read : evicted planes may be read again
+        ExportMetrics metrics = new ExportMetrics(name, range.getTotalPlanes(), totalBytes, true, bytesCounter);
+        vStack.setMetrics(metrics);
+        // A virtual export may never be completed : it is monitored only on demand
+        if (verbose) ExportMonitor.monitor(metrics, new IJLogExportListener("Starting Getting " + name + "..."));
 
         if ( ( czt[ 0 ] + czt[ 1 ] + czt[ 2 ] ) > 3 ) {
             // Needs conversion to hyperstack
@@ -175,7 +200,8 @@ public class ImagePlusGetter {
      * @param sources sources to export as ImagePlus
      * @param resolutionLevel resolution Level of the sources
      * @param range czt range which can be used to define a subset of the output image
-     * @param verbose if set to true, a {@link BytesMonitor} is created to follow the progression of the creation of this ImagePlus
+     * @param verbose if set to true, the progression of the creation of this ImagePlus is displayed in the IJ log,
+     *                see {@link ExportMonitor}
      * @return a non virtual {@link ImagePlus} out of a list of {@link SourceAndConverter},
      * taken at a certain resolution level, and which czt range is specified via a {@link CZTRange} object
      */
@@ -184,24 +210,40 @@ public class ImagePlusGetter {
                                          int resolutionLevel,
                                          CZTRange range,
                                          boolean verbose) {
-        ImagePlus vImage = getVirtualImagePlus(name, sources, resolutionLevel, range, false, false );
+        return getImagePlus(name, sources, resolutionLevel, range, verbose, new PlaneDeduplicator());
+    }
 
-        final AtomicLong bytesCounter = new AtomicLong();
+    /**
+     * Same as {@link ImagePlusGetter#getImagePlus(String, List, int, CZTRange, boolean)}, but planes
+     * already registered in the deduplicator (by this export or by a previous one sharing the same
+     * deduplicator) are copied instead of being computed again
+     *
+     * @param name Name of the output ImagePlus
+     * @param sources sources to export as ImagePlus
+     * @param resolutionLevel resolution Level of the sources
+     * @param range czt range which can be used to define a subset of the output image
+     * @param verbose if set to true, the progression of the creation of this ImagePlus is displayed in the IJ log
+     * @param deduplicator keeps track of the planes already exported, see {@link PlaneDeduplicator}
+     * @return a non virtual {@link ImagePlus} out of a list of {@link SourceAndConverter},
+     * taken at a certain resolution level, and which czt range is specified via a {@link CZTRange} object
+     */
+    public static ImagePlus getImagePlus(String name,
+                                         List<SourceAndConverter> sources,
+                                         int resolutionLevel,
+                                         CZTRange range,
+                                         boolean verbose,
+                                         PlaneDeduplicator deduplicator) {
+        ImagePlus vImage = getVirtualImagePlus(name, sources, resolutionLevel, range, false, false );
 
         int nBytesPerPlane = vImage.getHeight() * vImage.getWidth() * (vImage.getBitDepth()/8);
         long totalBytes = (long) range.getRangeC().size() * (long) range.getRangeZ().size() * (long) range.getRangeT().size() * (long) nBytesPerPlane;
 
+        final ExportMetrics metrics = new ExportMetrics(name, range.getTotalPlanes(), totalBytes, false);
+        final AtomicLong bytesCounter = metrics.getBytesCounter();
         if (verbose) {
-            synchronized (IJLogLock) {
-                IJ.log("Starting Getting " + name + "...");
-                String log = IJ.getLog();
-                int nLines = countLines(log) - 1;
-                new BytesMonitor(name, (m) -> {
-                    synchronized (IJLogLock) {
-                        IJ.log("\\Update" + nLines + ":" + m);
-                    }
-                }, bytesCounter::get, () -> bytesCounter.get() == totalBytes, totalBytes, 1000, false);
-            }
+            ExportMonitor.monitor(metrics, new IJLogExportListener("Starting Getting " + name + "..."));
+        } else {
+            ExportMonitor.monitor(metrics);
         }
 
         int w = vImage.getWidth();
@@ -218,61 +260,83 @@ public class ImagePlusGetter {
         int nT = range.rangeT.size();
         int nC = range.rangeC.size();
 
-        final boolean parallelZ;
-        final boolean parallelT;
-        final boolean parallelC;
-
-        int nParallelJobs = 1;
-
-        if ((nC>1)&&(nParallelJobs * nC<limitParallelJobs)) { // Priority C
-            parallelC = true;
-            nParallelJobs *= nC;
-            logger.debug(name+" get with parallel channel acquisition: #C = "+nC);
-        } else {
-            parallelC = false;
-        }
-
-        if ((nParallelJobs<limitParallelJobs)&&(nZ>1)&&(nParallelJobs * nZ<limitParallelJobs)) {
-            parallelZ = true;
-            nParallelJobs *= nZ;
-            logger.debug(name+" get with parallel slices acquisition: #Z = "+nZ);
-        } else {
-            parallelZ = false;
-        }
-
-        if ((nParallelJobs<limitParallelJobs)&&(nT>1)&&(nParallelJobs * nT<limitParallelJobs)) {
-            parallelT = true;
-            //nParallelJobs *= nT;
-            logger.debug(name+" get with parallel frames acquisition: #T = "+nT);
-        } else {
-            parallelT = false;
-        }
-
         final ImagePlus image = imp;
-
-        Stream<Integer> cStream = range.rangeC.stream();
-        if (parallelC) cStream = cStream.parallel();
-        cStream.forEach(c -> {
-            Stream<Integer> tStream = range.rangeT.stream();
-            if (parallelT) tStream = tStream.parallel();
-            tStream.forEach(t -> {
-                Stream<Integer> zStream = range.rangeZ.stream();
-                if (parallelZ) zStream = zStream.parallel();
-                zStream.forEach(z -> {
-                    int iC = range.rangeC.indexOf(c);
-                    int iZ = range.rangeZ.indexOf(z);
-                    int iT = range.rangeT.indexOf(t);
-
+        final SourceAndConverterVirtualStack planeFiller = (SourceAndConverterVirtualStack) vStack;
+
+        // Splits each plane into tiles, and all (c, z, t, tile) are computed in parallel
+        int nBytesPerPixel = vImage.getBitDepth()/8;
+
+        List<Runnable> tasks = new ArrayList<>();
+        // Planes computed by this export, and planes copied from a plane computed elsewhere
+        Map<PlaneDeduplicator.PlaneKey, CompletableFuture<Object>> ownedPlanes = new HashMap<>();
+        Map<CompletableFuture<Object>, Object> ownedPixels = new HashMap<>();
+        Map<Integer, CompletableFuture<Object>> duplicatedPlanes = new HashMap<>();
+        for (int iC = 0; iC < nC; iC++) {
+            for (int iZ = 0; iZ < nZ; iZ++) {
+                for (int iT = 0; iT < nT; iT++) {
+                    int c = range.rangeC.get(iC);
+                    int z = range.rangeZ.get(iZ);
+                    int t = range.rangeT.get(iT);
                     int n = image.getStackIndex(iC + 1, iZ + 1, iT + 1);
-                    ImageProcessor ip = vStack.getProcessor(n);
-                    if (n == 1) {
-                        image.setProcessor(ip);
+                    Object pixels = stack.getPixels(n);
+
+                    PlaneDeduplicator.PlaneKey key = new PlaneDeduplicator.PlaneKey(sources.get(c).getSpimSource(), resolutionLevel, z, t);
+                    CompletableFuture<Object> planePixels = new CompletableFuture<>();
+                    CompletableFuture<Object> previous = deduplicator.register(key, planePixels);
+                    if (previous != null) {
+                        duplicatedPlanes.put(n, previous);
+                    } else {
+                        ownedPlanes.put(key, planePixels);
+                        ownedPixels.put(planePixels, pixels);
+                        List<int[]> tiles = planeFiller.getTiles(c, t);
+                        // The plane latency is measured from the start of its first tile to the end of its last tile
+                        AtomicLong planeStart = new AtomicLong();
+                        AtomicInteger remainingTiles = new AtomicInteger(tiles.size());
+                        for (int[] tile : tiles) {
+                            tasks.add(() -> {
+                                if (planeStart.compareAndSet(0, System.nanoTime())) metrics.planeStarted();
+                                planeFiller.fillRegion(c, z, t, pixels, tile[0], tile[1], tile[2], tile[3]);
+                                bytesCounter.addAndGet((long) (tile[2] - tile[0] + 1) * (long) (tile[3] - tile[1] + 1) * nBytesPerPixel);
+                                if (remainingTiles.decrementAndGet() == 0) metrics.planeDone(System.nanoTime() - planeStart.get());
+                            });
+                        }
                     }
-                    stack.setProcessor(ip, n);
-                    bytesCounter.addAndGet(nBytesPerPlane);
-                });
+                }
+            }
+        }
+        logger.debug(name+" get with "+range.getTotalPlanes()+" planes split in "+tasks.size()+" tiles, "+duplicatedPlanes.size()+" duplicated planes");
+
+        metrics.planesQueued(ownedPlanes.size());
+        try {
+            CZTTileScheduler.run(tasks);
+        } catch (RuntimeException e) {
+            ownedPlanes.forEach((key, planePixels) -> {
+                deduplicator.unregister(key, planePixels);
+                planePixels.completeExceptionally(e);
             });
+            metrics.done();
+            throw e;
+        } finally {
+            planeFiller.close(); // The intermediate virtual image is never displayed
+        }
+        // Owned planes are completed before waiting for duplicated ones : two exports
+        // sharing planes can not wait for each other
+        ownedPlanes.values().forEach(planePixels -> planePixels.complete(ownedPixels.get(planePixels)));
+
+        duplicatedPlanes.forEach((n, planePixels) -> {
+            long start = System.nanoTime();
+            System.arraycopy(planePixels.join(), 0, stack.getPixels(n), 0, w * h);
+            bytesCounter.addAndGet(nBytesPerPlane);
+            metrics.planeDone(System.nanoTime() - start);
         });
+        metrics.done();
+
+        ColorModel cm = planeFiller.getCM(range.rangeC.get(0));
+        if (cm != null) {
+            ImageProcessor ip = stack.getProcessor(1);
+            ip.setColorModel(cm);
+            image.setProcessor(ip);
+        }
 
         if ( ( czt[ 0 ] + czt[ 1 ] + czt[ 2 ] ) > 3 ) {
             // Needs conversion to hyperstack
@@ -348,15 +412,12 @@ public class ImagePlusGetter {
     }
 
     /**
-     * Simple class which monitors an amount of bytes processed (read / write / analyzed...)
-     * and outputs a message every time it is updated. This monitor updates itself every
-     * time step fixed in ms.
-     *
-     * A new thread is created for every monitor. The thread is stopped when the task is complete.
-     * as fixed by the boolean supplier.
+     * Monitors an export with its own thread and displays its progression in the IJ log
      *
-     * TODO : fix busy waiting
+     * @deprecated use {@link ExportMonitor} with {@link ExportMetrics} and {@link IJLogExportListener}, which
+     * reports all exports from a single thread
      */
+    @Deprecated
     public static class BytesMonitor {
         final Supplier<Long> bytesRead;
         final Supplier<Boolean> complete;
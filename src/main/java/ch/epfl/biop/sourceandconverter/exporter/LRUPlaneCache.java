@@ -0,0 +1,139 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import ij.process.ImageProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Plane cache with a maximal size in bytes. When the limit is reached, the least
+ * recently used planes are evicted.
+ *
+ * Evicted planes are not directly discarded : they are kept through a {@link SoftReference},
+ * which means they can be recovered as long as the garbage collector did not need the memory.
+ *
+ * Planes which share the same pixel array (for instance a plane put again with a new color
+ * model) are only counted once in the size of the cache.
+ *
+ */
+public class LRUPlaneCache implements PlaneCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(LRUPlaneCache.class);
+
+    final long maxBytes;
+
+    long currentBytes = 0;
+
+    // Access ordered : the eldest entry is the least recently used one
+    final LinkedHashMap<Integer, ImageProcessor> planes = new LinkedHashMap<>(16, 0.75f, true);
+
+    final Map<Integer, SoftReference<ImageProcessor>> evictedPlanes = new HashMap<>();
+
+    // Number of strongly referenced planes using each pixel array, compared by identity
+    final Map<Object, Integer> pixelsUsers = new IdentityHashMap<>();
+
+    public LRUPlaneCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        logger.debug("Plane cache created with a limit of "+(maxBytes/(1024*1024))+" Mb");
+    }
+
+    @Override
+    public synchronized ImageProcessor get(int n) {
+        ImageProcessor ip = planes.get(n);
+        if (ip!=null) return ip;
+        SoftReference<ImageProcessor> ref = evictedPlanes.remove(n);
+        if (ref!=null) {
+            ip = ref.get();
+            if (ip!=null) {
+                // Back to the strongly referenced planes
+                putStrong(n, ip);
+            }
+        }
+        return ip;
+    }
+
+    @Override
+    public synchronized void put(int n, ImageProcessor ip) {
+        evictedPlanes.remove(n);
+        putStrong(n, ip);
+    }
+
+    private void putStrong(int n, ImageProcessor ip) {
+        ImageProcessor previous = planes.put(n, ip);
+        charge(ip);
+        if (previous!=null) discharge(previous);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, ImageProcessor>> it = planes.entrySet().iterator();
+        // Keeps at least the most recent plane, even if it is bigger than the limit
+        while ((currentBytes > maxBytes) && (planes.size()>1) && it.hasNext()) {
+            Map.Entry<Integer, ImageProcessor> eldest = it.next();
+            it.remove();
+            discharge(eldest.getValue());
+            evictedPlanes.put(eldest.getKey(), new SoftReference<>(eldest.getValue()));
+        }
+        if (evictedPlanes.size()>2*planes.size()+16) {
+            // Purge the references already cleared by the garbage collector
+            evictedPlanes.values().removeIf(ref -> ref.get()==null);
+        }
+    }
+
+    @Override
+    public synchronized void remove(int n) {
+        ImageProcessor previous = planes.remove(n);
+        if (previous!=null) discharge(previous);
+        evictedPlanes.remove(n);
+    }
+
+    // Counts the bytes of a plane, unless its pixel array is already used by another cached plane
+    private void charge(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        if (pixels == null) {
+            currentBytes += PlaneCache.bytes(ip);
+            return;
+        }
+        if (pixelsUsers.merge(pixels, 1, Integer::sum) == 1) currentBytes += PlaneCache.bytes(ip);
+    }
+
+    // Uncounts the bytes of a plane, unless its pixel array is still used by another cached plane
+    private void discharge(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        if (pixels == null) {
+            currentBytes -= PlaneCache.bytes(ip);
+            return;
+        }
+        Integer users = pixelsUsers.get(pixels);
+        if (users == null) return;
+        if (users == 1) {
+            pixelsUsers.remove(pixels);
+            currentBytes -= PlaneCache.bytes(ip);
+        } else {
+            pixelsUsers.put(pixels, users - 1);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        planes.clear();
+        evictedPlanes.clear();
+        pixelsUsers.clear();
+        currentBytes = 0;
+    }
+
+    @Override
+    public synchronized long sizeInBytes() {
+        return currentBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
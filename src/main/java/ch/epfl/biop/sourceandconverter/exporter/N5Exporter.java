@@ -0,0 +1,546 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.services.SourceAndConverterServices;
+import sc.fiji.bdvpg.sourceandconverter.transform.SourceResampler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes a list of {@link SourceAndConverter} into a chunked and compressed N5 container,
+ * with a multiresolution pyramid computed on the fly.
+ *
+ * The layout follows the BigDataViewer N5 convention : each channel is a setup, and each
+ * exported dataset is stored at setup{c}/timepoint{t}/s{level}, with the downsampling
+ * factors stored as attributes. Each resolution level is downsampled by 2 in XY from the
+ * previous level, which is read back from the container.
+ *
+ * Blocks are computed in parallel on a dedicated {@link ForkJoinPool}. An interrupted export can
+ * be resumed by calling the export method again with the same parameters :
+ * - a fingerprint of the exported sources, transforms and range is stored in the container, and an
+ * export is refused if the container holds a different export
+ * - each written block is recorded by an empty marker file in {@link N5Exporter#PROGRESS_DIRECTORY},
+ * created once the block is fully written, so blocks are skipped without being read back
+ * - once all blocks of a dataset are written, the dataset is flagged as complete and its markers are deleted
+ *
+ * Each {@link SourceAndConverter} represents a channel. The dimension of each source
+ * need to be compatible, as in {@link ImagePlusGetter}.
+ */
+public class N5Exporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(N5Exporter.class);
+
+    public static final String DOWNSAMPLING_FACTORS_KEY = "downsamplingFactors";
+    public static final String DATA_TYPE_KEY = "dataType";
+    public static final String EXPORT_FINGERPRINT_KEY = "exportFingerprint";
+    public static final String EXPORT_COMPLETE_KEY = "exportComplete";
+
+    /**
+     * Directory of the container where the written blocks of the incomplete datasets are recorded,
+     * it is deleted once the export is complete
+     */
+    public static final String PROGRESS_DIRECTORY = ".exportProgress";
+
+    /**
+     * Resamples the sources like the model source and writes them into a N5 container,
+     * see {@link N5Exporter#export(String, List, int, CZTRange, String, int[], int, Compression, int, boolean)}
+     *
+     * @param name name of the export, used for logging
+     * @param sourceList sources to export, one per channel
+     * @param model model source which defines the sampling grid
+     * @param interpolate interpolates the sources when resampling
+     * @param range czt range exported
+     * @param n5Path path of the N5 container
+     * @param blockSize block size in pixels (x,y,z)
+     * @param numberOfLevels number of resolution levels written
+     * @param compression compression of the blocks
+     * @param nThreads number of threads used
+     * @param verbose if set to true, the progression of the export is displayed in the IJ log, see {@link ExportMonitor}
+     * @throws IOException if the container can't be written
+     */
+    public static void exportResampled(String name,
+                                       List<SourceAndConverter> sourceList,
+                                       SourceAndConverter model,
+                                       boolean interpolate,
+                                       CZTRange range,
+                                       String n5Path,
+                                       int[] blockSize,
+                                       int numberOfLevels,
+                                       Compression compression,
+                                       int nThreads,
+                                       boolean verbose) throws IOException {
+
+        if (sourceList.size() == 0) {
+            throw new UnsupportedOperationException("No input sources");
+        }
+
+        if (sourceList.stream().map(sac -> sac.getSpimSource().getType().getClass()).distinct().count()>1) {
+            throw new UnsupportedOperationException("Cannot export because all sources are not of the same type");
+        }
+
+        List<SourceAndConverter> resampledSourceList = sourceList
+                .stream()
+                .map(sac -> new SourceResampler(sac,model,sac.getSpimSource().getName()+"_SampledLike_"+model.getSpimSource().getName(), true, false, interpolate, 0).get())
+                .collect(Collectors.toList());
+
+        SourceAndConverterServices.getSourceAndConverterService().register(model);
+
+        // The resampled sources carry the model transform, the original sources are needed
+        // to detect that a resumed export would resample different data
+        String fingerprint = "resampled:"+fingerprint(resampledSourceList, 0, range)
+                +" from:"+fingerprint(sourceList, 0, range)+" interpolate:"+interpolate;
+
+        export(name, resampledSourceList, 0, range, n5Path, blockSize, numberOfLevels, compression, nThreads, verbose, fingerprint);
+    }
+
+    /**
+     * Writes the sources into a N5 container
+     *
+     * @param name name of the export, used for logging
+     * @param sources sources to export, one per channel
+     * @param resolutionLevel resolution Level of the sources
+     * @param range czt range exported
+     * @param n5Path path of the N5 container
+     * @param blockSize block size in pixels (x,y,z)
+     * @param numberOfLevels number of resolution levels written
+     * @param compression compression of the blocks
+     * @param nThreads number of threads used
+     * @param verbose if set to true, the progression of the export is displayed in the IJ log, see {@link ExportMonitor}
+     * @throws IOException if the container can't be written
+     */
+    public static void export(String name,
+                              List<SourceAndConverter> sources,
+                              int resolutionLevel,
+                              CZTRange range,
+                              String n5Path,
+                              int[] blockSize,
+                              int numberOfLevels,
+                              Compression compression,
+                              int nThreads,
+                              boolean verbose) throws IOException {
+        export(name, sources, resolutionLevel, range, n5Path, blockSize, numberOfLevels, compression, nThreads, verbose,
+                fingerprint(sources, resolutionLevel, range));
+    }
+
+    static void export(String name,
+                       List<SourceAndConverter> sources,
+                       int resolutionLevel,
+                       CZTRange range,
+                       String n5Path,
+                       int[] blockSize,
+                       int numberOfLevels,
+                       Compression compression,
+                       int nThreads,
+                       boolean verbose,
+                       String fingerprint) throws IOException {
+
+        final int tModel = range.getRangeT().get(0);
+        RandomAccessibleInterval<?> raiModel = sources.get(0).getSpimSource().getSource(tModel, resolutionLevel);
+        final Object type = Util.getTypeFromInterval(raiModel);
+        final DataType dataType;
+        final int bytesPerPixel;
+        if (type instanceof UnsignedShortType) {
+            dataType = DataType.UINT16;
+            bytesPerPixel = 2;
+        } else if (type instanceof UnsignedByteType) {
+            dataType = DataType.UINT8;
+            bytesPerPixel = 1;
+        } else if (type instanceof FloatType) {
+            dataType = DataType.FLOAT32;
+            bytesPerPixel = 4;
+        } else {
+            throw new UnsupportedOperationException("Type "+type.getClass()+" unsupported.");
+        }
+
+        // Dimensions of each resolution level
+        long[][] dimensions = new long[numberOfLevels][];
+        dimensions[0] = new long[]{raiModel.dimension(0), raiModel.dimension(1), range.getRangeZ().size()};
+        for (int level = 1; level<numberOfLevels; level++) {
+            dimensions[level] = new long[]{
+                    (dimensions[level-1][0]+1)/2,
+                    (dimensions[level-1][1]+1)/2,
+                    dimensions[level-1][2]};
+        }
+
+        int[] cappedBlockSize = new int[]{
+                blockSize[0],
+                blockSize[1],
+                (int) Math.min(blockSize[2], dimensions[0][2])};
+
+        N5Writer n5 = new N5FSWriter(n5Path);
+
+        final String exportFingerprint = hash(fingerprint+" levels:"+numberOfLevels);
+        String storedFingerprint = n5.getAttribute("/", EXPORT_FINGERPRINT_KEY, String.class);
+        if (storedFingerprint != null) {
+            if (!storedFingerprint.equals(exportFingerprint)) {
+                throw new UnsupportedOperationException("The container "+n5Path+" holds a different export (sources, transforms or range), it can't be resumed.");
+            }
+            logger.debug("Resuming export in "+n5Path);
+        } else if (n5.datasetExists(getPathName(0, 0, 0))) {
+            throw new UnsupportedOperationException("The container "+n5Path+" holds an export which can't be identified, it can't be resumed.");
+        }
+        n5.setAttribute("/", EXPORT_FINGERPRINT_KEY, exportFingerprint);
+
+        double[][] downsamplingFactors = new double[numberOfLevels][];
+        for (int level = 0; level<numberOfLevels; level++) {
+            downsamplingFactors[level] = new double[]{1<<level, 1<<level, 1};
+        }
+
+        long totalBytes = 0;
+        long totalBlocks = 0;
+        for (int level = 0; level<numberOfLevels; level++) {
+            totalBytes += dimensions[level][0]*dimensions[level][1]*dimensions[level][2]*bytesPerPixel;
+            long nBlocks = 1;
+            for (int d = 0; d<3; d++) {
+                nBlocks *= (dimensions[level][d] + cappedBlockSize[d] - 1) / cappedBlockSize[d];
+            }
+            totalBlocks += nBlocks;
+        }
+        totalBytes *= range.getRangeC().size() * range.getRangeT().size();
+        totalBlocks *= range.getRangeC().size() * range.getRangeT().size();
+
+        for (int iC = 0; iC<range.getRangeC().size(); iC++) {
+            String setupPath = String.format("setup%d", iC);
+            n5.createGroup(setupPath);
+            n5.setAttribute(setupPath, DOWNSAMPLING_FACTORS_KEY, downsamplingFactors);
+            n5.setAttribute(setupPath, DATA_TYPE_KEY, dataType);
+            for (int iT = 0; iT<range.getRangeT().size(); iT++) {
+                for (int level = 0; level<numberOfLevels; level++) {
+                    String path = getPathName(iC, iT, level);
+                    if (n5.datasetExists(path)) {
+                        DatasetAttributes attributes = n5.getDatasetAttributes(path);
+                        if ((!Arrays.equals(attributes.getDimensions(), dimensions[level]))
+                                ||(!Arrays.equals(attributes.getBlockSize(), cappedBlockSize))
+                                ||(attributes.getDataType()!=dataType)) {
+                            throw new UnsupportedOperationException("Existing dataset "+path+" in "+n5Path+" is not compatible with the export.");
+                        }
+                        logger.debug("Resuming export of "+path);
+                    } else {
+                        n5.createDataset(path, dimensions[level], cappedBlockSize, dataType, compression);
+                        n5.setAttribute(path, DOWNSAMPLING_FACTORS_KEY, downsamplingFactors[level]);
+                    }
+                }
+            }
+        }
+
+        // Each block counts as a plane in the metrics
+        final ExportMetrics metrics = new ExportMetrics(name, totalBlocks, totalBytes, false);
+        final AtomicLong bytesCounter = metrics.getBytesCounter();
+
+        if (verbose) {
+            ExportMonitor.monitor(metrics, new IJLogExportListener("Starting export of " + name + "..."));
+        } else {
+            ExportMonitor.monitor(metrics);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, nThreads));
+        try {
+            for (int level = 0; level<numberOfLevels; level++) {
+                // A level needs to be completely written before the next one is computed
+                List<long[]> blocks = new ArrayList<>(); // iC, iT, gx, gy, gz
+                long[] gridDimensions = new long[3];
+                for (int d = 0; d<3; d++) {
+                    gridDimensions[d] = (dimensions[level][d] + cappedBlockSize[d] - 1) / cappedBlockSize[d];
+                }
+                for (int iC = 0; iC<range.getRangeC().size(); iC++) {
+                    for (int iT = 0; iT<range.getRangeT().size(); iT++) {
+                        for (long gz = 0; gz<gridDimensions[2]; gz++) {
+                            for (long gy = 0; gy<gridDimensions[1]; gy++) {
+                                for (long gx = 0; gx<gridDimensions[0]; gx++) {
+                                    blocks.add(new long[]{iC, iT, gx, gy, gz});
+                                }
+                            }
+                        }
+                    }
+                }
+
+                // Datasets completed by a previous export are skipped without looking at their blocks
+                Set<String> completePaths = new HashSet<>();
+                for (int iC = 0; iC<range.getRangeC().size(); iC++) {
+                    for (int iT = 0; iT<range.getRangeT().size(); iT++) {
+                        String path = getPathName(iC, iT, level);
+                        if (Boolean.TRUE.equals(n5.getAttribute(path, EXPORT_COMPLETE_KEY, Boolean.class))) {
+                            completePaths.add(path);
+                        }
+                    }
+                }
+
+                final int currentLevel = level;
+                metrics.planesQueued(blocks.size());
+                pool.submit(() -> blocks.parallelStream().forEach(block -> {
+                    metrics.planeStarted();
+                    long start = System.nanoTime();
+                    int iC = (int) block[0];
+                    int iT = (int) block[1];
+                    long[] gridPosition = new long[]{block[2], block[3], block[4]};
+                    String path = getPathName(iC, iT, currentLevel);
+                    try {
+                        DatasetAttributes attributes = n5.getDatasetAttributes(path);
+                        if ((!completePaths.contains(path))&&(!isBlockWritten(n5Path, path, gridPosition))) {
+                            DataBlock<?> dataBlock;
+                            if (currentLevel == 0) {
+                                dataBlock = sampleBlock(sources.get(range.getRangeC().get(iC)), resolutionLevel,
+                                        range.getRangeT().get(iT), range.getRangeZ(), attributes, gridPosition);
+                            } else {
+                                String previousPath = getPathName(iC, iT, currentLevel-1);
+                                dataBlock = downsampleBlock(n5, previousPath, n5.getDatasetAttributes(previousPath), attributes, gridPosition);
+                            }
+                            n5.writeBlock(path, attributes, dataBlock);
+                            markBlockWritten(n5Path, path, gridPosition);
+                        }
+                        bytesCounter.addAndGet((long) blockNumElements(attributes, gridPosition) * bytesPerPixel);
+                        metrics.planeDone(System.nanoTime() - start);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })).get();
+
+                for (int iC = 0; iC<range.getRangeC().size(); iC++) {
+                    for (int iT = 0; iT<range.getRangeT().size(); iT++) {
+                        String path = getPathName(iC, iT, level);
+                        if (completePaths.contains(path)) continue;
+                        n5.setAttribute(path, EXPORT_COMPLETE_KEY, true);
+                        deleteDirectory(Paths.get(n5Path, PROGRESS_DIRECTORY, path));
+                    }
+                }
+            }
+            deleteDirectory(Paths.get(n5Path, PROGRESS_DIRECTORY));
+        } catch (Exception e) {
+            throw new IOException("Export of "+name+" to "+n5Path+" failed", e);
+        } finally {
+            pool.shutdown();
+            metrics.done();
+        }
+    }
+
+    /**
+     * @return true if the marker of the block exists, which means the block was fully written :
+     * a block interrupted while being written has no marker and is written again
+     */
+    static boolean isBlockWritten(String n5Path, String path, long[] gridPosition) {
+        return Files.exists(getMarkerPath(n5Path, path, gridPosition));
+    }
+
+    static void markBlockWritten(String n5Path, String path, long[] gridPosition) throws IOException {
+        Path marker = getMarkerPath(n5Path, path, gridPosition);
+        Files.createDirectories(marker.getParent());
+        if (!Files.exists(marker)) Files.createFile(marker);
+    }
+
+    static Path getMarkerPath(String n5Path, String path, long[] gridPosition) {
+        return Paths.get(n5Path, PROGRESS_DIRECTORY, path,
+                Long.toString(gridPosition[0]), Long.toString(gridPosition[1]), Long.toString(gridPosition[2]));
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * Describes what is exported : for each exported source, its name, pixel type, and the
+     * dimensions and transform of each exported timepoint, as well as the resolution level and the range
+     *
+     * @param sources sources, one per channel
+     * @param resolutionLevel resolution level of the sources
+     * @param range czt range exported
+     * @return a description which changes if the exported data changes
+     */
+    static String fingerprint(List<SourceAndConverter> sources, int resolutionLevel, CZTRange range) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("level:").append(resolutionLevel).append(" range:").append(range);
+        for (int c : range.getRangeC()) {
+            Source<?> source = sources.get(c).getSpimSource();
+            builder.append(" source:").append(source.getName())
+                    .append(" type:").append(source.getType().getClass().getName());
+            for (int t : range.getRangeT()) {
+                builder.append(" t").append(t).append(":");
+                if (!source.isPresent(t)) {
+                    builder.append("absent");
+                    continue;
+                }
+                AffineTransform3D transform = new AffineTransform3D();
+                source.getSourceTransform(t, resolutionLevel, transform);
+                builder.append(Arrays.toString(transform.getRowPackedCopy()))
+                        .append(Arrays.toString(Intervals.dimensionsAsLongArray(source.getSource(t, resolutionLevel))));
+            }
+        }
+        return builder.toString();
+    }
+
+    static String hash(String description) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest) builder.append(String.format("%02x", b));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform supports SHA-256
+        }
+    }
+
+    public static String getPathName(int setupId, int timepointId, int level) {
+        return String.format("setup%d/timepoint%d/s%d", setupId, timepointId, level);
+    }
+
+    static int[] blockSize(DatasetAttributes attributes, long[] gridPosition) {
+        int[] size = new int[3];
+        for (int d = 0; d<3; d++) {
+            long min = gridPosition[d] * attributes.getBlockSize()[d];
+            size[d] = (int) Math.min(attributes.getBlockSize()[d], attributes.getDimensions()[d] - min);
+        }
+        return size;
+    }
+
+    static int blockNumElements(DatasetAttributes attributes, long[] gridPosition) {
+        int[] size = blockSize(attributes, gridPosition);
+        return size[0]*size[1]*size[2];
+    }
+
+    /**
+     * Samples a block of the full resolution level from a source
+     */
+    static DataBlock<?> sampleBlock(SourceAndConverter<?> sac, int resolutionLevel, int t, List<Integer> rangeZ,
+                                    DatasetAttributes attributes, long[] gridPosition) {
+        int[] size = blockSize(attributes, gridPosition);
+        DataBlock<?> dataBlock = attributes.getDataType().createDataBlock(size, gridPosition, size[0]*size[1]*size[2]);
+        Object data = dataBlock.getData();
+
+        RandomAccessibleInterval<RealType<?>> rai = Views.zeroMin((RandomAccessibleInterval<RealType<?>>) sac.getSpimSource().getSource(t, resolutionLevel));
+
+        long minX = gridPosition[0] * attributes.getBlockSize()[0];
+        long minY = gridPosition[1] * attributes.getBlockSize()[1];
+        long minZ = gridPosition[2] * attributes.getBlockSize()[2];
+
+        int idx = 0;
+        for (int z = 0; z<size[2]; z++) {
+            RandomAccessibleInterval<RealType<?>> slice = Views.hyperSlice(rai, 2, rangeZ.get((int) (minZ + z)));
+            RandomAccessibleInterval<RealType<?>> tile = Views.interval(slice,
+                    new long[]{minX, minY},
+                    new long[]{minX + size[0] - 1, minY + size[1] - 1});
+            for (Cursor<RealType<?>> c = Views.flatIterable(tile).cursor(); c.hasNext(); idx++) {
+                setValue(data, idx, c.next().getRealDouble());
+            }
+        }
+        return dataBlock;
+    }
+
+    /**
+     * Computes a block of a level by averaging 2x2 pixels of the previous level, read from the container
+     */
+    static DataBlock<?> downsampleBlock(N5Writer n5, String previousPath, DatasetAttributes previousAttributes,
+                                        DatasetAttributes attributes, long[] gridPosition) throws IOException {
+        int[] size = blockSize(attributes, gridPosition);
+        DataBlock<?> dataBlock = attributes.getDataType().createDataBlock(size, gridPosition, size[0]*size[1]*size[2]);
+        Object data = dataBlock.getData();
+
+        // Both levels share the same block size, so an output block covers up to 2x2 blocks of the previous level
+        DataBlock<?>[][] previousBlocks = new DataBlock<?>[2][2];
+        long[] previousDimensions = previousAttributes.getDimensions();
+        long[] previousGridDimensions = new long[2];
+        for (int d = 0; d<2; d++) {
+            previousGridDimensions[d] = (previousDimensions[d] + previousAttributes.getBlockSize()[d] - 1) / previousAttributes.getBlockSize()[d];
+        }
+        for (int i = 0; i<2; i++) {
+            for (int j = 0; j<2; j++) {
+                long gx = 2*gridPosition[0]+i;
+                long gy = 2*gridPosition[1]+j;
+                if ((gx<previousGridDimensions[0])&&(gy<previousGridDimensions[1])) {
+                    previousBlocks[i][j] = n5.readBlock(previousPath, previousAttributes, gx, gy, gridPosition[2]);
+                }
+            }
+        }
+
+        int bx = attributes.getBlockSize()[0];
+        int by = attributes.getBlockSize()[1];
+        long minX = gridPosition[0] * bx;
+        long minY = gridPosition[1] * by;
+
+        int idx = 0;
+        for (int z = 0; z<size[2]; z++) {
+            for (int y = 0; y<size[1]; y++) {
+                for (int x = 0; x<size[0]; x++) {
+                    double sum = 0;
+                    int count = 0;
+                    for (int dy = 0; dy<2; dy++) {
+                        long py = 2*(minY + y) + dy;
+                        if (py>=previousDimensions[1]) continue;
+                        for (int dx = 0; dx<2; dx++) {
+                            long px = 2*(minX + x) + dx;
+                            if (px>=previousDimensions[0]) continue;
+                            DataBlock<?> previous = previousBlocks[(int) (px / bx - 2*gridPosition[0])][(int) (py / by - 2*gridPosition[1])];
+                            int[] previousSize = previous.getSize();
+                            int previousIdx = (int) (px % bx) + (int) (py % by) * previousSize[0] + z * previousSize[0] * previousSize[1];
+                            sum += getValue(previous.getData(), previousIdx);
+                            count++;
+                        }
+                    }
+                    setValue(data, idx, sum/count);
+                    idx++;
+                }
+            }
+        }
+        return dataBlock;
+    }
+
+    static double getValue(Object data, int idx) {
+        if (data instanceof short[]) {
+            return ((short[]) data)[idx] & 0xffff;
+        } else if (data instanceof byte[]) {
+            return ((byte[]) data)[idx] & 0xff;
+        } else {
+            return ((float[]) data)[idx];
+        }
+    }
+
+    static void setValue(Object data, int idx, double value) {
+        if (data instanceof short[]) {
+            ((short[]) data)[idx] = (short) Math.round(value);
+        } else if (data instanceof byte[]) {
+            ((byte[]) data)[idx] = (byte) Math.round(value);
+        } else {
+            ((float[]) data)[idx] = (float) value;
+        }
+    }
+
+}
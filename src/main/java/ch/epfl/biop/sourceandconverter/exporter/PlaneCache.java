@@ -0,0 +1,80 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Cache of computed planes used by {@link SourceAndConverterVirtualStack}.
+ * Planes are indexed by their ImageJ stack index (1-based).
+ *
+ * Use the static methods of this interface to get the cache policy:
+ * - {@link PlaneCache#unbounded()} keeps all planes in memory (this fills the RAM if all planes are visited)
+ * - {@link PlaneCache#bounded(long)} keeps planes up to a certain amount of bytes, least recently used planes are evicted first
+ * - {@link PlaneCache#fractionOfMaxMemory(double)} same as bounded, with a limit which is a fraction of the JVM max memory (-Xmx)
+ *
+ */
+public interface PlaneCache {
+
+    /**
+     * Default fraction of the JVM max memory used by a virtual stack cache
+     */
+    double DEFAULT_MAX_MEMORY_FRACTION = 0.25;
+
+    /**
+     * @param n plane index
+     * @return the cached plane, or null if the plane is not present in the cache
+     */
+    ImageProcessor get(int n);
+
+    /**
+     * Stores a plane in the cache
+     * @param n plane index
+     * @param ip processor to cache
+     */
+    void put(int n, ImageProcessor ip);
+
+    /**
+     * @param n plane index
+     * @return true if the plane is present in the cache
+     */
+    default boolean contains(int n) {
+        return get(n)!=null;
+    }
+
+    /**
+     * Removes a plane from the cache
+     * @param n plane index
+     */
+    void remove(int n);
+
+    /**
+     * Removes all planes from the cache
+     */
+    void clear();
+
+    /**
+     * @return number of bytes strongly held by the cache
+     */
+    long sizeInBytes();
+
+    static PlaneCache unbounded() {
+        return new UnboundedPlaneCache();
+    }
+
+    static PlaneCache bounded(long maxBytes) {
+        return new LRUPlaneCache(maxBytes);
+    }
+
+    static PlaneCache fractionOfMaxMemory(double fraction) {
+        return new LRUPlaneCache((long) (Runtime.getRuntime().maxMemory() * fraction));
+    }
+
+    /**
+     * @param ip image processor
+     * @return the number of bytes used by the pixels of an image processor
+     */
+    static long bytes(ImageProcessor ip) {
+        int bytesPerPixel = ip.getBitDepth() == 24 ? 4 : ip.getBitDepth() / 8;
+        return (long) ip.getPixelCount() * (long) bytesPerPixel;
+    }
+
+}
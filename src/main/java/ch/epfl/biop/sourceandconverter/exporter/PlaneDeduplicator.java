@@ -0,0 +1,76 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import bdv.viewer.Source;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the planes exported by one or several calls to
+ * {@link ImagePlusGetter#getImagePlus(String, java.util.List, int, CZTRange, boolean, PlaneDeduplicator)},
+ * in order to compute only once a plane which is exported several times : when a {@link CZTRange}
+ * repeats an index, when several channels are the same source, or when several exported images
+ * share a source.
+ *
+ * A plane is identified by its source, resolution level, slice and timepoint, see {@link PlaneKey}.
+ * The first export registering a plane computes it, the others wait for its pixels and copy them.
+ * Pixels are copied and not shared because the planes of a non virtual ImagePlus are mutable.
+ *
+ * Computed planes are referenced as long as the deduplicator is, so it should not outlive
+ * the export(s) it is used for.
+ */
+public class PlaneDeduplicator {
+
+    final Map<PlaneKey, CompletableFuture<Object>> planes = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a plane which is going to be exported
+     * @param key plane identifier
+     * @param pixels future pixel array of the plane, which should be completed by the caller once the plane is computed
+     * @return null if the plane was not registered before : the caller is then responsible for computing
+     * the plane and completing pixels. Otherwise, returns the future pixel array of the previously registered plane.
+     */
+    public CompletableFuture<Object> register(PlaneKey key, CompletableFuture<Object> pixels) {
+        return planes.putIfAbsent(key, pixels);
+    }
+
+    /**
+     * Unregisters a plane which could not be computed, so that a later export can compute it again
+     * @param key plane identifier
+     * @param pixels future pixel array registered for this plane
+     */
+    public void unregister(PlaneKey key, CompletableFuture<Object> pixels) {
+        planes.remove(key, pixels);
+    }
+
+    /**
+     * Identifies a plane independently of the exported image it belongs to
+     */
+    public static class PlaneKey {
+        final Source<?> source;
+        final int level, z, t;
+
+        public PlaneKey(Source<?> source, int level, int z, int t) {
+            this.source = source;
+            this.level = level;
+            this.z = z;
+            this.t = t;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PlaneKey planeKey = (PlaneKey) o;
+            return source == planeKey.source && level == planeKey.level && z == planeKey.z && t == planeKey.t;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(source), level, z, t);
+        }
+    }
+
+}
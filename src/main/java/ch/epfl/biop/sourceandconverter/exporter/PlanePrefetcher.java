@@ -0,0 +1,157 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Loads in advance the planes of a virtual stack which are likely to be requested next.
+ *
+ * The access pattern is analyzed independently for each channel (a composite image
+ * requests all channels for each displayed z,t position):
+ * - if the previous request was on the neighbouring slice, the next slices in the same direction are loaded (Z sweep)
+ * - if the previous request was on the neighbouring frame, the next frames in the same direction are loaded (T playback, looping at the end)
+ * - otherwise (the user jumped somewhere else), the pending loading requests of this channel are cancelled
+ *
+ * Planes are loaded on a background executor shared by all virtual stacks, and which has a bounded
+ * number of threads.
+ *
+ * All c,z,t positions are 1-based, as in ImageJ.
+ */
+public class PlanePrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(PlanePrefetcher.class);
+
+    final static ThreadPoolExecutor executor;
+
+    static {
+        int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "Virtual stack prefetch "+threadCounter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Converts a 1-based c,z,t position into a 1-based stack index
+     */
+    public interface StackIndex {
+        int get(int c, int z, int t);
+    }
+
+    final int nZ, nT, depth;
+    final StackIndex stackIndex;
+    final IntPredicate isLoaded;
+    final IntConsumer loader;
+
+    final Map<Integer, int[]> lastPositionPerChannel = new HashMap<>();
+    final Map<Integer, Map<Integer, Future<?>>> pendingPerChannel = new HashMap<>();
+
+    /**
+     * @param nZ number of slices
+     * @param nT number of frames
+     * @param depth number of planes loaded in advance
+     * @param stackIndex converts a position to a stack index
+     * @param isLoaded tests whether a plane (stack index) is already available
+     * @param loader loads a plane (stack index)
+     */
+    public PlanePrefetcher(int nZ, int nT, int depth,
+                           StackIndex stackIndex,
+                           IntPredicate isLoaded,
+                           IntConsumer loader) {
+        this.nZ = nZ;
+        this.nT = nT;
+        this.depth = depth;
+        this.stackIndex = stackIndex;
+        this.isLoaded = isLoaded;
+        this.loader = loader;
+    }
+
+    /**
+     * Notifies the prefetcher that a plane has been requested
+     * @param c channel
+     * @param z slice
+     * @param t frame
+     */
+    public synchronized void accessed(int c, int z, int t) {
+        int[] last = lastPositionPerChannel.put(c, new int[]{z, t});
+        Map<Integer, Future<?>> pending = pendingPerChannel.computeIfAbsent(c, k -> new ConcurrentHashMap<>());
+
+        Set<Integer> window = new HashSet<>();
+        if (last!=null) {
+            int dz = z - last[0];
+            int dt = t - last[1];
+            if ((nT > 2) && (Math.abs(dt) == nT - 1)) dt = -Integer.signum(dt); // Animation looping back
+            if ((dt == 0) && (Math.abs(dz) == 1)) {
+                for (int i = 1; i <= depth; i++) {
+                    int nextZ = z + i * dz;
+                    if ((nextZ < 1) || (nextZ > nZ)) break;
+                    window.add(stackIndex.get(c, nextZ, t));
+                }
+            } else if ((dz == 0) && (Math.abs(dt) == 1)) {
+                for (int i = 1; (i <= depth) && (i < nT); i++) {
+                    int nextT = Math.floorMod(t - 1 + i * dt, nT) + 1; // Loops, as in ImageJ animations
+                    window.add(stackIndex.get(c, z, nextT));
+                }
+            }
+        }
+
+        // Cancels stale requests
+        pending.entrySet().removeIf(entry -> {
+            if (!window.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                return true;
+            }
+            return false;
+        });
+        executor.purge();
+
+        for (int n : window) {
+            if (pending.containsKey(n) || isLoaded.test(n)) continue;
+            // The task is registered before it is executed, and only removes its own entry once done,
+            // so that a finished task can't be left in the pending requests
+            FutureTask<Void> task = new FutureTask<Void>(() -> {
+                try {
+                    loader.accept(n);
+                } catch (Exception e) {
+                    logger.debug("Could not prefetch plane "+n+" : "+e.getMessage());
+                }
+            }, null) {
+                @Override
+                protected void done() {
+                    pending.remove(n, this);
+                }
+            };
+            pending.put(n, task);
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Cancels all the pending loading requests
+     */
+    public synchronized void cancelAll() {
+        pendingPerChannel.values().forEach(pending -> {
+            pending.values().forEach(future -> future.cancel(false));
+            pending.clear();
+        });
+        executor.purge();
+    }
+}
@@ -0,0 +1,30 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import net.imglib2.RandomAccessibleInterval;
+
+/**
+ * Copies a XY region of a 2D image into the primitive array of an ImageJ plane.
+ *
+ * There is one implementation per pixel type, see {@link PlaneSamplers#forType(Object)},
+ * which is chosen once per exported stack. Each implementation has its own copy loop,
+ * so that the JIT sees a single pixel type and a single primitive array type per loop,
+ * instead of a generic loop shared by all pixel types.
+ *
+ * @param <T> pixel type of the sampled image
+ */
+public interface PlaneSampler<T> {
+
+    /**
+     * Copies a XY region of a 2D image into a primitive array
+     *
+     * @param slice 2D image, region coordinates are relative to its min
+     * @param pixels pixel array of the full plane (byte[], short[], float[] or int[]), of size width * height
+     * @param width width of the full plane
+     * @param minX min x of the region, included
+     * @param minY min y of the region, included
+     * @param maxX max x of the region, included
+     * @param maxY max y of the region, included
+     */
+    void fill(RandomAccessibleInterval<T> slice, Object pixels, int width, int minX, int minY, int maxX, int maxY);
+
+}
@@ -0,0 +1,91 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Type specialized {@link PlaneSampler}s for the pixel types supported by
+ * {@link SourceAndConverterVirtualStack} : uint8, uint16 and float32.
+ *
+ * Each region is copied row by row with a {@link RandomAccess} moved along x, which
+ * is cheaper than a cursor over a flat iterable view of the region.
+ */
+public class PlaneSamplers {
+
+    /**
+     * @param type pixel type of the sampled image, see {@link net.imglib2.util.Util#getTypeFromInterval(RandomAccessibleInterval)}
+     * @return the sampler specialized for this pixel type
+     */
+    public static PlaneSampler<?> forType(Object type) {
+        if (type instanceof UnsignedByteType) return new UInt8();
+        if (type instanceof UnsignedShortType) return new UInt16();
+        if (type instanceof FloatType) return new Float32();
+        throw new UnsupportedOperationException("Type "+type.getClass()+" unsupported.");
+    }
+
+    static Interval region(RandomAccessibleInterval<?> slice, int minX, int minY, int maxX, int maxY) {
+        return new FinalInterval(
+                new long[]{slice.min(0) + minX, slice.min(1) + minY},
+                new long[]{slice.min(0) + maxX, slice.min(1) + maxY});
+    }
+
+    public static final class UInt8 implements PlaneSampler<UnsignedByteType> {
+        @Override
+        public void fill(RandomAccessibleInterval<UnsignedByteType> slice, Object pixels, int width, int minX, int minY, int maxX, int maxY) {
+            final byte[] out = (byte[]) pixels;
+            final RandomAccess<UnsignedByteType> ra = slice.randomAccess(region(slice, minX, minY, maxX, maxY));
+            final int regionWidth = maxX - minX + 1;
+            for (int y = minY; y <= maxY; y++) {
+                ra.setPosition(slice.min(0) + minX, 0);
+                ra.setPosition(slice.min(1) + y, 1);
+                final int offset = y * width + minX;
+                for (int x = 0; x < regionWidth; x++) {
+                    out[offset + x] = (byte) ra.get().get();
+                    ra.fwd(0);
+                }
+            }
+        }
+    }
+
+    public static final class UInt16 implements PlaneSampler<UnsignedShortType> {
+        @Override
+        public void fill(RandomAccessibleInterval<UnsignedShortType> slice, Object pixels, int width, int minX, int minY, int maxX, int maxY) {
+            final short[] out = (short[]) pixels;
+            final RandomAccess<UnsignedShortType> ra = slice.randomAccess(region(slice, minX, minY, maxX, maxY));
+            final int regionWidth = maxX - minX + 1;
+            for (int y = minY; y <= maxY; y++) {
+                ra.setPosition(slice.min(0) + minX, 0);
+                ra.setPosition(slice.min(1) + y, 1);
+                final int offset = y * width + minX;
+                for (int x = 0; x < regionWidth; x++) {
+                    out[offset + x] = (short) ra.get().get();
+                    ra.fwd(0);
+                }
+            }
+        }
+    }
+
+    public static final class Float32 implements PlaneSampler<FloatType> {
+        @Override
+        public void fill(RandomAccessibleInterval<FloatType> slice, Object pixels, int width, int minX, int minY, int maxX, int maxY) {
+            final float[] out = (float[]) pixels;
+            final RandomAccess<FloatType> ra = slice.randomAccess(region(slice, minX, minY, maxX, maxY));
+            final int regionWidth = maxX - minX + 1;
+            for (int y = minY; y <= maxY; y++) {
+                ra.setPosition(slice.min(0) + minX, 0);
+                ra.setPosition(slice.min(1) + y, 1);
+                final int offset = y * width + minX;
+                for (int x = 0; x < regionWidth; x++) {
+                    out[offset + x] = ra.get().get();
+                    ra.fwd(0);
+                }
+            }
+        }
+    }
+
+}
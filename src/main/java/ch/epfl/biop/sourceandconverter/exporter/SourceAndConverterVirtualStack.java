@@ -1,11 +1,10 @@
 package ch.epfl.biop.sourceandconverter.exporter;
 
 import bdv.viewer.SourceAndConverter;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.VirtualStack;
 import ij.process.*;
-import net.imglib2.Cursor;
-import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -20,6 +19,7 @@ import java.awt.*;
 import java.awt.image.ColorModel;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -27,7 +27,14 @@ import java.util.concurrent.atomic.AtomicLong;
  * Class which copies an ImagePlus, except that it applies an operation to modify
  * each ImageProcessor when it is requested.
  *
- * TODO : cache CZT key to make faster the duplication of identical frames
+ * When the cache is enabled, each plane is computed only once, even if it is requested
+ * concurrently by several threads : the first thread computes the plane, the others
+ * join the corresponding {@link CompletableFuture}. No global lock is used.
+ *
+ * Identical planes (repeated czt index, or several channels being the same source) are
+ * computed only once : each other stack index gets a copy of the pixels, so that editing
+ * or replacing one of them with {@link SourceAndConverterVirtualStack#setProcessor(ImageProcessor, int)}
+ * does not affect the others. Without cache, only planes requested concurrently are computed once.
  *
  */
 
@@ -39,9 +46,13 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
 
     final int bitDepth, size, height, width;
 
-    Map<Integer, ImageProcessor> cachedImageProcessor = new ConcurrentHashMap<>();
-    Map<Integer, Object> currentlyProcessedProcessor = new HashMap<>();
-    Map<CZTId, Integer> cztIdToComputedProcessor = new HashMap<>();
+    // Computed planes when cache is true, these planes can be evicted and computed again
+    final PlaneCache cachedImageProcessor;
+    // Planes set through setProcessor, they can't be computed again from the sources, so they are never evicted
+    final Map<Integer, ImageProcessor> setProcessors = new ConcurrentHashMap<>();
+    // Planes being computed, any thread requesting the same plane joins the future instead of computing it again
+    final Map<CZTId, CompletableFuture<ImageProcessor>> processorsInComputation = new ConcurrentHashMap<>();
+    final Map<CZTId, Integer> cztIdToComputedProcessor = new ConcurrentHashMap<>();
 
     final List<SourceAndConverter> sources;
     final int resolutionLevel;
@@ -51,13 +62,34 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
     final AtomicLong bytesCounter;
     final boolean cache;
     final int totalPlanes;
+    // Chosen once according to the pixel type, used when a plane can't be copied in bulk
+    final PlaneSampler sampler;
     private final int nChannels, nZSlices, nFrames;
+    // For each source index, index of the first source which is identical : identical sources have identical planes,
+    // which are computed once but handed out as copies, so that editing a channel does not modify the other one
+    final int[] canonicalC;
 
     public SourceAndConverterVirtualStack(List<SourceAndConverter> sources,
                                           int resolutionLevel,
                                           CZTRange range,
                                           AtomicLong bytesCounter, boolean cache) {
-        this.cache = cache;
+        this(sources, resolutionLevel, range, bytesCounter,
+                cache ? PlaneCache.fractionOfMaxMemory(PlaneCache.DEFAULT_MAX_MEMORY_FRACTION) : null);
+    }
+
+    /**
+     * @param sources sources, one per channel
+     * @param resolutionLevel resolution level of the sources
+     * @param range czt range exported
+     * @param bytesCounter counter incremented each time a plane is read
+     * @param planeCache cache policy used to store computed planes, null if planes should not be cached
+     */
+    public SourceAndConverterVirtualStack(List<SourceAndConverter> sources,
+                                          int resolutionLevel,
+                                          CZTRange range,
+                                          AtomicLong bytesCounter, PlaneCache planeCache) {
+        this.cache = planeCache!=null;
+        this.cachedImageProcessor = cache ? planeCache : PlaneCache.unbounded();
         final int tModel = range.getRangeT().get(0);
         RandomAccessibleInterval raiModel = sources.get(0).getSpimSource().getSource(tModel,resolutionLevel);
         width = (int) raiModel.dimension(0);
@@ -76,6 +108,8 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
             throw new UnsupportedOperationException("Type "+type.getClass()+" unsupported.");
         }
 
+        sampler = PlaneSamplers.forType(type);
+
         nBytesPerProcessor = width * height * (bitDepth / 8);
 
         this.sources = sources;
@@ -90,6 +124,17 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
         nFrames = range.getRangeT().size();
         nZSlices = range.getRangeZ().size();
 
+        canonicalC = new int[sources.size()];
+        for (int iC = 0; iC < sources.size(); iC++) {
+            canonicalC[iC] = iC;
+            for (int jC = 0; jC < iC; jC++) {
+                if (sources.get(jC).getSpimSource() == sources.get(iC).getSpimSource()) {
+                    canonicalC[iC] = jC;
+                    break;
+                }
+            }
+        }
+
         if ((int) raiModel.dimension(2)!=nZSlices) {
             logger.error("Mismatch! nSlices = "+nZSlices+" rai Z dimension = "+raiModel.dimension(2));
         }
@@ -98,8 +143,70 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
 
     ImagePlus imagePlusLocalizer = null;
 
+    /**
+     * Number of planes loaded in advance when the stack is browsed along Z or T, see {@link PlanePrefetcher}.
+     * Prefetching is only active for cached virtual stacks. Set to 0 to disable it.
+     */
+    public static int prefetchDepth = 4;
+
+    volatile PlanePrefetcher prefetcher = null;
+
+    ExportMetrics metrics = null;
+
+    /**
+     * @param metrics counters updated each time a plane is computed, see {@link ExportMonitor}
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Approximate size in pixels of the square tiles a plane is split into, in order
+     * to be sampled in parallel
+     */
+    public static int tileSize = 512;
+
     public void setImagePlusCZTSLocalizer(ImagePlus imp) {
         this.imagePlusLocalizer = imp;
+        if ((cache)&&(prefetchDepth>0)) {
+            prefetcher = new PlanePrefetcher(nZSlices, nFrames, prefetchDepth,
+                    imp::getStackIndex,
+                    n -> setProcessors.containsKey(n) || cachedImageProcessor.contains(n),
+                    n -> getProcessor(n, imp.convertIndexToPosition(n)));
+        }
+        if (closeListener!=null) ImagePlus.removeImageListener(closeListener);
+        closeListener = new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus image) {}
+
+            @Override
+            public void imageClosed(ImagePlus image) {
+                if (image == imp) close();
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus image) {}
+        };
+        ImagePlus.addImageListener(closeListener);
+    }
+
+    // Listens to the closing of the localizer ImagePlus, it references this stack until it is removed
+    ImageListener closeListener = null;
+
+    /**
+     * Called when the ImagePlus of this stack is closed : stops loading planes in advance,
+     * and stops monitoring the export, see {@link ExportMonitor#stopMonitoring(ExportMetrics)}.
+     * Should be called explicitly if the ImagePlus is never displayed nor closed.
+     */
+    public synchronized void close() {
+        if (closeListener!=null) {
+            ImagePlus.removeImageListener(closeListener);
+            closeListener = null;
+        }
+        PlanePrefetcher closedPrefetcher = prefetcher;
+        prefetcher = null;
+        if (closedPrefetcher!=null) closedPrefetcher.cancelAll();
+        if (metrics!=null) ExportMonitor.stopMonitoring(metrics);
     }
 
     /* Returns the pixel array for the specified slice, were 1<=n<=nslices. */
@@ -112,29 +219,15 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
     }
 
     public ByteProcessor getByteProcessor(int iC, int iZ, int iT) {
-        SourceAndConverter sac = sources.get(iC);
-        RandomAccessibleInterval<UnsignedByteType> rai = sac.getSpimSource().getSource(iT, resolutionLevel);
-        RandomAccessibleInterval<UnsignedByteType> slice = Views.hyperSlice(rai, 2, iZ);
         byte[] bytes = new byte[nPixPerPlane];
-        IterableInterval<UnsignedByteType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<UnsignedByteType> s = ii.cursor(); s.hasNext(); idx++) {
-            bytes[idx] = (byte) s.next().get();
-        }
+        fillPlane(iC, iZ, iT, bytes);
         bytesCounter.addAndGet(nBytesPerProcessor);
         return new ByteProcessor(width, height, bytes, getCM(iC));
     }
 
     public ShortProcessor getShortProcessor(int iC, int iZ, int iT) {
-        SourceAndConverter<UnsignedShortType> sac = sources.get(iC);
-        RandomAccessibleInterval<UnsignedShortType> rai = sac.getSpimSource().getSource(iT, resolutionLevel);
-        RandomAccessibleInterval<UnsignedShortType> slice = Views.hyperSlice(rai, 2, iZ);
         short[] shorts = new short[nPixPerPlane];
-        IterableInterval<UnsignedShortType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<UnsignedShortType> s = ii.cursor(); s.hasNext(); idx++) {
-            shorts[idx] = (short) s.next().get();
-        }
+        fillPlane(iC, iZ, iT, shorts);
         bytesCounter.addAndGet(nBytesPerProcessor);
         return new ShortProcessor(width, height, shorts, getCM(iC));
     }
@@ -155,48 +248,105 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
     }
 
     public FloatProcessor getFloatProcessor(int iC, int iZ, int iT) {
-        SourceAndConverter<FloatType> sac = sources.get(iC);
-        RandomAccessibleInterval<FloatType> rai = sac.getSpimSource().getSource(iT, resolutionLevel);
-        RandomAccessibleInterval<FloatType> slice = Views.hyperSlice(rai, 2, iZ);
         float[] floats = new float[nPixPerPlane];
-        IterableInterval<FloatType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<FloatType> s = ii.cursor(); s.hasNext(); idx++) {
-            floats[idx] = s.next().get();
-        }
+        fillPlane(iC, iZ, iT, floats);
         bytesCounter.addAndGet(nBytesPerProcessor);
         return new FloatProcessor(width, height, floats, getCM(iC));
     }
 
     public ColorProcessor getColorProcessor(int iC, int iZ, int iT) {
-        SourceAndConverter<ARGBType> sac = sources.get(iC);
-        RandomAccessibleInterval<ARGBType> rai = sac.getSpimSource().getSource(iT, resolutionLevel);
-        RandomAccessibleInterval<ARGBType> slice = Views.hyperSlice(rai, 2, iZ);
         int[] ints = new int[nPixPerPlane];
-        IterableInterval<ARGBType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<ARGBType> s = ii.cursor(); s.hasNext(); idx++) {
-            ints[idx] = s.next().get();
-        }
+        fillPlane(iC, iZ, iT, ints);
         bytesCounter.addAndGet(nBytesPerProcessor);
         return new ColorProcessor(width, height, ints);
     }
 
-    final Object lockAnalyzePreviousData = new Object();
+    /**
+     * Fills a plane into its primitive array. If the plane is bigger than a tile,
+     * the tiles of the plane are sampled in parallel, see {@link SourceAndConverterVirtualStack#getTiles(int, int)}
+     *
+     * @param iC source index
+     * @param iZ slice index
+     * @param iT timepoint
+     * @param pixels pixel array of the full plane, of size width * height
+     */
+    public void fillPlane(int iC, int iZ, int iT, Object pixels) {
+        List<int[]> tiles = getTiles(iC, iT);
+        if (tiles.size() == 1) {
+            fillRegion(iC, iZ, iT, pixels, 0, 0, width-1, height-1);
+        } else {
+            List<Runnable> tasks = new ArrayList<>(tiles.size());
+            for (int[] tile : tiles) {
+                tasks.add(() -> fillRegion(iC, iZ, iT, pixels, tile[0], tile[1], tile[2], tile[3]));
+            }
+            CZTTileScheduler.run(tasks);
+        }
+    }
+
+    /**
+     * Splits a plane into tiles of about {@link SourceAndConverterVirtualStack#tileSize} pixels. If
+     * the source is cell backed, the tiles are aligned to the cell grid, so that each cell is read
+     * by a single tile.
+     *
+     * @param iC source index
+     * @param iT timepoint
+     * @return a list of tiles, each tile is an array {minX, minY, maxX, maxY}, bounds included
+     */
+    public List<int[]> getTiles(int iC, int iT) {
+        int tileX = tileSize;
+        int tileY = tileSize;
+        int[] cellDims = CellImgPlaneCopier.getCellDimensions(sources.get(iC).getSpimSource().getSource(iT, resolutionLevel));
+        if (cellDims != null) {
+            tileX = Math.max(1, Math.round((float) tileSize / cellDims[0])) * cellDims[0];
+            tileY = Math.max(1, Math.round((float) tileSize / cellDims[1])) * cellDims[1];
+        }
+        List<int[]> tiles = new ArrayList<>();
+        for (int minY = 0; minY < height; minY += tileY) {
+            for (int minX = 0; minX < width; minX += tileX) {
+                tiles.add(new int[]{minX, minY, Math.min(width, minX + tileX) - 1, Math.min(height, minY + tileY) - 1});
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Fills a XY region of a plane into its primitive array (byte[], short[], float[] or int[]
+     * depending on the pixel type). Only the pixels of the region are written, which
+     * allows to fill a plane concurrently from several threads working on distinct regions.
+     *
+     * @param iC source index
+     * @param iZ slice index
+     * @param iT timepoint
+     * @param pixels pixel array of the full plane, of size width * height
+     * @param minX min x of the region, included
+     * @param minY min y of the region, included
+     * @param maxX max x of the region, included
+     * @param maxY max y of the region, included
+     */
+    public void fillRegion(int iC, int iZ, int iT, Object pixels, int minX, int minY, int maxX, int maxY) {
+        SourceAndConverter<?> sac = sources.get(iC);
+        RandomAccessibleInterval<?> rai = sac.getSpimSource().getSource(iT, resolutionLevel);
+
+        if (CellImgPlaneCopier.copyRegion(rai, iZ, pixels, minX, minY, maxX, maxY)) return;
+
+        // Fallback for lazily computed views
+        sampler.fill((RandomAccessibleInterval) Views.hyperSlice(rai, 2, iZ), pixels, width, minX, minY, maxX, maxY);
+    }
 
     @Override
     public void setProcessor(ImageProcessor ip, int n) {
-        cachedImageProcessor.put(n, ip);
+        setProcessors.put(n, ip);
+        cachedImageProcessor.remove(n);
     }
 
-
     @Override
     public ImageProcessor getProcessor(int n) {
-        Object lockWaitedFor = null;
         int[] czt;
         if (n==1) {
-            if (cachedImageProcessor.containsKey(n)) {
-                return (ImageProcessor) cachedImageProcessor.get(n).clone(); // Really weird bug.... thread lock ?
+            ImageProcessor ip = setProcessors.get(n);
+            if (ip==null) ip = cachedImageProcessor.get(n);
+            if (ip!=null) {
+                return (ImageProcessor) ip.clone(); // Really weird bug.... thread lock ?
             }
         }
         if (imagePlusLocalizer == null) {
@@ -205,86 +355,160 @@ public class SourceAndConverterVirtualStack extends VirtualStack {
             czt = imagePlusLocalizer.convertIndexToPosition(n);
         }
 
-        boolean waitForResult = false;
-
-        if (cache) {
-            int iC = range.getRangeC().get(czt[0]-1);
-            int iZ = range.getRangeZ().get(czt[1]-1);
-            int iT = range.getRangeT().get(czt[2]-1);
-            final CZTId cztId = new CZTId(iC,iZ,iT);
-            synchronized (lockAnalyzePreviousData) {
-                if (cachedImageProcessor.containsKey(n)) {
-                    return cachedImageProcessor.get(n);
-                } else if (currentlyProcessedProcessor.containsKey(n)) {
-                    lockWaitedFor = currentlyProcessedProcessor.get(n);
-                    waitForResult = true;
-                } else if (cztIdToComputedProcessor.containsKey(cztId)) {
-                    // Shortcut -> skipping the loading!
-                    int nReferenced = cztIdToComputedProcessor.get(cztId);
-                    cachedImageProcessor.put(n,cachedImageProcessor.get(nReferenced));
-                    bytesCounter.addAndGet(nBytesPerProcessor); // Keep the counter right
-                    return cachedImageProcessor.get(n);
-                } else {
-                    currentlyProcessedProcessor.put(n, new Object());
-                }
+        PlanePrefetcher currentPrefetcher = prefetcher;
+        if (currentPrefetcher!=null) currentPrefetcher.accessed(czt[0], czt[1], czt[2]);
+
+        return getProcessor(n, czt);
+    }
+
+    /**
+     * Returns the processor at the stack index n, without notifying the prefetcher
+     * @param n stack index
+     * @param czt 1-based czt position of the plane
+     * @return the processor at the stack index n
+     */
+    ImageProcessor getProcessor(int n, int[] czt) {
+        int iC = range.getRangeC().get(czt[0]-1);
+        int iZ = range.getRangeZ().get(czt[1]-1);
+        int iT = range.getRangeT().get(czt[2]-1);
+
+        ImageProcessor setIp = setProcessors.get(n);
+        if (setIp!=null) return setIp;
+
+        final CZTId cztId = new CZTId(canonicalC[iC], iZ, iT);
+
+        if (!cache) return getUncachedProcessor(cztId, iC, iZ, iT);
+
+        ImageProcessor ip = getCachedProcessor(n, iC, cztId);
+        if (ip!=null) return ip;
+
+        CompletableFuture<ImageProcessor> newFuture = new CompletableFuture<>();
+        CompletableFuture<ImageProcessor> future = processorsInComputation.putIfAbsent(cztId, newFuture);
+
+        if (future != null) {
+            // Another thread is computing this plane : waits for its result
+            ip = future.join();
+            Integer nComputed = cztIdToComputedProcessor.get(cztId);
+            if ((nComputed!=null)&&(nComputed!=n)) {
+                ip = copyPixels(ip, iC);
+                cachedImageProcessor.put(n, ip);
+                bytesCounter.addAndGet(nBytesPerProcessor); // Keep the counter right
             }
+            return ip;
+        }
 
-            // We need to wait
-            if (waitForResult) {
-                synchronized (lockWaitedFor) {
-                    while (!cachedImageProcessor.containsKey(n)) {
-                        try {
-                            lockWaitedFor.wait();
-                        } catch (InterruptedException e) {
-                        }
-                    }
-                }
-                return cachedImageProcessor.get(n);
-            } else {
-                Object lockProcessing = currentlyProcessedProcessor.get(n);
-                synchronized (lockProcessing) {
-                    ImageProcessor ip = null;
-                    switch (bitDepth) {
-                        case 8:
-                            ip = getByteProcessor(iC, iZ, iT);
-                            break;
-                        case 16:
-                            ip = getShortProcessor(iC, iZ, iT);
-                            break;
-                        case 24:
-                            ip = getColorProcessor(iC, iZ, iT);
-                            break;
-                        case 32:
-                            ip = getFloatProcessor(iC, iZ, iT);
-                            break;
-                    }
-
-                    synchronized (lockAnalyzePreviousData) {
-                        cztIdToComputedProcessor.put(cztId, n);
-                        currentlyProcessedProcessor.remove(n);
-                    }
-                    cachedImageProcessor.put(n, ip);
-                    lockProcessing.notifyAll();
-                }
-                return cachedImageProcessor.get(n);
+        try {
+            // Checks again : the plane may have been computed just before the future was registered
+            ip = getCachedProcessor(n, iC, cztId);
+            if (ip == null) {
+                ip = computeProcessor(iC, iZ, iT);
+                cachedImageProcessor.put(n, ip);
+                cztIdToComputedProcessor.put(cztId, n);
             }
+            newFuture.complete(ip);
+            return ip;
+        } catch (RuntimeException e) {
+            newFuture.completeExceptionally(e);
+            throw e;
+        } finally {
+            processorsInComputation.remove(cztId, newFuture);
+        }
+    }
 
-        } else {
-            int iC = range.getRangeC().get(czt[0]-1);
-            int iZ = range.getRangeZ().get(czt[1]-1);
-            int iT = range.getRangeT().get(czt[2]-1);
-            switch (bitDepth) {
-                case 8:
-                    return getByteProcessor(iC, iZ, iT);
-                case 16:
-                    return getShortProcessor(iC, iZ, iT);
-                case 24:
-                    return getColorProcessor(iC, iZ, iT);
-                case 32:
-                    return getFloatProcessor(iC, iZ, iT);
-                default: throw new UnsupportedOperationException("Invalid bitdepth "+bitDepth);
+    /**
+     * Computes a plane without caching it. If the same plane is already being computed
+     * by another thread, waits for it and returns a copy instead of computing it again.
+     * @param cztId czt key of the plane
+     * @param iC source index
+     * @param iZ slice index
+     * @param iT timepoint
+     * @return the computed plane
+     */
+    private ImageProcessor getUncachedProcessor(CZTId cztId, int iC, int iZ, int iT) {
+        CompletableFuture<ImageProcessor> newFuture = new CompletableFuture<>();
+        CompletableFuture<ImageProcessor> future = processorsInComputation.putIfAbsent(cztId, newFuture);
+        if (future != null) {
+            ImageProcessor ip = copyPixels(future.join(), iC);
+            bytesCounter.addAndGet(nBytesPerProcessor); // Keep the counter right
+            return ip;
+        }
+        try {
+            ImageProcessor ip = computeProcessor(iC, iZ, iT);
+            newFuture.complete(ip);
+            return ip;
+        } catch (RuntimeException e) {
+            newFuture.completeExceptionally(e);
+            throw e;
+        } finally {
+            processorsInComputation.remove(cztId, newFuture);
+        }
+    }
+
+    /**
+     * @param ip processor computed for another stack index
+     * @param iC source index of the plane
+     * @return a new processor with a copy of the pixels of ip, with the color model of the source iC :
+     * the pixels are not shared, each stack index can be edited independently
+     */
+    private ImageProcessor copyPixels(ImageProcessor ip, int iC) {
+        Object pixels = ip.getPixels();
+        if (ip instanceof ByteProcessor) return new ByteProcessor(width, height, ((byte[]) pixels).clone(), getCM(iC));
+        if (ip instanceof ShortProcessor) return new ShortProcessor(width, height, ((short[]) pixels).clone(), getCM(iC));
+        if (ip instanceof FloatProcessor) return new FloatProcessor(width, height, ((float[]) pixels).clone(), getCM(iC));
+        if (ip instanceof ColorProcessor) return new ColorProcessor(width, height, ((int[]) pixels).clone());
+        throw new UnsupportedOperationException("Unsupported processor "+ip.getClass());
+    }
+
+    /**
+     * @param n plane index
+     * @param iC source index of the plane
+     * @param cztId czt key of the plane
+     * @return the cached processor for the plane n, or the processor of a previously computed plane
+     * with identical czt coordinates, or null if none of them are cached
+     */
+    private ImageProcessor getCachedProcessor(int n, int iC, CZTId cztId) {
+        ImageProcessor ip = cachedImageProcessor.get(n);
+        if (ip!=null) return ip;
+        Integer nReferenced = cztIdToComputedProcessor.get(cztId);
+        if (nReferenced!=null) {
+            ip = cachedImageProcessor.get(nReferenced);
+            if (ip!=null) {
+                // Shortcut -> skipping the loading!
+                ip = copyPixels(ip, iC);
+                cachedImageProcessor.put(n, ip);
+                bytesCounter.addAndGet(nBytesPerProcessor); // Keep the counter right
             }
         }
+        return ip;
+    }
+
+    /**
+     * Computes a plane, without using the cache
+     * @param iC source index
+     * @param iZ slice index
+     * @param iT timepoint
+     * @return the computed plane
+     */
+    ImageProcessor computeProcessor(int iC, int iZ, int iT) {
+        long start = System.nanoTime();
+        ImageProcessor ip;
+        switch (bitDepth) {
+            case 8:
+                ip = getByteProcessor(iC, iZ, iT);
+                break;
+            case 16:
+                ip = getShortProcessor(iC, iZ, iT);
+                break;
+            case 24:
+                ip = getColorProcessor(iC, iZ, iT);
+                break;
+            case 32:
+                ip = getFloatProcessor(iC, iZ, iT);
+                break;
+            default: throw new UnsupportedOperationException("Invalid bitdepth "+bitDepth);
+        }
+        if (metrics != null) metrics.planeDone(System.nanoTime() - start);
+        return ip;
     }
 
     @Override
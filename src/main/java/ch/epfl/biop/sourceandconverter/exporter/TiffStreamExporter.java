@@ -0,0 +1,199 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import bdv.viewer.SourceAndConverter;
+import ij.process.ImageProcessor;
+import loci.common.DataTools;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.IFormatWriter;
+import loci.formats.ImageWriter;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
+import net.imglib2.realtransform.AffineTransform3D;
+import ome.units.quantity.Length;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports a list of {@link SourceAndConverter} directly to a TIFF or OME-TIFF file,
+ * without building an {@link ij.ImageStack} in memory.
+ *
+ * Planes are computed in parallel, but at most {@link ImagePlusGetter#limitParallelJobs}
+ * planes are held in memory at the same time. They are written sequentially, in the
+ * XYCZT order. The file format is chosen from the file extension (.tif or .ome.tif).
+ *
+ * Each {@link SourceAndConverter} represents a channel. The dimension of each source
+ * need to be compatible, as in {@link ImagePlusGetter}.
+ */
+public class TiffStreamExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TiffStreamExporter.class);
+
+    // Above this size, the file is written as a BigTIFF, whatever the user choice
+    final static long MAX_STANDARD_TIFF_BYTES = 4L * 1024 * 1024 * 1024 - 256L * 1024 * 1024;
+
+    // A plane is computed and written as a single java array
+    final static long MAX_PLANE_BYTES = Integer.MAX_VALUE - 8;
+
+    /**
+     * Writes the sources into a TIFF or OME-TIFF file
+     *
+     * @param name Name of the exported image
+     * @param sources sources to export, one per channel
+     * @param resolutionLevel resolution Level of the sources
+     * @param range czt range which can be used to define a subset of the output image
+     * @param file output file, .tif or .ome.tif
+     * @param bigTiff writes a BigTIFF file, this is forced if the file is bigger than 4Gb
+     * @param verbose if set to true, the progression of the export is displayed in the IJ log, see {@link ExportMonitor}
+     * @throws Exception if the file can't be written
+     */
+    public static void export(String name,
+                              List<SourceAndConverter> sources,
+                              int resolutionLevel,
+                              CZTRange range,
+                              File file,
+                              boolean bigTiff,
+                              boolean verbose) throws Exception {
+
+        SourceAndConverterVirtualStack planeGetter = new SourceAndConverterVirtualStack(sources, resolutionLevel, range, new AtomicLong(), (PlaneCache) null);
+
+        int width = planeGetter.getWidth();
+        int height = planeGetter.getHeight();
+        int bitDepth = planeGetter.getBitDepth();
+        long nBytesPerPlane = (long) width * (long) height * (bitDepth / 8);
+        if (nBytesPerPlane > MAX_PLANE_BYTES) {
+            throw new UnsupportedOperationException("Planes of "+name+" ("+width+" x "+height+", "+bitDepth+" bits) are too big to be exported as a single array, "
+                    +"please export a lower resolution level or a smaller region");
+        }
+
+        int nC = range.getRangeC().size();
+        int nZ = range.getRangeZ().size();
+        int nT = range.getRangeT().size();
+        int totalPlanes = (int) range.getTotalPlanes();
+        long totalBytes = (long) totalPlanes * nBytesPerPlane;
+
+        String pixelType;
+        switch (bitDepth) {
+            case 8: pixelType = FormatTools.getPixelTypeString(FormatTools.UINT8); break;
+            case 16: pixelType = FormatTools.getPixelTypeString(FormatTools.UINT16); break;
+            case 32: pixelType = FormatTools.getPixelTypeString(FormatTools.FLOAT); break;
+            default: throw new UnsupportedOperationException("Invalid bitdepth "+bitDepth);
+        }
+
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, name, true, "XYCZT", pixelType, width, height, nZ, nC, nT, 1);
+        setPhysicalSizes(meta, sources.get(0), resolutionLevel);
+
+        IFormatWriter writer = new ImageWriter().getWriter(file.getAbsolutePath());
+        if (!(writer instanceof TiffWriter)) {
+            throw new UnsupportedOperationException("Only TIFF and OME-TIFF files are supported, invalid file "+file.getName());
+        }
+        if ((!bigTiff)&&(totalBytes>MAX_STANDARD_TIFF_BYTES)) {
+            logger.info(name+" is bigger than 4Gb, it will be saved as a BigTIFF file");
+            bigTiff = true;
+        }
+        ((TiffWriter) writer).setBigTiff(bigTiff);
+        writer.setMetadataRetrieve(meta);
+        writer.setWriteSequentially(true);
+        writer.setInterleaved(false);
+        writer.setId(file.getAbsolutePath());
+
+        // Bytes are counted when planes are written, the latency is the time spent computing a plane
+        ExportMetrics metrics = new ExportMetrics(name, totalPlanes, totalBytes, false);
+        AtomicLong bytesCounter = metrics.getBytesCounter();
+        planeGetter.setMetrics(metrics);
+        if (verbose) {
+            ExportMonitor.monitor(metrics, new IJLogExportListener("Starting export of " + name + "..."));
+        } else {
+            ExportMonitor.monitor(metrics);
+        }
+
+        int nThreads = Math.max(1, Math.min(ImagePlusGetter.limitParallelJobs, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+
+        // Planes computed in advance, in writing order
+        Deque<Future<ImageProcessor>> planesInComputation = new ArrayDeque<>();
+
+        try {
+            int planeIndex = 0;
+            for (int t : range.getRangeT()) {
+                for (int z : range.getRangeZ()) {
+                    for (int c : range.getRangeC()) {
+                        if (planesInComputation.size() >= nThreads) {
+                            writePlane(writer, planeIndex++, planesInComputation.poll().get());
+                            bytesCounter.addAndGet(nBytesPerPlane);
+                        }
+                        metrics.planesQueued(1);
+                        planesInComputation.add(executor.submit(() -> {
+                            metrics.planeStarted();
+                            return planeGetter.computeProcessor(c, z, t);
+                        }));
+                    }
+                }
+            }
+            while (!planesInComputation.isEmpty()) {
+                writePlane(writer, planeIndex++, planesInComputation.poll().get());
+                bytesCounter.addAndGet(nBytesPerPlane);
+            }
+        } finally {
+            planesInComputation.forEach(future -> future.cancel(true));
+            executor.shutdown();
+            writer.close();
+            metrics.done();
+        }
+    }
+
+    static void writePlane(IFormatWriter writer, int planeIndex, ImageProcessor ip) throws Exception {
+        Object pixels = ip.getPixels();
+        byte[] bytes;
+        if (pixels instanceof byte[]) {
+            bytes = (byte[]) pixels;
+        } else if (pixels instanceof short[]) {
+            bytes = DataTools.shortsToBytes((short[]) pixels, true);
+        } else if (pixels instanceof float[]) {
+            bytes = DataTools.floatsToBytes((float[]) pixels, true);
+        } else {
+            throw new UnsupportedOperationException("Unsupported pixel array "+pixels.getClass());
+        }
+        writer.saveBytes(planeIndex, bytes);
+    }
+
+    static void setPhysicalSizes(IMetadata meta, SourceAndConverter<?> source, int resolutionLevel) {
+        if (source.getSpimSource().getVoxelDimensions() == null) return;
+        String unit = source.getSpimSource().getVoxelDimensions().unit();
+        if (unit == null) return;
+
+        AffineTransform3D at3D = new AffineTransform3D();
+        source.getSpimSource().getSourceTransform(0, resolutionLevel, at3D);
+
+        Length sx = FormatTools.getPhysicalSizeX(columnNorm(at3D, 0), unit);
+        Length sy = FormatTools.getPhysicalSizeY(columnNorm(at3D, 1), unit);
+        Length sz = FormatTools.getPhysicalSizeZ(columnNorm(at3D, 2), unit);
+
+        if (sx!=null) meta.setPixelsPhysicalSizeX(sx, 0);
+        if (sy!=null) meta.setPixelsPhysicalSizeY(sy, 0);
+        if (sz!=null) meta.setPixelsPhysicalSizeZ(sz, 0);
+    }
+
+    static double columnNorm(AffineTransform3D at3D, int column) {
+        double sum = 0;
+        for (int row = 0; row < 3; row++) {
+            sum += at3D.get(row, column) * at3D.get(row, column);
+        }
+        return Math.sqrt(sum);
+    }
+
+}
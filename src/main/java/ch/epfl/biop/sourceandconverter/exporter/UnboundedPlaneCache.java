@@ -0,0 +1,46 @@
+package ch.epfl.biop.sourceandconverter.exporter;
+
+import ij.process.ImageProcessor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plane cache which never evicts any plane
+ */
+public class UnboundedPlaneCache implements PlaneCache {
+
+    final Map<Integer, ImageProcessor> planes = new ConcurrentHashMap<>();
+
+    final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public ImageProcessor get(int n) {
+        return planes.get(n);
+    }
+
+    @Override
+    public void put(int n, ImageProcessor ip) {
+        ImageProcessor previous = planes.put(n, ip);
+        bytes.addAndGet(PlaneCache.bytes(ip));
+        if (previous!=null) bytes.addAndGet(-PlaneCache.bytes(previous));
+    }
+
+    @Override
+    public void remove(int n) {
+        ImageProcessor previous = planes.remove(n);
+        if (previous!=null) bytes.addAndGet(-PlaneCache.bytes(previous));
+    }
+
+    @Override
+    public void clear() {
+        planes.clear();
+        bytes.set(0);
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return bytes.get();
+    }
+}
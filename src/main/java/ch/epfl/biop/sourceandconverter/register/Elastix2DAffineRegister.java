@@ -15,7 +15,6 @@ import ch.epfl.biop.wrappers.transformix.TransformHelper;
 import ch.epfl.biop.wrappers.transformix.TransformixTask;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.plugin.Duplicator;
 import itc.converters.ElastixAffine2DToAffineTransform3D;
 import itc.converters.ElastixEuler2DToAffineTransform3D;
 import itc.transforms.elastix.ElastixAffineTransform2D;
@@ -25,7 +24,6 @@ import net.imglib2.FinalRealInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceAffineTransformer;
 
@@ -142,25 +140,19 @@ public class Elastix2DAffineRegister {
         RandomAccessibleInterval viewMoving = RealCropper.getCroppedSampledRRAI(ipMovingimg,
                 movat,fi,pxSizeInCurrentUnit,pxSizeInCurrentUnit,pxSizeInCurrentUnit);
 
-        ImagePlus impM = ImageJFunctions.wrap(viewMoving, "Moving");
+        ImagePlus impM = PatchSampler.toImagePlus(viewMoving, background_offset_value_moving, "Moving");
 
-        impM = new Duplicator().run(impM); // Virtual messes up the process, don't know why
-
-        if (background_offset_value_moving!=0) {
-            impM.getProcessor().subtract(background_offset_value_moving);
-        }
-
-        at3D.identity();
-        at3D.translate(-px,-py,-pz);
-        AffineTransform3D fixat = at3D.concatenate(atFixed);
-        RandomAccessibleInterval viewFixed = RealCropper.getCroppedSampledRRAI(ipFixedimg,
-                fixat,fi,pxSizeInCurrentUnit,pxSizeInCurrentUnit,pxSizeInCurrentUnit);
-        ImagePlus impF = ImageJFunctions.wrap(viewFixed, "Fixed");
-        impF = new Duplicator().run(impF); // Virtual messes up the process, don't know why
-
-        if (background_offset_value_fixed!=0) {
-            impF.getProcessor().subtract(background_offset_value_fixed);
-        }
+        // The fixed patch is often the same across registrations
+        PatchCache.Key fixedKey = new PatchCache.Key(sFixed, levelMipmapFixed, tpFixed, atFixed, interpolation,
+                new double[]{px, py, pz, sx, sy}, pxSizeInCurrentUnit, background_offset_value_fixed);
+        ImagePlus impF = PatchCache.getFixedPatches().get(fixedKey, () -> {
+            AffineTransform3D fixat = new AffineTransform3D();
+            fixat.translate(-px,-py,-pz);
+            fixat.concatenate(atFixed);
+            RandomAccessibleInterval viewFixed = RealCropper.getCroppedSampledRRAI(ipFixedimg,
+                    fixat,fi,pxSizeInCurrentUnit,pxSizeInCurrentUnit,pxSizeInCurrentUnit);
+            return PatchSampler.toImagePlus(viewFixed, background_offset_value_fixed, "Fixed");
+        });
 
         rh.setMovingImage(impM);
         rh.setFixedImage(impF);
@@ -220,7 +212,7 @@ public class Elastix2DAffineRegister {
                     IJ.run(impF, "Enhance Contrast", "saturated=0.35");
                     IJ.run(transformedImage, "Enhance Contrast", "saturated=0.35");
                     IJ.run(impF, "32-bit", "");
-                    IJ.run((ImagePlus) null, "Merge Channels...", "c1=Transformed_DUP_Moving c2=DUP_Fixed create");
+                    IJ.run((ImagePlus) null, "Merge Channels...", "c1=Transformed_Moving c2=Fixed create");
 
                 } else {
                     System.err.println("Cannot transform RGB imagej1 images.");
@@ -0,0 +1,193 @@
+package ch.epfl.biop.sourceandconverter.register;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import ij.ImagePlus;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Least recently used cache of sampled registration patches.
+ *
+ * The fixed patches of a registration are the same when a registration is re-run (for
+ * instance with a different number of iterations) or when several moving sources are
+ * registered on the same fixed source : they are sampled once and reused, see
+ * {@link PatchCache#getFixedPatches()}.
+ *
+ * A patch is identified by its source (by reference), resolution level, timepoint,
+ * source transform, interpolation, region, pixel size and background offset. Cached images
+ * are never handed out : each call returns a copy, which can be modified freely.
+ *
+ * Keys only hold weak references to their sources : the cache does not prevent a removed
+ * source from being garbage collected, and the patches of collected sources are dropped.
+ *
+ * The cache is bounded in memory, see {@link PatchCache#setMaxBytes(long)}, 0 disables it.
+ */
+public class PatchCache {
+
+    private static Logger logger = LoggerFactory.getLogger(PatchCache.class);
+
+    static final PatchCache fixedPatches = new PatchCache(256L * 1024L * 1024L);
+
+    /**
+     * @return the cache of fixed patches shared by all registrations
+     */
+    public static PatchCache getFixedPatches() {
+        return fixedPatches;
+    }
+
+    volatile long maxBytes;
+
+    long bytes = 0;
+
+    final LinkedHashMap<Key, ImagePlus> patches = new LinkedHashMap<>(16, 0.75f, true);
+
+    public PatchCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key patch identifier
+     * @param sampler samples the patch if it is not cached
+     * @return a copy of the cached patch, or the newly sampled patch
+     */
+    public ImagePlus get(Key key, Supplier<ImagePlus> sampler) {
+        synchronized (this) {
+            ImagePlus cached = patches.get(key);
+            if (cached != null) {
+                logger.debug("Patch cache hit for " + key);
+                return copyOf(cached);
+            }
+        }
+        // Sampled out of the lock, the same patch may then be sampled twice by concurrent registrations
+        ImagePlus patch = sampler.get();
+        long size = sizeOf(patch);
+        synchronized (this) {
+            removeCollected();
+            if ((size <= maxBytes) && (!patches.containsKey(key))) {
+                patches.put(key, copyOf(patch));
+                bytes += size;
+                evict();
+            }
+        }
+        return patch;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void clear() {
+        patches.clear();
+        bytes = 0;
+    }
+
+    // Removes the patches whose source has been garbage collected, they can't be looked up anymore
+    void removeCollected() {
+        Iterator<Map.Entry<Key, ImagePlus>> iterator = patches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, ImagePlus> entry = iterator.next();
+            if (entry.getKey().source.get() == null) {
+                bytes -= sizeOf(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    // Removes the least recently used patches until the cache fits
+    void evict() {
+        Iterator<Map.Entry<Key, ImagePlus>> iterator = patches.entrySet().iterator();
+        while ((bytes > maxBytes) && iterator.hasNext()) {
+            bytes -= sizeOf(iterator.next().getValue());
+            iterator.remove();
+        }
+    }
+
+    static ImagePlus copyOf(ImagePlus imp) {
+        ImagePlus copy = imp.duplicate();
+        copy.setTitle(imp.getTitle());
+        return copy;
+    }
+
+    static long sizeOf(ImagePlus imp) {
+        return (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * Math.max(1, imp.getBitDepth() / 8);
+    }
+
+    /**
+     * Identifies a sampled patch
+     */
+    public static class Key {
+
+        final WeakReference<Source<?>> source;
+        final int sourceHash;
+        final int level;
+        final int timepoint;
+        final Interpolation interpolation;
+        final double[] values;
+
+        /**
+         * @param source sampled source, compared by reference
+         * @param level resolution level
+         * @param timepoint timepoint
+         * @param sourceTransform transform of the source used for the sampling
+         * @param interpolation interpolation used for the sampling
+         * @param region patch region : x, y, z of its origin and its size along x and y, in physical units
+         * @param pixelSize pixel size of the patch, in physical units
+         * @param backgroundOffset offset subtracted to the patch
+         */
+        public Key(Source<?> source, int level, int timepoint, AffineTransform3D sourceTransform,
+                   Interpolation interpolation, double[] region, double pixelSize, double backgroundOffset) {
+            this.source = new WeakReference<>(source);
+            this.sourceHash = System.identityHashCode(source);
+            this.level = level;
+            this.timepoint = timepoint;
+            this.interpolation = interpolation;
+            double[] matrix = sourceTransform.getRowPackedCopy();
+            values = new double[12 + region.length + 2];
+            System.arraycopy(matrix, 0, values, 0, 12);
+            System.arraycopy(region, 0, values, 12, region.length);
+            values[values.length - 2] = pixelSize;
+            values[values.length - 1] = backgroundOffset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            Source<?> s = source.get();
+            return (s != null) && (s == key.source.get()) && (level == key.level) && (timepoint == key.timepoint)
+                    && (interpolation == key.interpolation) && Arrays.equals(values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = sourceHash;
+            result = 31 * result + level;
+            result = 31 * result + timepoint;
+            result = 31 * result + interpolation.hashCode();
+            result = 31 * result + Arrays.hashCode(values);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            Source<?> s = source.get();
+            return (s == null ? "collected source" : s.getName()) + " level " + level + " timepoint " + timepoint + " " + Arrays.toString(values);
+        }
+    }
+
+}
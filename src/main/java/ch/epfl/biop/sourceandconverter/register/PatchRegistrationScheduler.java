@@ -0,0 +1,245 @@
+package ch.epfl.biop.sourceandconverter.register;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs the registrations of a list of patches (small fields of view around points of
+ * interest) on a dedicated pool of workers.
+ *
+ * The number of workers bounds the number of registrations running at the same time, it
+ * should match the number of elastix processes the local machine (or the elastix server)
+ * can handle. Each registration runs in its worker thread (see
+ * {@link ch.epfl.biop.scijava.CommandHelper#runInCurrentThread}), so that a worker is only
+ * free once its registration has really ended.
+ *
+ * Each patch registration is retried up to a max number of attempts. When an attempt exceeds
+ * its timeout, its worker thread is interrupted ; the worker keeps its slot until the attempt
+ * has returned, and only then starts the next attempt. Results are returned in the order of
+ * the patches ; patches which failed all their attempts are listed, see
+ * {@link PatchRegistrationScheduler#getFailedPatches()}, and their result is null.
+ *
+ * @param <P> patch type
+ * @param <R> registration result type
+ */
+public class PatchRegistrationScheduler<P, R> {
+
+    private static Logger logger = LoggerFactory.getLogger(PatchRegistrationScheduler.class);
+
+    /**
+     * Registration of a single patch
+     */
+    public interface PatchRegistration<P, R> {
+        /**
+         * Registers a patch in the calling thread, the registration should stop when the thread is interrupted
+         *
+         * @param patch patch to register
+         * @return the result of the registration
+         * @throws Exception if the registration failed, it is then retried
+         */
+        R register(P patch) throws Exception;
+    }
+
+    final int nWorkers;
+    final int maxAttempts;
+    final long timeoutMs;
+    final Consumer<String> log;
+
+    final List<Integer> failedPatches = Collections.synchronizedList(new ArrayList<>());
+
+    double patchesPerSecond = 0;
+
+    /**
+     * @param nWorkers number of registrations running in parallel
+     * @param maxAttempts max number of attempts per patch, at least 1
+     * @param timeoutMs timeout of each attempt in ms, 0 for no timeout
+     * @param log progress messages
+     */
+    public PatchRegistrationScheduler(int nWorkers, int maxAttempts, long timeoutMs, Consumer<String> log) {
+        this.nWorkers = Math.max(1, nWorkers);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.timeoutMs = Math.max(0, timeoutMs);
+        this.log = log;
+    }
+
+    /**
+     * Registers all patches and waits for the end of all registrations
+     *
+     * @param patches patches to register
+     * @param registration registration of one patch
+     * @return the results, in the order of the patches, null for failed patches
+     * @throws InterruptedException if the calling thread is interrupted, pending registrations are then
+     * interrupted, and this method returns once they have all ended
+     */
+    public List<R> run(List<P> patches, PatchRegistration<P, R> registration) throws InterruptedException {
+        failedPatches.clear();
+        final int nPatches = patches.size();
+        final AtomicInteger nDone = new AtomicInteger();
+        final long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(nWorkers, Math.max(1, nPatches)),
+                new DaemonFactory("Patch registration worker"));
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+                new DaemonFactory("Patch registration watchdog"));
+        List<Future<R>> futures = new ArrayList<>(nPatches);
+        try {
+            for (int i = 0; i < nPatches; i++) {
+                final int iPatch = i;
+                final P patch = patches.get(i);
+                futures.add(pool.submit(() -> {
+                    R result = registerWithRetries(iPatch, patch, registration, watchdog);
+                    int done = nDone.incrementAndGet();
+                    log.accept("Patch " + iPatch + " " + (result == null ? "failed" : "registered")
+                            + " (" + done + "/" + nPatches + ", "
+                            + String.format("%.2f", done / elapsedSeconds(start)) + " patches/s)");
+                    return result;
+                }));
+            }
+
+            List<R> results = new ArrayList<>(nPatches);
+            for (Future<R> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // Should not happen, exceptions are caught in registerWithRetries
+                    results.add(null);
+                }
+            }
+            patchesPerSecond = nPatches / elapsedSeconds(start);
+            logger.info(nPatches + " patches registered in " + String.format("%.1f", elapsedSeconds(start))
+                    + " s with " + nWorkers + " workers (" + String.format("%.2f", patchesPerSecond) + " patches/s), "
+                    + failedPatches.size() + " failed");
+            return results;
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        } finally {
+            pool.shutdownNow();
+            awaitTermination(pool);
+            watchdog.shutdownNow();
+        }
+    }
+
+    R registerWithRetries(int iPatch, P patch, PatchRegistration<P, R> registration, ScheduledExecutorService watchdog) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (Thread.currentThread().isInterrupted()) break;
+            Attempt current = new Attempt(Thread.currentThread());
+            ScheduledFuture<?> timeout = timeoutMs > 0 ?
+                    watchdog.schedule(current::timeout, timeoutMs, TimeUnit.MILLISECONDS) : null;
+            R result = null;
+            Exception error = null;
+            try {
+                result = registration.register(patch);
+            } catch (Exception e) {
+                error = e;
+            }
+            if (timeout != null) timeout.cancel(false);
+            if (current.end()) {
+                // Interrupted by the watchdog, not by the scheduler : the attempt is over, retry
+                Thread.interrupted();
+                logger.warn("Registration of patch " + iPatch + " timed out after " + timeoutMs + " ms (attempt " + attempt + "/" + maxAttempts + ")");
+                continue;
+            }
+            if (error == null) return result;
+            if ((error instanceof InterruptedException) || (Thread.currentThread().isInterrupted())) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            logger.warn("Registration of patch " + iPatch + " failed (attempt " + attempt + "/" + maxAttempts + ") : " + error);
+        }
+        failedPatches.add(iPatch);
+        return null;
+    }
+
+    /**
+     * An attempt running in a worker thread, which the watchdog may interrupt until it is ended
+     */
+    static class Attempt {
+        final Thread thread;
+        boolean ended = false;
+        boolean timedOut = false;
+
+        Attempt(Thread thread) {
+            this.thread = thread;
+        }
+
+        synchronized void timeout() {
+            if (!ended) {
+                timedOut = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * @return true if the attempt timed out, after this call the watchdog does not interrupt the thread anymore
+         */
+        synchronized boolean end() {
+            ended = true;
+            return timedOut;
+        }
+    }
+
+    // Waits until all attempts have returned, even if the calling thread is interrupted
+    static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    static double elapsedSeconds(long start) {
+        return Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return the indices of the patches whose registration failed in the last run, in increasing order
+     */
+    public List<Integer> getFailedPatches() {
+        List<Integer> failed = new ArrayList<>(failedPatches);
+        Collections.sort(failed);
+        return failed;
+    }
+
+    /**
+     * @return throughput of the last run
+     */
+    public double getPatchesPerSecond() {
+        return patchesPerSecond;
+    }
+
+    static class DaemonFactory implements ThreadFactory {
+        final String name;
+        final AtomicInteger count = new AtomicInteger();
+
+        DaemonFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + " " + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package ch.epfl.biop.sourceandconverter.register;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.Duplicator;
+import ij.process.FloatProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+import java.util.stream.IntStream;
+
+/**
+ * Samples a registration patch, typically a view returned by
+ * {@link bdv.util.RealCropper#getCroppedSampledRRAI}, into a float image which
+ * can be handed over to elastix.
+ *
+ * The view is sampled row by row in parallel, directly into the pixel arrays of the
+ * image, and the background offset is subtracted in the same pass. This replaces a wrap
+ * of the view as a virtual ImagePlus, its full duplication and an extra subtraction pass.
+ */
+public class PatchSampler {
+
+    /**
+     * Samples a view as an image ready for elastix. Real typed views are sampled as floats
+     * with {@link PatchSampler#sample(RandomAccessibleInterval, double, String)}, other
+     * views (ARGB) are wrapped and duplicated.
+     *
+     * @param view view to sample
+     * @param backgroundOffset value subtracted to all pixels
+     * @param title title of the image
+     * @return the sampled image
+     */
+    public static ImagePlus toImagePlus(RandomAccessibleInterval view, double backgroundOffset, String title) {
+        if (canSample(view)) {
+            return sample(view, backgroundOffset, title);
+        }
+        ImagePlus imp = new Duplicator().run(ImageJFunctions.wrap(view, title)); // Virtual messes up the process, don't know why
+        imp.setTitle(title);
+        if (backgroundOffset!=0) {
+            imp.getProcessor().subtract(backgroundOffset);
+        }
+        return imp;
+    }
+
+    /**
+     * @param view view to sample, only real typed views can be sampled, see {@link PatchSampler#canSample(RandomAccessibleInterval)}
+     * @return true if the pixels of this view can be sampled as floats
+     */
+    public static boolean canSample(RandomAccessibleInterval<?> view) {
+        return Util.getTypeFromInterval(view) instanceof RealType;
+    }
+
+    /**
+     * @param view 2D or 3D real typed view
+     * @param backgroundOffset value subtracted to all pixels
+     * @param title title of the image
+     * @return a 32-bit image with the sampled pixels, one slice per plane of the view
+     */
+    public static ImagePlus sample(RandomAccessibleInterval<? extends RealType<?>> view, double backgroundOffset, String title) {
+        final int width = (int) view.dimension(0);
+        final int height = (int) view.dimension(1);
+        final int depth = view.numDimensions() > 2 ? (int) view.dimension(2) : 1;
+        final long[] min = new long[view.numDimensions()];
+        view.min(min);
+
+        final float[][] planes = new float[depth][width * height];
+
+        // One task per row, each with its own random access
+        IntStream.range(0, height * depth).parallel().forEach(iRow -> {
+            final int y = iRow % height;
+            final int z = iRow / height;
+            final float[] plane = planes[z];
+            final RandomAccess<? extends RealType<?>> ra = view.randomAccess();
+            final long[] position = min.clone();
+            position[1] += y;
+            if (position.length > 2) position[2] += z;
+            ra.setPosition(position);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                plane[offset + x] = (float) (ra.get().getRealDouble() - backgroundOffset);
+                ra.fwd(0);
+            }
+        });
+
+        ImageStack stack = new ImageStack(width, height);
+        for (float[] plane : planes) {
+            stack.addSlice(new FloatProcessor(width, height, plane));
+        }
+        return new ImagePlus(title, stack);
+    }
+
+}
@@ -0,0 +1,231 @@
+package ch.epfl.biop.sourceandconverter.register;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
+
+/**
+ * Plans the elastix registrations of patches from a pixel budget and a time budget, instead
+ * of using fixed pixel sizes and resolution levels whatever the size of the images.
+ *
+ * For a patch of a given physical size, the pixel size is chosen such that the patch has
+ * at most the pixel budget, but no finer than the highest resolution of the sources. The
+ * mipmap levels of the sources are then the ones best matching this pixel size, and the
+ * number of elastix resolutions follows, see {@link RegistrationPlanner#getNumberOfResolutions(double, int)}.
+ *
+ * The duration of a registration is predicted by a linear cost model (fixed overhead, cost
+ * per pixel and cost per iteration). If a time budget is given, the pixel size is increased
+ * until the predicted duration fits in it. Measured durations are reported to the planner with
+ * {@link RegistrationPlanner#logActualCost(Plan, int, double)} : the predicted and actual
+ * durations are logged, and the model is corrected for the next plans of the same planner.
+ */
+public class RegistrationPlanner {
+
+    private static Logger logger = LoggerFactory.getLogger(RegistrationPlanner.class);
+
+    /**
+     * Cost model, in seconds : elastix process start and file writing
+     */
+    public static double overheadInS = 1.0;
+
+    /**
+     * Cost model, in seconds : sampling, writing and pyramid computation, per pixel of the fixed and moving patches
+     */
+    public static double costPerPixelInS = 2e-6;
+
+    /**
+     * Cost model, in seconds : one optimizer iteration at one resolution
+     */
+    public static double costPerIterationInS = 5e-3;
+
+    // Ratio between measured and predicted durations, updated with each measure, guarded by this
+    double correction = 1.0;
+
+    // Weight of a new measure in the correction
+    final static double correctionUpdate = 0.3;
+
+    final long pixelBudget;
+    final double timeBudgetInS;
+    final int maxIterationNumberPerScale;
+    final int minPixSize;
+
+    /**
+     * @param pixelBudget default max number of pixels of a patch, Long.MAX_VALUE if only fixed pixel sizes are planned
+     * @param timeBudgetInS max predicted duration of a patch registration, 0 for no time budget
+     * @param maxIterationNumberPerScale number of iterations for each elastix resolution
+     * @param minPixSize size in pixels of the coarsest elastix resolution
+     */
+    public RegistrationPlanner(long pixelBudget, double timeBudgetInS, int maxIterationNumberPerScale, int minPixSize) {
+        if (pixelBudget <= 0) {
+            throw new IllegalArgumentException("Invalid pixel budget "+pixelBudget);
+        }
+        this.pixelBudget = pixelBudget;
+        this.timeBudgetInS = timeBudgetInS;
+        this.maxIterationNumberPerScale = maxIterationNumberPerScale;
+        this.minPixSize = minPixSize;
+    }
+
+    /**
+     * Plans the registration of patches of a given physical size, with the default pixel budget
+     *
+     * @param name name of the registration stage, for the logs
+     * @param fixed fixed source
+     * @param moving moving source
+     * @param sx physical size of a patch along x
+     * @param sy physical size of a patch along y
+     * @return the plan of a patch registration
+     */
+    public Plan plan(String name, SourceAndConverter fixed, SourceAndConverter moving, double sx, double sy) {
+        return planWithPixelBudget(name, fixed, moving, sx, sy, pixelBudget);
+    }
+
+    /**
+     * Plans the registration of patches of a given physical size, with a specific pixel budget
+     * (for instance a registration stage with much bigger patches than the others)
+     *
+     * @param name name of the registration stage, for the logs
+     * @param fixed fixed source
+     * @param moving moving source
+     * @param sx physical size of a patch along x
+     * @param sy physical size of a patch along y
+     * @param pixelBudget max number of pixels of a patch
+     * @return the plan of a patch registration
+     */
+    public Plan planWithPixelBudget(String name, SourceAndConverter fixed, SourceAndConverter moving, double sx, double sy, long pixelBudget) {
+        if (pixelBudget <= 0) {
+            throw new IllegalArgumentException("Invalid pixel budget "+pixelBudget);
+        }
+        double finestPixelSize = Math.max(getVoxelSize(fixed.getSpimSource(), 0), getVoxelSize(moving.getSpimSource(), 0));
+        double pixelSize = Math.max(Math.sqrt(sx * sy / pixelBudget), finestPixelSize);
+
+        double correction = getCorrection();
+        Plan plan = new Plan(name, sx, sy, pixelSize, maxIterationNumberPerScale, minPixSize, correction);
+        if (timeBudgetInS > 0) {
+            // Coarser patches until the predicted duration fits, while staying above the coarsest elastix resolution
+            while ((plan.predictedDurationInS > timeBudgetInS) && (Math.min(sx, sy) / (plan.pixelSize * 1.25) >= 2 * minPixSize)) {
+                plan = new Plan(name, sx, sy, plan.pixelSize * 1.25, maxIterationNumberPerScale, minPixSize, correction);
+            }
+            if (plan.predictedDurationInS > timeBudgetInS) {
+                logger.warn(name+" : predicted duration "+String.format("%.1f", plan.predictedDurationInS)
+                        +" s exceeds the time budget of "+timeBudgetInS+" s");
+            }
+        }
+        return withLevels(plan, fixed, moving);
+    }
+
+    /**
+     * Plans the registration of patches with a given pixel size, the budgets are ignored
+     *
+     * @param name name of the registration stage, for the logs
+     * @param fixed fixed source
+     * @param moving moving source
+     * @param sx physical size of a patch along x
+     * @param sy physical size of a patch along y
+     * @param pixelSize pixel size of the patches
+     * @return the plan of a patch registration
+     */
+    public Plan plan(String name, SourceAndConverter fixed, SourceAndConverter moving, double sx, double sy, double pixelSize) {
+        return withLevels(new Plan(name, sx, sy, pixelSize, maxIterationNumberPerScale, minPixSize, getCorrection()), fixed, moving);
+    }
+
+    Plan withLevels(Plan plan, SourceAndConverter fixed, SourceAndConverter moving) {
+        plan.levelFixed = SourceAndConverterHelper.bestLevel(fixed, 0, plan.pixelSize);
+        plan.levelMoving = SourceAndConverterHelper.bestLevel(moving, 0, plan.pixelSize);
+        logger.info("Plan "+plan);
+        return plan;
+    }
+
+    /**
+     * Logs the predicted and actual durations of a registration stage, and corrects the cost model
+     *
+     * @param plan plan of the patch registrations
+     * @param nPatchesPerWorker number of patches registered one after the other (per worker for parallel registrations)
+     * @param actualDurationInS measured duration of the stage
+     */
+    public void logActualCost(Plan plan, int nPatchesPerWorker, double actualDurationInS) {
+        double predicted = plan.predictedDurationInS * nPatchesPerWorker;
+        logger.info(plan.name+" : predicted "+String.format("%.1f", predicted)+" s, actual "+String.format("%.1f", actualDurationInS)+" s");
+        if ((predicted > 0) && (actualDurationInS > 0)) {
+            synchronized (this) {
+                correction *= (1 - correctionUpdate) + correctionUpdate * actualDurationInS / predicted;
+            }
+        }
+    }
+
+    synchronized double getCorrection() {
+        return correction;
+    }
+
+    /**
+     * Number of elastix resolutions such that the coarsest resolution is about minPixSize pixels
+     *
+     * @param sizeInPixels smallest size of the patch, in pixels
+     * @param minPixSize size in pixels of the coarsest resolution
+     * @return the number of resolutions, at least 1
+     */
+    public static int getNumberOfResolutions(double sizeInPixels, int minPixSize) {
+        int nScales = 0;
+
+        while (Math.pow(2,nScales)<sizeInPixels) {
+            nScales++;
+        }
+
+        int nScalesSkipped = 0;
+
+        while (Math.pow(2,nScalesSkipped)<minPixSize) {
+            nScalesSkipped++;
+        }
+
+        return Math.max(1,nScales-nScalesSkipped); // Starts with 2^nScalesSkipped pixels
+    }
+
+    /**
+     * @param source source
+     * @param level resolution level
+     * @return the smallest voxel size along x and y at timepoint 0, in physical units
+     */
+    public static double getVoxelSize(Source<?> source, int level) {
+        AffineTransform3D at3D = new AffineTransform3D();
+        source.getSourceTransform(0, level, at3D);
+        double vx = Math.sqrt(at3D.get(0,0)*at3D.get(0,0) + at3D.get(1,0)*at3D.get(1,0) + at3D.get(2,0)*at3D.get(2,0));
+        double vy = Math.sqrt(at3D.get(0,1)*at3D.get(0,1) + at3D.get(1,1)*at3D.get(1,1) + at3D.get(2,1)*at3D.get(2,1));
+        return Math.min(vx, vy);
+    }
+
+    /**
+     * Plan of a patch registration
+     */
+    public static class Plan {
+
+        public final String name;
+        public final double sx, sy;
+        public final double pixelSize;
+        public final long nPixels;
+        public final int numberOfResolutions;
+        public final double predictedDurationInS;
+        public int levelFixed, levelMoving;
+
+        Plan(String name, double sx, double sy, double pixelSize, int maxIterationNumberPerScale, int minPixSize, double correction) {
+            this.name = name;
+            this.sx = sx;
+            this.sy = sy;
+            this.pixelSize = pixelSize;
+            this.nPixels = (long) (sx / pixelSize) * (long) (sy / pixelSize);
+            this.numberOfResolutions = getNumberOfResolutions(Math.min(sx / pixelSize, sy / pixelSize), minPixSize);
+            this.predictedDurationInS = correction * (overheadInS
+                    + 2 * nPixels * costPerPixelInS
+                    + numberOfResolutions * maxIterationNumberPerScale * costPerIterationInS);
+        }
+
+        @Override
+        public String toString() {
+            return name+" : patch "+sx+" x "+sy+", pixel size "+pixelSize+" ("+nPixels+" pixels), levels fixed "+levelFixed
+                    +" moving "+levelMoving+", "+numberOfResolutions+" elastix resolution(s), predicted "
+                    +String.format("%.1f", predictedDurationInS)+" s per patch";
+        }
+    }
+
+}
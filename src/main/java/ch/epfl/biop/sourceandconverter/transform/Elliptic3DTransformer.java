@@ -2,15 +2,18 @@ package ch.epfl.biop.sourceandconverter.transform;
 
 import bdv.img.WarpedSource;
 import bdv.util.Elliptical3DTransform;
+import bdv.util.Elliptical3DTransformTrack;
 import bdv.viewer.SourceAndConverter;
 import sc.fiji.bdvpg.services.SourceAndConverterServices;
 
+import java.lang.ref.WeakReference;
 import java.util.function.Function;
 
 public class Elliptic3DTransformer implements Runnable, Function<SourceAndConverter, SourceAndConverter> {
 
     SourceAndConverter sourceIn;
     Elliptical3DTransform e3Dt;
+    Elliptical3DTransformTrack track;
     SourceAndConverter sourceOut;
 
     public Elliptic3DTransformer(SourceAndConverter src, Elliptical3DTransform e3Dt) {
@@ -18,6 +21,16 @@ public class Elliptic3DTransformer implements Runnable, Function<SourceAndConver
         this.e3Dt = e3Dt;
     }
 
+    /**
+     * Transforms each timepoint with the parameters of the track at this timepoint
+     * @param src source to transform
+     * @param track time varying parameters
+     */
+    public Elliptic3DTransformer(SourceAndConverter src, Elliptical3DTransformTrack track) {
+        this.sourceIn = src;
+        this.track = track;
+    }
+
     @Override
     public void run() {
         sourceOut = apply(sourceIn);
@@ -28,6 +41,7 @@ public class Elliptic3DTransformer implements Runnable, Function<SourceAndConver
     }
 
     public SourceAndConverter apply(SourceAndConverter in) {
+        if (track != null) return applyTrack(in);
         WarpedSource ws = new WarpedSource(in.getSpimSource(), "Ellipitic3DTransformed_"+in.getSpimSource().getName());
         ws.updateTransform(e3Dt);
         ws.setIsTransformed(true);
@@ -68,4 +82,37 @@ public class Elliptic3DTransformer implements Runnable, Function<SourceAndConver
 
     }
 
+    SourceAndConverter applyTrack(SourceAndConverter in) {
+        TrackWarpedSource ws = new TrackWarpedSource(in.getSpimSource(), "Ellipitic3DTransformed_"+in.getSpimSource().getName(), track);
+
+        SourceAndConverter out;
+        if (in.asVolatile()!=null) {
+            TrackWarpedSource vws = new TrackWarpedSource(in.asVolatile().getSpimSource(), "Ellipitic3DTransformed_"+in.asVolatile().getSpimSource().getName(), track);
+            SourceAndConverter vout = new SourceAndConverter<>(vws, in.asVolatile().getConverter());
+            out = new SourceAndConverter(ws, in.getConverter(), vout);
+        } else {
+            out = new SourceAndConverter(ws, in.getConverter());
+        }
+
+        // The track can outlive the output source : the notifier does not retain the source
+        // and removes itself once the source has been collected
+        final WeakReference<SourceAndConverter> sacOutRef = new WeakReference<>(out);
+        track.addUpdateNotifier(new Runnable() {
+            @Override
+            public void run() {
+                SourceAndConverter sacOut = sacOutRef.get();
+                if (sacOut == null) {
+                    track.removeUpdateNotifier(this);
+                    return;
+                }
+                SourceAndConverterServices
+                        .getBdvDisplayService()
+                        .getDisplaysOf(sacOut).forEach(bdvHandle -> bdvHandle.getViewerPanel().requestRepaint());
+            }
+        });
+
+        SourceAndConverterServices.getSourceAndConverterService().register(out);
+        return out;
+    }
+
 }
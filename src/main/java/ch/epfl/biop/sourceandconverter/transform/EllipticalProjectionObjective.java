@@ -0,0 +1,162 @@
+package ch.epfl.biop.sourceandconverter.transform;
+
+import bdv.util.Elliptical3DTransform;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.stream.IntStream;
+
+/**
+ * Integrated intensity of a source over the nodes of a {@link SphericalLattice} mapped
+ * by an {@link Elliptical3DTransform}, and its gradient with respect to the 9 parameters
+ * of the transform, see {@link Elliptical3DTransform#getParamsName()}.
+ *
+ * As in the simplex optimization of {@link ch.epfl.biop.bdv.command.transform.Optimize3DEllipticalTransformCommand},
+ * each sample above the threshold is weighted by the solid angle of its node and the sum
+ * is multiplied by r1*r2*r3.
+ *
+ * The source is sampled in global space with a linear interpolation. The gradient is the
+ * chain rule of the image gradient (central differences, half a voxel apart) and of the
+ * analytic derivatives of the transform. The rows of the lattice are summed in parallel,
+ * each thread keeping its own random access between evaluations.
+ */
+public class EllipticalProjectionObjective {
+
+    final RealRandomAccessible<? extends RealType<?>> globalSource;
+
+    final ThreadLocal<RealRandomAccess<? extends RealType<?>>> accesses;
+
+    final double threshold;
+
+    // Step for the image gradient, in global space
+    final double h;
+
+    final SphericalLattice lattice;
+
+    public EllipticalProjectionObjective(Source<? extends RealType<?>> source, int timepoint, int level,
+                                         SphericalLattice lattice, double threshold) {
+        AffineTransform3D sourceTransform = new AffineTransform3D();
+        source.getSourceTransform(timepoint, level, sourceTransform);
+        this.globalSource = RealViews.affineReal(source.getInterpolatedSource(timepoint, level, Interpolation.NLINEAR), sourceTransform);
+        this.accesses = ThreadLocal.withInitial(globalSource::realRandomAccess);
+        this.threshold = threshold;
+
+        double minVoxelSize = Double.MAX_VALUE;
+        for (int d = 0; d < 3; d++) {
+            double size = 0;
+            for (int i = 0; i < 3; i++) size += sourceTransform.get(i, d) * sourceTransform.get(i, d);
+            minVoxelSize = Math.min(minVoxelSize, Math.sqrt(size));
+        }
+        this.h = minVoxelSize / 2.0;
+
+        this.lattice = lattice;
+    }
+
+    /**
+     * @param parameters transform parameters
+     * @return the integrated intensity
+     */
+    public double value(Elliptical3DTransform.Parameters parameters) {
+        return compute(parameters, null);
+    }
+
+    /**
+     * @param parameters transform parameters
+     * @param gradient filled with the derivatives of the integrated intensity with respect to
+     *                 r1, r2, r3, rx, ry, rz, tx, ty, tz
+     * @return the integrated intensity
+     */
+    public double value(Elliptical3DTransform.Parameters parameters, double[] gradient) {
+        return compute(parameters, gradient);
+    }
+
+    double compute(Elliptical3DTransform.Parameters p, double[] gradient) {
+        final double[] radii = new double[]{p.r1, p.r2, p.r3};
+        final double[] translation = new double[]{p.tx, p.ty, p.tz};
+        final double[][] r = p.getRotation();
+        final boolean withGradient = gradient != null;
+
+        // A = R * diag(radii), dA[k] = dR[k] * diag(radii)
+        final double[][] a = new double[3][3];
+        final double[][][] dA = new double[3][3][3];
+        final double[][][] dR = withGradient ? p.getRotationDerivatives() : null;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                a[i][j] = r[i][j] * radii[j];
+                if (withGradient) {
+                    for (int k = 0; k < 3; k++) dA[k][i][j] = dR[k][i][j] * radii[j];
+                }
+            }
+        }
+
+        // One result per theta row, summed in order so that the result does not depend on the scheduling
+        final double[][] rowResults = new double[lattice.numRows()][10];
+        IntStream.range(0, lattice.numRows()).parallel().forEach(iRow -> {
+            final RealRandomAccess<? extends RealType<?>> access = accesses.get();
+            final double[] row = lattice.getUnitPoints(iRow);
+            final double w = lattice.getWeight(iRow);
+            final double[] result = rowResults[iRow];
+            final double[] y = new double[3];
+            final double[] g = new double[3];
+            for (int i = 0; i < row.length; i += 3) {
+                final double sx = row[i], sy = row[i + 1], sz = row[i + 2];
+                for (int d = 0; d < 3; d++) {
+                    y[d] = a[d][0] * sx + a[d][1] * sy + a[d][2] * sz + translation[d];
+                }
+                final double v = sample(access, y);
+                if (v > threshold) {
+                    result[0] += w * v;
+                    if (withGradient) {
+                        for (int d = 0; d < 3; d++) {
+                            final double yd = y[d];
+                            y[d] = yd + h;
+                            final double vPlus = sample(access, y);
+                            y[d] = yd - h;
+                            final double vMinus = sample(access, y);
+                            y[d] = yd;
+                            g[d] = w * (vPlus - vMinus) / (2 * h);
+                        }
+                        // Radii : dy / dr_j = R[:, j] * s_j
+                        for (int j = 0; j < 3; j++) {
+                            result[1 + j] += (g[0] * r[0][j] + g[1] * r[1][j] + g[2] * r[2][j]) * row[i + j];
+                        }
+                        // Angles : dy / da_k = dA[k] * s
+                        for (int k = 0; k < 3; k++) {
+                            double sum = 0;
+                            for (int d = 0; d < 3; d++) {
+                                sum += g[d] * (dA[k][d][0] * sx + dA[k][d][1] * sy + dA[k][d][2] * sz);
+                            }
+                            result[4 + k] += sum;
+                        }
+                        // Translation : dy / dt = identity
+                        for (int d = 0; d < 3; d++) result[7 + d] += g[d];
+                    }
+                }
+            }
+        });
+
+        final double[] total = new double[10];
+        for (double[] rowResult : rowResults) {
+            for (int i = 0; i < 10; i++) total[i] += rowResult[i];
+        }
+
+        // Integrated intensity times r1*r2*r3
+        final double volume = p.r1 * p.r2 * p.r3;
+        if (withGradient) {
+            for (int i = 0; i < 9; i++) gradient[i] = total[1 + i] * volume;
+            for (int j = 0; j < 3; j++) gradient[j] += total[0] * volume / radii[j];
+        }
+        return total[0] * volume;
+    }
+
+    static double sample(RealRandomAccess<? extends RealType<?>> access, double[] position) {
+        access.setPosition(position);
+        return access.get().getRealDouble();
+    }
+
+}
@@ -0,0 +1,155 @@
+package ch.epfl.biop.sourceandconverter.transform;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransform;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * A 3D {@link RealTransform} evaluated once on all the voxels of a grid, typically the
+ * grid of the model source of an export, and stored in an off-heap float buffer.
+ *
+ * Positions which fall on a grid voxel are mapped by a lookup in the buffer, other positions
+ * are mapped by the original transform. When all channels and timepoints of an export are
+ * sampled on the same grid through the same transform (as in an elliptic projection export),
+ * the transform is evaluated once per voxel instead of once per voxel, channel and timepoint.
+ *
+ * The buffer is read only and shared between copies, each copy has its own copy of the
+ * original transform.
+ */
+public class PrecomputedGridTransform implements RealTransform {
+
+    /**
+     * Max size of the buffer of mapped coordinates
+     */
+    public static long maxBytes = 1024L * 1024L * 1024L;
+
+    // Max distance to a grid voxel, in voxels, for a position to be considered on the grid
+    final static double tolerance = 1e-4;
+
+    final RealTransform transform;
+
+    final AffineTransform3D gridToSpace;
+
+    final AffineTransform3D spaceToGrid;
+
+    final long nx, ny, nz;
+
+    final FloatBuffer coordinates;
+
+    final double[] tmpSource = new double[3];
+    final double[] tmpGrid = new double[3];
+
+    /**
+     * @param dimensions dimensions of a grid
+     * @return true if the transform can be precomputed on such a grid, see {@link PrecomputedGridTransform#maxBytes}
+     */
+    public static boolean fits(long[] dimensions) {
+        long nValues = 3 * dimensions[0] * dimensions[1] * dimensions[2];
+        return (nValues <= Integer.MAX_VALUE) && (nValues * Float.BYTES <= maxBytes);
+    }
+
+    /**
+     * Evaluates the transform on all the grid voxels, in parallel
+     *
+     * @param transform 3D transform, which should not change afterwards
+     * @param gridToSpace voxel to source space of the transform
+     * @param dimensions dimensions of the grid
+     */
+    public PrecomputedGridTransform(RealTransform transform, AffineTransform3D gridToSpace, long[] dimensions) {
+        if (!fits(dimensions)) {
+            throw new IllegalArgumentException("Grid too large for precomputing a transform: "
+                    + dimensions[0] + "x" + dimensions[1] + "x" + dimensions[2]);
+        }
+        this.transform = transform.copy();
+        this.gridToSpace = gridToSpace.copy();
+        this.spaceToGrid = gridToSpace.inverse();
+        this.nx = dimensions[0];
+        this.ny = dimensions[1];
+        this.nz = dimensions[2];
+        this.coordinates = ByteBuffer
+                .allocateDirect((int) (3 * nx * ny * nz * Float.BYTES))
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        // One task per grid row, each thread with its own copy of the transform
+        final ThreadLocal<RealTransform> transforms = ThreadLocal.withInitial(transform::copy);
+        IntStream.range(0, (int) (ny * nz)).parallel().forEach(iRow -> {
+            final RealTransform t = transforms.get();
+            final double[] voxel = new double[3];
+            final double[] space = new double[3];
+            final double[] target = new double[3];
+            voxel[1] = iRow % ny;
+            voxel[2] = iRow / ny;
+            int offset = (int) (3 * iRow * nx);
+            for (int x = 0; x < nx; x++) {
+                voxel[0] = x;
+                this.gridToSpace.apply(voxel, space);
+                t.apply(space, target);
+                coordinates.put(offset, (float) target[0]);
+                coordinates.put(offset + 1, (float) target[1]);
+                coordinates.put(offset + 2, (float) target[2]);
+                offset += 3;
+            }
+        });
+    }
+
+    private PrecomputedGridTransform(PrecomputedGridTransform model) {
+        this.transform = model.transform.copy();
+        this.gridToSpace = model.gridToSpace;
+        this.spaceToGrid = model.spaceToGrid;
+        this.nx = model.nx;
+        this.ny = model.ny;
+        this.nz = model.nz;
+        this.coordinates = model.coordinates;
+    }
+
+    @Override
+    public int numSourceDimensions() {
+        return 3;
+    }
+
+    @Override
+    public int numTargetDimensions() {
+        return 3;
+    }
+
+    @Override
+    public void apply(double[] source, double[] target) {
+        spaceToGrid.apply(source, tmpGrid);
+        final long x = Math.round(tmpGrid[0]);
+        final long y = Math.round(tmpGrid[1]);
+        final long z = Math.round(tmpGrid[2]);
+        if ((x >= 0) && (x < nx) && (y >= 0) && (y < ny) && (z >= 0) && (z < nz)
+                && (Math.abs(tmpGrid[0] - x) < tolerance)
+                && (Math.abs(tmpGrid[1] - y) < tolerance)
+                && (Math.abs(tmpGrid[2] - z) < tolerance)) {
+            final int offset = (int) (3 * ((z * ny + y) * nx + x));
+            target[0] = coordinates.get(offset);
+            target[1] = coordinates.get(offset + 1);
+            target[2] = coordinates.get(offset + 2);
+        } else {
+            transform.apply(source, target);
+        }
+    }
+
+    @Override
+    public void apply(RealLocalizable source, RealPositionable target) {
+        tmpSource[0] = source.getDoublePosition(0);
+        tmpSource[1] = source.getDoublePosition(1);
+        tmpSource[2] = source.getDoublePosition(2);
+        apply(tmpSource, tmpSource);
+        target.setPosition(tmpSource);
+    }
+
+    @Override
+    public PrecomputedGridTransform copy() {
+        return new PrecomputedGridTransform(this);
+    }
+
+}
@@ -0,0 +1,174 @@
+package ch.epfl.biop.sourceandconverter.transform;
+
+import net.imglib2.realtransform.SphericalToCartesianTransform3D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable set of nodes on a portion of the unit sphere, with the solid angle covered by
+ * each node, used to integrate a function over an ellipsoid surface mapped by an
+ * {@link bdv.util.Elliptical3DTransform}.
+ *
+ * Nodes are organized in rows of constant theta, which can be processed in parallel.
+ * Node coordinates are computed once, both in spherical (theta, phi) and in cartesian
+ * coordinates on the unit sphere.
+ *
+ * Two node sets are available:
+ * - {@link SphericalLattice#regular(double, double, double, double, double, double)} : regular
+ * (theta, phi) grid, each node weighted by sin(theta) dTheta dPhi
+ * - {@link SphericalLattice#equalArea(double, double, double, double, double)} : rows equally
+ * spaced in cos(theta), as in a Lambert cylindrical equal-area projection, with a number of
+ * nodes per row proportional to sin(theta). All nodes cover the same solid angle, so the poles
+ * are not oversampled and fewer nodes are needed for the same accuracy.
+ */
+public class SphericalLattice {
+
+    final double[] thetas;
+    final double[][] phis;
+    final double[][] unitPoints;
+    final double[] weights;
+    final int numNodes;
+
+    private SphericalLattice(List<Double> thetas, List<double[]> phis, List<Double> weights) {
+        this.thetas = new double[thetas.size()];
+        this.phis = new double[thetas.size()][];
+        this.unitPoints = new double[thetas.size()][];
+        this.weights = new double[thetas.size()];
+        SphericalToCartesianTransform3D s2c = SphericalToCartesianTransform3D.getInstance();
+        double[] spherical = new double[3];
+        double[] cartesian = new double[3];
+        int n = 0;
+        for (int iRow = 0; iRow < thetas.size(); iRow++) {
+            this.thetas[iRow] = thetas.get(iRow);
+            this.phis[iRow] = phis.get(iRow);
+            this.weights[iRow] = weights.get(iRow);
+            double[] points = new double[this.phis[iRow].length * 3];
+            for (int i = 0; i < this.phis[iRow].length; i++) {
+                spherical[0] = 1;
+                spherical[1] = this.thetas[iRow];
+                spherical[2] = this.phis[iRow][i];
+                s2c.apply(spherical, cartesian);
+                System.arraycopy(cartesian, 0, points, 3 * i, 3);
+            }
+            this.unitPoints[iRow] = points;
+            n += this.phis[iRow].length;
+        }
+        this.numNodes = n;
+    }
+
+    /**
+     * Regular (theta, phi) grid, bounds included
+     *
+     * @param thetaMin min theta (rad)
+     * @param thetaMax max theta (rad)
+     * @param dTheta step along theta (rad)
+     * @param phiMin min phi (rad)
+     * @param phiMax max phi (rad)
+     * @param dPhi step along phi (rad)
+     * @return the lattice, each node being weighted by sin(theta) dTheta dPhi
+     */
+    public static SphericalLattice regular(double thetaMin, double thetaMax, double dTheta,
+                                           double phiMin, double phiMax, double dPhi) {
+        List<Double> phiList = new ArrayList<>();
+        for (double pPhi = phiMin; pPhi <= phiMax; pPhi += dPhi) {
+            phiList.add(pPhi);
+        }
+        double[] rowPhis = phiList.stream().mapToDouble(Double::doubleValue).toArray();
+
+        List<Double> thetas = new ArrayList<>();
+        List<double[]> phis = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (double pTheta = thetaMin; pTheta <= thetaMax; pTheta += dTheta) {
+            thetas.add(pTheta);
+            phis.add(rowPhis);
+            weights.add(Math.abs(Math.sin(pTheta)) * dTheta * dPhi);
+        }
+        return new SphericalLattice(thetas, phis, weights);
+    }
+
+    /**
+     * Equal-area lattice : rows are equally spaced in cos(theta), see {@link SphericalLattice#getEqualAreaTheta(double)},
+     * nodes are equally spaced along each row, at the centers of cells of equal solid angle
+     *
+     * @param thetaMin min theta (rad)
+     * @param thetaMax max theta (rad)
+     * @param phiMin min phi (rad)
+     * @param phiMax max phi (rad)
+     * @param step distance between nodes on the unit sphere (rad)
+     * @return the lattice, each node being weighted by the solid angle of its cell
+     */
+    public static SphericalLattice equalArea(double thetaMin, double thetaMax,
+                                             double phiMin, double phiMax, double step) {
+        double uMax = Math.cos(thetaMin);
+        double uMin = Math.cos(thetaMax);
+        double phiSpan = phiMax - phiMin;
+        int nRows = Math.max(1, (int) Math.round((uMax - uMin) / step));
+        double du = (uMax - uMin) / nRows;
+
+        List<Double> thetas = new ArrayList<>();
+        List<double[]> phis = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (int iRow = 0; iRow < nRows; iRow++) {
+            double theta = getEqualAreaTheta(uMax - (iRow + 0.5) * du);
+            int nPhi = Math.max(1, (int) Math.round(phiSpan * Math.sin(theta) / step));
+            double[] rowPhis = new double[nPhi];
+            for (int i = 0; i < nPhi; i++) {
+                rowPhis[i] = phiMin + (i + 0.5) * phiSpan / nPhi;
+            }
+            thetas.add(theta);
+            phis.add(rowPhis);
+            weights.add(du * phiSpan / nPhi);
+        }
+        return new SphericalLattice(thetas, phis, weights);
+    }
+
+    /**
+     * @param u cos(theta), clamped to [-1, 1]
+     * @return theta, in [0, PI]
+     */
+    public static double getEqualAreaTheta(double u) {
+        return Math.acos(Math.max(-1, Math.min(1, u)));
+    }
+
+    public int numRows() {
+        return thetas.length;
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * @param row row index
+     * @return theta of the nodes of this row
+     */
+    public double getTheta(int row) {
+        return thetas[row];
+    }
+
+    /**
+     * @param row row index
+     * @return phi of each node of this row, not to be modified
+     */
+    public double[] getPhis(int row) {
+        return phis[row];
+    }
+
+    /**
+     * @param row row index
+     * @return x, y, z of each node of this row on the unit sphere, not to be modified
+     */
+    public double[] getUnitPoints(int row) {
+        return unitPoints[row];
+    }
+
+    /**
+     * @param row row index
+     * @return solid angle covered by each node of this row
+     */
+    public double getWeight(int row) {
+        return weights[row];
+    }
+
+}
@@ -0,0 +1,106 @@
+package ch.epfl.biop.sourceandconverter.transform;
+
+import bdv.img.WarpedSource;
+import bdv.util.Elliptical3DTransform;
+import bdv.util.Elliptical3DTransformTrack;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransformRealRandomAccessible;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.view.Views;
+
+/**
+ * A {@link WarpedSource} which is warped, at each timepoint, by the elliptic transform
+ * of an {@link Elliptical3DTransformTrack} at this timepoint.
+ *
+ * The interval of the rasterized source is estimated at each timepoint, since the warped
+ * region moves with the parameters of the track.
+ *
+ * @param <T> pixel type
+ */
+public class TrackWarpedSource<T> extends WarpedSource<T> {
+
+    final Elliptical3DTransformTrack track;
+
+    public TrackWarpedSource(Source<T> source, String name, Elliptical3DTransformTrack track) {
+        super(source, name);
+        this.track = track;
+        // Used for the bounds of the rasterized source
+        updateTransform(track.getTransform(0));
+        setIsTransformed(true);
+    }
+
+    @Override
+    public RealRandomAccessible<T> getInterpolatedSource(final int t, final int level, final Interpolation method) {
+        final Source<T> source = getWrappedSource();
+        final AffineTransform3D sourceTransform = new AffineTransform3D();
+        source.getSourceTransform(t, level, sourceTransform);
+        final RealRandomAccessible<T> globalSource = RealViews.affineReal(source.getInterpolatedSource(t, level, method), sourceTransform);
+        return new RealTransformRealRandomAccessible<>(globalSource, track.getTransform(t));
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getSource(final int t, final int level) {
+        Interval interval = estimateBoundingInterval(t, level);
+        if (interval == null) interval = super.getSource(t, level); // Bounds at timepoint 0
+        return Views.interval(Views.raster(getInterpolatedSource(t, level, Interpolation.NEARESTNEIGHBOR)), interval);
+    }
+
+    /**
+     * Number of steps along each dimension of the wrapped source used to estimate the bounds of the warped source
+     */
+    public static int boundsSamplingSteps = 8;
+
+    /**
+     * @param t timepoint
+     * @param level resolution level
+     * @return the bounding box, in global coordinates, of points of the wrapped source mapped by the inverse of the
+     * transform of the track at timepoint t, or null if none of these points could be mapped
+     */
+    Interval estimateBoundingInterval(final int t, final int level) {
+        final Source<T> source = getWrappedSource();
+        final Interval wrappedInterval = source.getSource(t, level);
+        final AffineTransform3D sourceTransform = new AffineTransform3D();
+        source.getSourceTransform(t, level, sourceTransform);
+        final Elliptical3DTransform transform = track.getTransform(t);
+
+        final double[] min = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        final double[] max = new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        final double[] voxel = new double[3];
+        final double[] global = new double[3];
+        final double[] warped = new double[3];
+        final int n = Math.max(1, boundsSamplingSteps);
+        boolean found = false;
+        for (int i = 0; i <= n; i++) {
+            for (int j = 0; j <= n; j++) {
+                for (int k = 0; k <= n; k++) {
+                    voxel[0] = wrappedInterval.min(0) + i * (wrappedInterval.max(0) - wrappedInterval.min(0)) / (double) n;
+                    voxel[1] = wrappedInterval.min(1) + j * (wrappedInterval.max(1) - wrappedInterval.min(1)) / (double) n;
+                    voxel[2] = wrappedInterval.min(2) + k * (wrappedInterval.max(2) - wrappedInterval.min(2)) / (double) n;
+                    sourceTransform.apply(voxel, global);
+                    transform.applyInverse(warped, global);
+                    if (!(Double.isFinite(warped[0]) && Double.isFinite(warped[1]) && Double.isFinite(warped[2]))) continue;
+                    found = true;
+                    for (int d = 0; d < 3; d++) {
+                        min[d] = Math.min(min[d], warped[d]);
+                        max[d] = Math.max(max[d], warped[d]);
+                    }
+                }
+            }
+        }
+        if (!found) return null;
+        return new FinalInterval(
+                new long[]{(long) Math.floor(min[0]), (long) Math.floor(min[1]), (long) Math.floor(min[2])},
+                new long[]{(long) Math.ceil(max[0]), (long) Math.ceil(max[1]), (long) Math.ceil(max[2])});
+    }
+
+    public Elliptical3DTransformTrack getTrack() {
+        return track;
+    }
+
+}
@@ -0,0 +1,78 @@
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.sourceandconverter.exporter.CZTRange;
+import ch.epfl.biop.sourceandconverter.exporter.ImagePlusGetter;
+import ch.epfl.biop.sourceandconverter.exporter.PlaneCache;
+import ch.epfl.biop.sourceandconverter.importer.WeightedVoronoiSourceGetter;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures how planes of a cached virtual stack are served when many threads
+ * request them concurrently (orthogonal views, parallel duplicator...)
+ *
+ * Each thread requests all planes in a random order, so most requests are
+ * either cache hits or requests of a plane which is currently being computed
+ * by another thread.
+ */
+public class DemoVirtualStackContention {
+
+    public static void main(String... args) throws Exception {
+
+        SourceAndConverter voronoi = new WeightedVoronoiSourceGetter(new long[]{512,512,128}, 1000, true).get();
+
+        List<SourceAndConverter> sources = new ArrayList<>();
+        sources.add(voronoi);
+
+        CZTRange range = ImagePlusGetter.fromSources(sources, 0, 0);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+            // Warm up
+            run(sources, range, nThreads);
+            long durationMs = run(sources, range, nThreads);
+            System.out.println(nThreads + " thread(s) : " + durationMs + " ms for " + (nThreads * range.getTotalPlanes()) + " plane requests");
+        }
+    }
+
+    static long run(List<SourceAndConverter> sources, CZTRange range, int nThreads) throws Exception {
+        ImagePlus imp = ImagePlusGetter.getVirtualImagePlus("Contention", sources, 0, range, PlaneCache.unbounded(), false);
+        ImageStack stack = imp.getStack();
+        int nPlanes = stack.getSize();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(nThreads);
+
+        for (int iThread = 0; iThread < nThreads; iThread++) {
+            List<Integer> planes = new ArrayList<>();
+            for (int n = 1; n <= nPlanes; n++) planes.add(n);
+            Collections.shuffle(planes, new Random(iThread));
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    planes.forEach(stack::getProcessor);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        long begin = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        long end = System.currentTimeMillis();
+        executor.shutdown();
+        return end - begin;
+    }
+}
@@ -0,0 +1,110 @@
+import bdv.util.Elliptical3DTransform;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.RealTransformSequence;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * The fused point mapping of {@link Elliptical3DTransform} should give the same results
+ * as the four stages transform sequences it replaces
+ */
+public class Elliptical3DTransformTest {
+
+    static final double EPSILON = 1e-9;
+
+    static final int N_POINTS = 1000;
+
+    @Test
+    public void applyMatchesTransformSequence() {
+        Random random = new Random(0);
+        for (Elliptical3DTransform transform : randomTransforms(random)) {
+            RealTransformSequence sequence = transform.getTransformSequence();
+            double[] expected = new double[3];
+            double[] actual = new double[3];
+            for (int i = 0; i < N_POINTS; i++) {
+                double[] spherical = randomSpherical(random);
+                sequence.apply(spherical, expected);
+                transform.apply(spherical, actual);
+                assertArrayEquals(expected, actual, EPSILON * norm(expected));
+
+                RealPoint target = new RealPoint(3);
+                transform.apply(RealPoint.wrap(spherical), target);
+                assertArrayEquals(expected, target.positionAsDoubleArray(), EPSILON * norm(expected));
+            }
+        }
+    }
+
+    @Test
+    public void applyInverseMatchesInverseTransformSequence() {
+        Random random = new Random(1);
+        for (Elliptical3DTransform transform : randomTransforms(random)) {
+            RealTransformSequence inverseSequence = transform.getInverseTransformSequence();
+            double[] cartesian = new double[3];
+            double[] expected = new double[3];
+            double[] actual = new double[3];
+            for (int i = 0; i < N_POINTS; i++) {
+                transform.apply(randomSpherical(random), cartesian);
+                inverseSequence.apply(cartesian, expected);
+                // InvertibleRealTransform contract : applyInverse(source, target) writes into source
+                transform.applyInverse(actual, cartesian);
+                assertArrayEquals(expected, actual, EPSILON);
+
+                RealPoint source = new RealPoint(3);
+                transform.applyInverse(source, RealPoint.wrap(cartesian));
+                assertArrayEquals(expected, source.positionAsDoubleArray(), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void inverseMapsBack() {
+        Random random = new Random(2);
+        for (Elliptical3DTransform transform : randomTransforms(random)) {
+            double[] cartesian = new double[3];
+            double[] spherical = new double[3];
+            for (int i = 0; i < N_POINTS; i++) {
+                double[] expected = randomSpherical(random);
+                transform.apply(expected, cartesian);
+                transform.inverse().apply(cartesian, spherical);
+                assertArrayEquals(expected, spherical, EPSILON);
+            }
+        }
+    }
+
+    static Elliptical3DTransform[] randomTransforms(Random random) {
+        Elliptical3DTransform[] transforms = new Elliptical3DTransform[10];
+        for (int i = 0; i < transforms.length; i++) {
+            transforms[i] = new Elliptical3DTransform();
+            transforms[i].setParameters(
+                    "r1", 10 + 200 * random.nextDouble(),
+                    "r2", 10 + 200 * random.nextDouble(),
+                    "r3", 10 + 200 * random.nextDouble(),
+                    "rx", Math.PI * (2 * random.nextDouble() - 1),
+                    "ry", Math.PI * (2 * random.nextDouble() - 1),
+                    "rz", Math.PI * (2 * random.nextDouble() - 1),
+                    "tx", 500 * (2 * random.nextDouble() - 1),
+                    "ty", 500 * (2 * random.nextDouble() - 1),
+                    "tz", 500 * (2 * random.nextDouble() - 1));
+        }
+        return transforms;
+    }
+
+    /**
+     * @return (r, theta, phi), away from the poles and from the phi = +-pi cut,
+     * where the spherical coordinates of a point are not unique
+     */
+    static double[] randomSpherical(Random random) {
+        return new double[]{
+                0.5 + 1.5 * random.nextDouble(),
+                0.1 + (Math.PI - 0.2) * random.nextDouble(),
+                (Math.PI - 0.1) * (2 * random.nextDouble() - 1)};
+    }
+
+    static double norm(double[] v) {
+        return Math.max(1, Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]));
+    }
+
+}